@@ -21,6 +21,8 @@ import com.android.dialer2.calllog.datasources.DataSources;
 import com.android.dialer2.calllog.datasources.phonelookup.PhoneLookupDataSource;
 import com.android.dialer2.calllog.datasources.systemcalllog.SystemCallLogDataSource;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSetMultimap;
 import dagger.Module;
 import dagger.Provides;
 
@@ -35,6 +37,9 @@ public abstract class CallLogModule {
     // System call log must be first, see getDataSourcesExcludingSystemCallLog below.
     ImmutableList<CallLogDataSource> allDataSources =
         ImmutableList.of(systemCallLogDataSource, phoneLookupDataSource);
+    // PhoneLookupDataSource adds number attributes to the rows inserted by the system call log.
+    ImmutableSetMultimap<CallLogDataSource, CallLogDataSource> fillDependencies =
+        ImmutableSetMultimap.of(phoneLookupDataSource, systemCallLogDataSource);
     return new DataSources() {
       @Override
       public SystemCallLogDataSource getSystemCallLogDataSource() {
@@ -50,6 +55,11 @@ public abstract class CallLogModule {
       public ImmutableList<CallLogDataSource> getDataSourcesExcludingSystemCallLog() {
         return allDataSources.subList(1, allDataSources.size());
       }
+
+      @Override
+      public ImmutableSet<CallLogDataSource> getFillDependencies(CallLogDataSource dataSource) {
+        return fillDependencies.get(dataSource);
+      }
     };
   }
 }
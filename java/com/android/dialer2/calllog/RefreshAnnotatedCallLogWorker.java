@@ -18,6 +18,7 @@ package com.android.dialer2.calllog;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.util.ArrayMap;
 import com.android.dialer2.calllog.constants.SharedPrefKeys;
 import com.android.dialer2.calllog.database.MutationApplier;
 import com.android.dialer2.calllog.datasources.CallLogDataSource;
@@ -40,6 +41,7 @@ import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
@@ -168,50 +170,75 @@ public class RefreshAnnotatedCallLogWorker {
   }
 
   private ListenableFuture<RefreshResult> rebuild(boolean isBuilt) {
-    CallLogMutations mutations = new CallLogMutations();
-
-    // Start by filling the data sources--the system call log data source must go first!
-    CallLogDataSource systemCallLogDataSource = dataSources.getSystemCallLogDataSource();
-    ListenableFuture<Void> fillFuture = systemCallLogDataSource.fill(appContext, mutations);
-    String systemEventName = eventNameForFill(systemCallLogDataSource, isBuilt);
-    futureTimer.applyTiming(fillFuture, systemEventName);
-
-    // After the system call log data source is filled, call fill sequentially on each remaining
-    // data source. This must be done sequentially because mutations are not threadsafe and are
-    // passed from source to source.
-    for (CallLogDataSource dataSource : dataSources.getDataSourcesExcludingSystemCallLog()) {
-      fillFuture =
+    // Fill each data source on its own copy of the mutations as soon as the data sources it depends
+    // on are filled, starting from their mutations. Data sources which don't depend on each other
+    // run concurrently.
+    Map<CallLogDataSource, ListenableFuture<CallLogMutations>> shardFutures = new ArrayMap<>();
+    List<ListenableFuture<CallLogMutations>> allShardFutures = new ArrayList<>();
+    for (CallLogDataSource dataSource : dataSources.getDataSourcesIncludingSystemCallLog()) {
+      List<ListenableFuture<CallLogMutations>> dependencyFutures = new ArrayList<>();
+      for (CallLogDataSource dependency : dataSources.getFillDependencies(dataSource)) {
+        dependencyFutures.add(
+            Preconditions.checkNotNull(
+                shardFutures.get(dependency),
+                "%s must come after its dependency %s",
+                dataSource,
+                dependency));
+      }
+      ListenableFuture<CallLogMutations> shardFuture =
           Futures.transformAsync(
-              fillFuture,
-              unused -> {
-                ListenableFuture<Void> dataSourceFuture = dataSource.fill(appContext, mutations);
+              Futures.allAsList(dependencyFutures),
+              dependencyShards -> {
+                CallLogMutations shard = new CallLogMutations();
+                for (CallLogMutations dependencyShard : dependencyShards) {
+                  shard.merge(dependencyShard);
+                }
+                ListenableFuture<Void> dataSourceFuture = dataSource.fill(appContext, shard);
                 String eventName = eventNameForFill(dataSource, isBuilt);
                 futureTimer.applyTiming(dataSourceFuture, eventName);
-                return dataSourceFuture;
+                return Futures.transform(
+                    dataSourceFuture, unused -> shard, MoreExecutors.directExecutor());
               },
               lightweightExecutorService);
+      shardFutures.put(dataSource, shardFuture);
+      allShardFutures.add(shardFuture);
     }
 
+    // Merge the shards in the order of the data sources, so that the result doesn't depend on which
+    // data source finished first. Shards already contain the mutations of their dependencies, which
+    // come earlier and are overridden by them.
+    ListenableFuture<CallLogMutations> fillFuture =
+        Futures.transform(
+            Futures.allAsList(allShardFutures),
+            shards -> {
+              CallLogMutations mutations = new CallLogMutations();
+              for (CallLogMutations shard : shards) {
+                mutations.merge(shard);
+              }
+              return mutations;
+            },
+            lightweightExecutorService);
+
     futureTimer.applyTiming(fillFuture, eventNameForOverallFill(isBuilt));
 
-    // After all data sources are filled, apply mutations (at this point "fillFuture" is the result
-    // of filling the last data source).
-    ListenableFuture<Void> applyMutationsFuture =
+    // After all data sources are filled, apply mutations.
+    ListenableFuture<CallLogMutations> applyMutationsFuture =
         Futures.transformAsync(
             fillFuture,
-            unused -> {
+            mutations -> {
               ListenableFuture<Void> mutationApplierFuture =
                   mutationApplier.applyToDatabase(mutations, appContext);
               futureTimer.applyTiming(mutationApplierFuture, eventNameForApplyMutations(isBuilt));
-              return mutationApplierFuture;
+              return Futures.transform(
+                  mutationApplierFuture, unused -> mutations, MoreExecutors.directExecutor());
             },
             lightweightExecutorService);
 
     // After mutations applied, call onSuccessfulFill for each data source (in parallel).
-    ListenableFuture<List<Void>> onSuccessfulFillFuture =
+    ListenableFuture<CallLogMutations> onSuccessfulFillFuture =
         Futures.transformAsync(
             applyMutationsFuture,
-            unused -> {
+            mutations -> {
               List<ListenableFuture<Void>> onSuccessfulFillFutures = new ArrayList<>();
               for (CallLogDataSource dataSource :
                   dataSources.getDataSourcesIncludingSystemCallLog()) {
@@ -222,14 +249,15 @@ public class RefreshAnnotatedCallLogWorker {
               }
               ListenableFuture<List<Void>> allFutures = Futures.allAsList(onSuccessfulFillFutures);
               futureTimer.applyTiming(allFutures, eventNameForOverallOnSuccessfulFill(isBuilt));
-              return allFutures;
+              return Futures.transform(
+                  allFutures, unused -> mutations, MoreExecutors.directExecutor());
             },
             lightweightExecutorService);
 
     // After onSuccessfulFill is called for every data source, write the shared pref.
     return Futures.transform(
         onSuccessfulFillFuture,
-        unused -> {
+        mutations -> {
           sharedPreferences.edit().putBoolean(SharedPrefKeys.FORCE_REBUILD, false).apply();
           callLogState.markBuilt();
           return mutations.isEmpty()
@@ -25,22 +25,30 @@ import android.content.ContentValues;
 import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.os.Build;
 import android.provider.CallLog.Calls;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import android.text.TextUtils;
+import android.util.ArrayMap;
 import com.android.dialer2.calllog.database.contract.AnnotatedCallLogContract;
 import com.android.dialer2.calllog.database.contract.AnnotatedCallLogContract.AnnotatedCallLog;
 import com.android.dialer2.calllog.database.contract.AnnotatedCallLogContract.CoalescedAnnotatedCallLog;
+import com.android.dialer2.calllog.datasources.CallLogMutations;
 import com.android.dialer2.common.Assert;
 import com.android.dialer2.common.LogUtil;
 import com.android.dialer2.metrics.Metrics;
 import com.android.dialer2.metrics.MetricsComponent;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Map;
 
 /** {@link ContentProvider} for the annotated call log. */
 public class AnnotatedCallLogContentProvider extends ContentProvider {
@@ -52,6 +60,12 @@ public class AnnotatedCallLogContentProvider extends ContentProvider {
    */
   private static final int MAX_ROWS = 999;
 
+  /**
+   * Number of rows {@link #applyMutations(CallLogMutations)} writes per transaction, so that readers
+   * aren't locked out for the whole initial build of the annotated call log.
+   */
+  private static final int APPLY_MUTATIONS_CHUNK_SIZE = 200;
+
   private static final int ANNOTATED_CALL_LOG_TABLE_CODE = 1;
   private static final int ANNOTATED_CALL_LOG_TABLE_ID_CODE = 2;
   private static final int ANNOTATED_CALL_LOG_TABLE_DISTINCT_NUMBER_CODE = 3;
@@ -80,6 +94,12 @@ public class AnnotatedCallLogContentProvider extends ContentProvider {
 
   private final ThreadLocal<Boolean> applyingBatch = new ThreadLocal<>();
 
+  /** Timestamps of the rows changed by the current write, whose groups need to be rebuilt. */
+  private final ThreadLocal<ChangedTimestamps> changedTimestamps = new ThreadLocal<>();
+
+  /** Whether {@link CoalescedAnnotatedCallLog} has been checked to be populated. */
+  private volatile boolean coalescedRowsPopulated;
+
   /** Ensures that only a single notification is generated from {@link #applyBatch(ArrayList)}. */
   private boolean isApplyingBatch() {
     return applyingBatch.get() != null && applyingBatch.get();
@@ -155,25 +175,32 @@ public class AnnotatedCallLogContentProvider extends ContentProvider {
         Assert.checkArgument(
             selectionArgs == null, "selection args not supported for coalesced call log");
         Assert.checkArgument(sortOrder == null, "sort order not supported for coalesced call log");
-        MetricsComponent.get(getContext()).metrics().startTimer(Metrics.NEW_CALL_LOG_COALESCE);
-        try (Cursor allAnnotatedCallLogRows =
+        String limit = uri.getQueryParameter(CoalescedAnnotatedCallLog.LIMIT_PARAMETER);
+        Assert.checkArgument(
+            limit == null || (!limit.isEmpty() && TextUtils.isDigitsOnly(limit)),
+            "invalid limit: %s",
+            limit);
+        String offset = uri.getQueryParameter(CoalescedAnnotatedCallLog.OFFSET_PARAMETER);
+        Assert.checkArgument(
+            offset == null
+                || (limit != null && !offset.isEmpty() && TextUtils.isDigitsOnly(offset)),
+            "invalid offset: %s",
+            offset);
+        if (offset != null) {
+          limit = offset + "," + limit;
+        }
+        populateCoalescedRowsIfNeeded();
+        queryBuilder.setTables(CoalescedAnnotatedCallLog.TABLE);
+        cursor =
             queryBuilder.query(
-                db,
-                null,
-                String.format("%s != ?", CoalescedAnnotatedCallLog.CALL_TYPE),
-                new String[] {Integer.toString(Calls.VOICEMAIL_TYPE)},
-                null,
-                null,
-                AnnotatedCallLog.TIMESTAMP + " DESC")) {
-          Cursor coalescedRows =
-              CallLogDatabaseComponent.get(getContext())
-                  .coalescer()
-                  .coalesce(allAnnotatedCallLogRows);
-          coalescedRows.setNotificationUri(
+                db, projection, null, null, null, null, Coalescer.NEWEST_FIRST_ORDER, limit);
+        if (cursor != null) {
+          cursor.setNotificationUri(
               getContext().getContentResolver(), CoalescedAnnotatedCallLog.CONTENT_URI);
-          MetricsComponent.get(getContext()).metrics().stopTimer(Metrics.NEW_CALL_LOG_COALESCE);
-          return coalescedRows;
+        } else {
+          LogUtil.w("AnnotatedCallLogContentProvider.query", "cursor was null");
         }
+        return cursor;
       default:
         throw new IllegalArgumentException("Unknown uri: " + uri);
     }
@@ -217,7 +244,17 @@ public class AnnotatedCallLogContentProvider extends ContentProvider {
       default:
         throw new IllegalArgumentException("Unknown uri: " + uri);
     }
-    long id = database.insert(AnnotatedCallLog.TABLE, null, values);
+    long id;
+    beginWrite(database);
+    try {
+      id = database.insert(AnnotatedCallLog.TABLE, null, values);
+      if (id >= 0) {
+        changedTimestamps.get().add(values.getAsLong(AnnotatedCallLog.TIMESTAMP));
+      }
+      commitWrite(database);
+    } finally {
+      endWrite(database);
+    }
     if (id < 0) {
       LogUtil.w(
           "AnnotatedCallLogContentProvider.insert",
@@ -255,7 +292,15 @@ public class AnnotatedCallLogContentProvider extends ContentProvider {
       default:
         throw new IllegalArgumentException("Unknown uri: " + uri);
     }
-    int rows = database.delete(AnnotatedCallLog.TABLE, selection, selectionArgs);
+    int rows;
+    beginWrite(database);
+    try {
+      addChangedTimestamps(database, selection, selectionArgs);
+      rows = database.delete(AnnotatedCallLog.TABLE, selection, selectionArgs);
+      commitWrite(database);
+    } finally {
+      endWrite(database);
+    }
     if (rows == 0) {
       LogUtil.w("AnnotatedCallLogContentProvider.delete", "no rows deleted");
       return rows;
@@ -279,7 +324,7 @@ public class AnnotatedCallLogContentProvider extends ContentProvider {
     int match = uriMatcher.match(uri);
     switch (match) {
       case ANNOTATED_CALL_LOG_TABLE_CODE:
-        int rows = database.update(AnnotatedCallLog.TABLE, values, selection, selectionArgs);
+        int rows = updateRows(database, values, selection, selectionArgs);
         if (rows == 0) {
           LogUtil.w("AnnotatedCallLogContentProvider.update", "no rows updated");
           return rows;
@@ -295,7 +340,7 @@ public class AnnotatedCallLogContentProvider extends ContentProvider {
         Assert.checkArgument(
             selectionArgs == null, "Do not specify selection args when updating by ID");
         selection = getSelectionWithId(ContentUris.parseId(uri));
-        rows = database.update(AnnotatedCallLog.TABLE, values, selection, selectionArgs);
+        rows = updateRows(database, values, selection, selectionArgs);
         if (rows == 0) {
           LogUtil.w("AnnotatedCallLogContentProvider.update", "no rows updated");
           return rows;
@@ -330,6 +375,7 @@ public class AnnotatedCallLogContentProvider extends ContentProvider {
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
     try {
       applyingBatch.set(true);
+      changedTimestamps.set(new ChangedTimestamps());
       database.beginTransaction();
       for (int i = 0; i < operations.size(); i++) {
         ContentProviderOperation operation = operations.get(i);
@@ -371,15 +417,297 @@ public class AnnotatedCallLogContentProvider extends ContentProvider {
         }
         results[i] = result;
       }
+      updateCoalescedRows(database);
       database.setTransactionSuccessful();
     } finally {
       applyingBatch.set(false);
+      changedTimestamps.remove();
       database.endTransaction();
     }
     notifyChange(AnnotatedCallLog.CONTENT_URI);
     return results;
   }
 
+  private int updateRows(
+      SQLiteDatabase database,
+      ContentValues values,
+      @Nullable String selection,
+      @Nullable String[] selectionArgs) {
+    beginWrite(database);
+    try {
+      addChangedTimestamps(database, selection, selectionArgs);
+      int rows = database.update(AnnotatedCallLog.TABLE, values, selection, selectionArgs);
+      if (rows > 0 && values.containsKey(AnnotatedCallLog.TIMESTAMP)) {
+        changedTimestamps.get().add(values.getAsLong(AnnotatedCallLog.TIMESTAMP));
+      }
+      commitWrite(database);
+      return rows;
+    } finally {
+      endWrite(database);
+    }
+  }
+
+  /**
+   * Starts a transaction for a write made outside of {@link #applyBatch(ArrayList)}, so that the
+   * coalesced rows are updated along with it.
+   */
+  private void beginWrite(SQLiteDatabase database) {
+    if (!isApplyingBatch()) {
+      database.beginTransaction();
+      changedTimestamps.set(new ChangedTimestamps());
+    }
+  }
+
+  private void commitWrite(SQLiteDatabase database) {
+    if (!isApplyingBatch()) {
+      updateCoalescedRows(database);
+      database.setTransactionSuccessful();
+    }
+  }
+
+  private void endWrite(SQLiteDatabase database) {
+    if (!isApplyingBatch()) {
+      changedTimestamps.remove();
+      database.endTransaction();
+    }
+  }
+
+  /** Records the timestamps of the rows about to be updated or deleted. */
+  @TargetApi(Build.VERSION_CODES.M) // Uses try-with-resources
+  private void addChangedTimestamps(
+      SQLiteDatabase database, @Nullable String selection, @Nullable String[] selectionArgs) {
+    try (Cursor cursor =
+        database.query(
+            AnnotatedCallLog.TABLE,
+            new String[] {AnnotatedCallLog.TIMESTAMP},
+            selection,
+            selectionArgs,
+            null,
+            null,
+            null)) {
+      while (cursor.moveToNext()) {
+        changedTimestamps.get().add(cursor.getLong(0));
+      }
+    }
+  }
+
+  private void updateCoalescedRows(SQLiteDatabase database) {
+    ChangedTimestamps timestamps = changedTimestamps.get();
+    if (timestamps.isEmpty()) {
+      return;
+    }
+    MetricsComponent.get(getContext()).metrics().startTimer(Metrics.NEW_CALL_LOG_COALESCE);
+    CallLogDatabaseComponent.get(getContext())
+        .coalescer()
+        .updateCoalescedRows(database, timestamps.newest, timestamps.oldest);
+    MetricsComponent.get(getContext()).metrics().stopTimer(Metrics.NEW_CALL_LOG_COALESCE);
+  }
+
+  /**
+   * Fills {@link CoalescedAnnotatedCallLog} if it is empty while the annotated call log isn't, as
+   * it is after upgrading from a database which didn't store coalesced rows.
+   */
+  private void populateCoalescedRowsIfNeeded() {
+    if (coalescedRowsPopulated) {
+      return;
+    }
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+    database.beginTransaction();
+    try {
+      if (DatabaseUtils.queryNumEntries(database, CoalescedAnnotatedCallLog.TABLE) == 0
+          && DatabaseUtils.queryNumEntries(
+                  database,
+                  AnnotatedCallLog.TABLE,
+                  AnnotatedCallLog.CALL_TYPE + " != ?",
+                  new String[] {Integer.toString(Calls.VOICEMAIL_TYPE)})
+              > 0) {
+        LogUtil.i(
+            "AnnotatedCallLogContentProvider.populateCoalescedRowsIfNeeded",
+            "coalescing all rows");
+        CallLogDatabaseComponent.get(getContext())
+            .coalescer()
+            .updateCoalescedRows(database, Long.MAX_VALUE, Long.MIN_VALUE);
+      }
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+    }
+    coalescedRowsPopulated = true;
+  }
+
+  /**
+   * Applies {@link CallLogMutations} straight to the database, which avoids building a {@link
+   * ContentProviderOperation} per row.
+   *
+   * <p>Rows are written with compiled statements in transactions of {@link
+   * #APPLY_MUTATIONS_CHUNK_SIZE} rows, each of which also updates the coalesced rows, so that other
+   * connections can get in between them. Inserts replace existing rows, so that the mutations can
+   * be applied again if a later transaction fails. A single notification is sent at the end.
+   */
+  @WorkerThread
+  void applyMutations(CallLogMutations mutations) {
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+    Map<String, SQLiteStatement> statements = new ArrayMap<>();
+    SQLiteStatement selectTimestamp =
+        database.compileStatement(
+            "SELECT "
+                + AnnotatedCallLog.TIMESTAMP
+                + " FROM "
+                + AnnotatedCallLog.TABLE
+                + " WHERE "
+                + AnnotatedCallLog._ID
+                + " = ?");
+    SQLiteStatement delete =
+        database.compileStatement(
+            "DELETE FROM " + AnnotatedCallLog.TABLE + " WHERE " + AnnotatedCallLog._ID + " = ?");
+    int rowsInTransaction = 0;
+    int rowsNotFound = 0;
+    try {
+      applyingBatch.set(true);
+      changedTimestamps.set(new ChangedTimestamps());
+      database.beginTransaction();
+
+      ArrayMap<Long, ContentValues> inserts = mutations.getInserts();
+      for (int i = 0; i < inserts.size(); i++) {
+        ContentValues values = inserts.valueAt(i);
+        SQLiteStatement insert = getInsertStatement(database, statements, values);
+        DatabaseUtils.bindObjectToProgram(insert, 1, inserts.keyAt(i));
+        bindValues(insert, values, 2);
+        insert.executeInsert();
+        changedTimestamps.get().add(values.getAsLong(AnnotatedCallLog.TIMESTAMP));
+        rowsInTransaction = commitChunkIfFull(database, rowsInTransaction + 1);
+      }
+
+      ArrayMap<Long, ContentValues> updates = mutations.getUpdates();
+      for (int i = 0; i < updates.size(); i++) {
+        long id = updates.keyAt(i);
+        ContentValues values = updates.valueAt(i);
+        if (addChangedTimestamp(selectTimestamp, id)) {
+          SQLiteStatement update = getUpdateStatement(database, statements, values);
+          bindValues(update, values, 1);
+          update.bindLong(values.size() + 1, id);
+          update.executeUpdateDelete();
+          if (values.containsKey(AnnotatedCallLog.TIMESTAMP)) {
+            changedTimestamps.get().add(values.getAsLong(AnnotatedCallLog.TIMESTAMP));
+          }
+        } else {
+          // See applyBatch, the row may have been cleaned up by inserts.
+          rowsNotFound++;
+        }
+        rowsInTransaction = commitChunkIfFull(database, rowsInTransaction + 1);
+      }
+
+      for (long id : mutations.getDeletes()) {
+        if (addChangedTimestamp(selectTimestamp, id)) {
+          delete.bindLong(1, id);
+          delete.executeUpdateDelete();
+        } else {
+          rowsNotFound++;
+        }
+        rowsInTransaction = commitChunkIfFull(database, rowsInTransaction + 1);
+      }
+
+      updateCoalescedRows(database);
+      database.setTransactionSuccessful();
+    } finally {
+      applyingBatch.set(false);
+      changedTimestamps.remove();
+      database.endTransaction();
+      selectTimestamp.close();
+      delete.close();
+      for (SQLiteStatement statement : statements.values()) {
+        statement.close();
+      }
+    }
+    if (rowsNotFound > 0) {
+      LogUtil.w(
+          "AnnotatedCallLogContentProvider.applyMutations",
+          "%d rows to update or delete not found, possibly because they got cleaned up",
+          rowsNotFound);
+    }
+    notifyChange(AnnotatedCallLog.CONTENT_URI);
+  }
+
+  /**
+   * Commits the current transaction and starts a new one once it holds {@link
+   * #APPLY_MUTATIONS_CHUNK_SIZE} rows.
+   *
+   * @return the number of rows in the current transaction
+   */
+  private int commitChunkIfFull(SQLiteDatabase database, int rowsInTransaction) {
+    if (rowsInTransaction < APPLY_MUTATIONS_CHUNK_SIZE) {
+      return rowsInTransaction;
+    }
+    updateCoalescedRows(database);
+    database.setTransactionSuccessful();
+    database.endTransaction();
+    changedTimestamps.set(new ChangedTimestamps());
+    database.beginTransaction();
+    return 0;
+  }
+
+  /** Records the timestamp of a row about to be updated or deleted, returns false if it is gone. */
+  private boolean addChangedTimestamp(SQLiteStatement selectTimestamp, long id) {
+    selectTimestamp.bindLong(1, id);
+    try {
+      changedTimestamps.get().add(selectTimestamp.simpleQueryForLong());
+      return true;
+    } catch (SQLiteDoneException e) {
+      return false;
+    }
+  }
+
+  /** Returns a statement inserting the ID and then {@code values}, in their iteration order. */
+  private static SQLiteStatement getInsertStatement(
+      SQLiteDatabase database, Map<String, SQLiteStatement> statements, ContentValues values) {
+    StringBuilder columns = new StringBuilder(AnnotatedCallLog._ID);
+    StringBuilder parameters = new StringBuilder("?");
+    for (String column : values.keySet()) {
+      columns.append(',').append(column);
+      parameters.append(",?");
+    }
+    String sql =
+        "INSERT OR REPLACE INTO "
+            + AnnotatedCallLog.TABLE
+            + " ("
+            + columns
+            + ") VALUES ("
+            + parameters
+            + ")";
+    return getStatement(database, statements, sql);
+  }
+
+  /** Returns a statement updating {@code values}, in their iteration order, and then the ID. */
+  private static SQLiteStatement getUpdateStatement(
+      SQLiteDatabase database, Map<String, SQLiteStatement> statements, ContentValues values) {
+    StringBuilder sql = new StringBuilder("UPDATE ").append(AnnotatedCallLog.TABLE).append(" SET ");
+    boolean first = true;
+    for (String column : values.keySet()) {
+      sql.append(first ? "" : ",").append(column).append("=?");
+      first = false;
+    }
+    sql.append(" WHERE ").append(AnnotatedCallLog._ID).append("=?");
+    return getStatement(database, statements, sql.toString());
+  }
+
+  /** Rows of a data source have the same columns, so few statements are ever compiled. */
+  private static SQLiteStatement getStatement(
+      SQLiteDatabase database, Map<String, SQLiteStatement> statements, String sql) {
+    SQLiteStatement statement = statements.get(sql);
+    if (statement == null) {
+      statement = database.compileStatement(sql);
+      statements.put(sql, statement);
+    }
+    return statement;
+  }
+
+  private static void bindValues(SQLiteStatement statement, ContentValues values, int firstIndex) {
+    int index = firstIndex;
+    for (String column : values.keySet()) {
+      DatabaseUtils.bindObjectToProgram(statement, index++, values.get(column));
+    }
+  }
+
   private String getSelectionWithId(long id) {
     return AnnotatedCallLog._ID + "=" + id;
   }
@@ -387,8 +715,24 @@ public class AnnotatedCallLogContentProvider extends ContentProvider {
   private void notifyChange(Uri uri) {
     getContext().getContentResolver().notifyChange(uri, null);
     // Any time the annotated call log changes, we need to also notify observers of the
-    // CoalescedAnnotatedCallLog, since that is just a massaged in-memory view of the real annotated
-    // call log table.
+    // CoalescedAnnotatedCallLog, since it is updated along with the real annotated call log table.
     getContext().getContentResolver().notifyChange(CoalescedAnnotatedCallLog.CONTENT_URI, null);
   }
+
+  /** Range of the timestamps of changed rows. */
+  private static final class ChangedTimestamps {
+    private long newest = Long.MIN_VALUE;
+    private long oldest = Long.MAX_VALUE;
+
+    void add(@Nullable Long timestamp) {
+      if (timestamp != null) {
+        newest = Math.max(newest, timestamp);
+        oldest = Math.min(oldest, timestamp);
+      }
+    }
+
+    boolean isEmpty() {
+      return newest < oldest;
+    }
+  }
 }
@@ -21,15 +21,25 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.provider.CallLog.Calls;
 import com.android.dialer2.calllog.database.contract.AnnotatedCallLogContract.AnnotatedCallLog;
+import com.android.dialer2.calllog.database.contract.AnnotatedCallLogContract.CoalescedAnnotatedCallLog;
 import com.android.dialer2.common.LogUtil;
 import java.util.Locale;
 
 /** {@link SQLiteOpenHelper} for the AnnotatedCallLog database. */
 class AnnotatedCallLogDatabaseHelper extends SQLiteOpenHelper {
+
+  /**
+   * Timestamp of the oldest row in a {@link CoalescedAnnotatedCallLog} row, which is not part of
+   * the contract.
+   *
+   * <p>Type: INTEGER (long)
+   */
+  static final String COALESCED_OLDEST_TIMESTAMP = "oldest_timestamp";
+
   private final int maxRows;
 
   AnnotatedCallLogDatabaseHelper(Context appContext, int maxRows) {
-    super(appContext, "annotated_call_log.db", null, 1);
+    super(appContext, "annotated_call_log.db", null, 2);
     this.maxRows = maxRows;
   }
 
@@ -108,6 +118,54 @@ class AnnotatedCallLogDatabaseHelper extends SQLiteOpenHelper {
           + AnnotatedCallLog.NUMBER
           + ");";
 
+  private static final String CREATE_INDEX_ON_TIMESTAMP_SQL =
+      "create index timestamp_index on "
+          + AnnotatedCallLog.TABLE
+          + " ("
+          + AnnotatedCallLog.TIMESTAMP
+          + ");";
+
+  /**
+   * Materialized {@link CoalescedAnnotatedCallLog}, kept up to date by {@link Coalescer} whenever
+   * the annotated call log changes.
+   */
+  private static final String CREATE_COALESCED_TABLE_SQL =
+      "create table if not exists "
+          + CoalescedAnnotatedCallLog.TABLE
+          + " ("
+          + (CoalescedAnnotatedCallLog._ID + " integer primary key, ")
+          + (CoalescedAnnotatedCallLog.TIMESTAMP + " integer, ")
+          + (CoalescedAnnotatedCallLog.NUMBER + " blob, ")
+          + (CoalescedAnnotatedCallLog.FORMATTED_NUMBER + " text, ")
+          + (CoalescedAnnotatedCallLog.NUMBER_PRESENTATION + " integer, ")
+          + (CoalescedAnnotatedCallLog.IS_READ + " integer, ")
+          + (CoalescedAnnotatedCallLog.NEW + " integer, ")
+          + (CoalescedAnnotatedCallLog.GEOCODED_LOCATION + " text, ")
+          + (CoalescedAnnotatedCallLog.PHONE_ACCOUNT_COMPONENT_NAME + " text, ")
+          + (CoalescedAnnotatedCallLog.PHONE_ACCOUNT_ID + " text, ")
+          + (CoalescedAnnotatedCallLog.PHONE_ACCOUNT_LABEL + " text, ")
+          + (CoalescedAnnotatedCallLog.PHONE_ACCOUNT_COLOR + " integer, ")
+          + (CoalescedAnnotatedCallLog.FEATURES + " integer, ")
+          + (CoalescedAnnotatedCallLog.NUMBER_ATTRIBUTES + " blob, ")
+          + (CoalescedAnnotatedCallLog.CALL_TYPE + " integer, ")
+          + (CoalescedAnnotatedCallLog.COALESCED_IDS + " blob, ")
+          + (COALESCED_OLDEST_TIMESTAMP + " integer")
+          + ");";
+
+  private static final String CREATE_INDEX_ON_COALESCED_TIMESTAMP_SQL =
+      "create index coalesced_timestamp_index on "
+          + CoalescedAnnotatedCallLog.TABLE
+          + " ("
+          + CoalescedAnnotatedCallLog.TIMESTAMP
+          + ");";
+
+  private static final String CREATE_INDEX_ON_COALESCED_OLDEST_TIMESTAMP_SQL =
+      "create index coalesced_oldest_timestamp_index on "
+          + CoalescedAnnotatedCallLog.TABLE
+          + " ("
+          + COALESCED_OLDEST_TIMESTAMP
+          + ");";
+
   @Override
   public void onCreate(SQLiteDatabase db) {
     LogUtil.enterBlock("AnnotatedCallLogDatabaseHelper.onCreate");
@@ -116,6 +174,7 @@ class AnnotatedCallLogDatabaseHelper extends SQLiteOpenHelper {
     db.execSQL(String.format(Locale.US, CREATE_TRIGGER_SQL, maxRows, maxRows));
     db.execSQL(CREATE_INDEX_ON_CALL_TYPE_SQL);
     db.execSQL(CREATE_INDEX_ON_NUMBER_SQL);
+    createCoalescedTable(db);
     // TODO(zachh): Consider logging impression.
     LogUtil.i(
         "AnnotatedCallLogDatabaseHelper.onCreate",
@@ -124,5 +183,17 @@ class AnnotatedCallLogDatabaseHelper extends SQLiteOpenHelper {
   }
 
   @Override
-  public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {}
+  public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+    if (oldVersion < 2) {
+      // The provider fills the new table the first time it is queried.
+      createCoalescedTable(db);
+    }
+  }
+
+  private static void createCoalescedTable(SQLiteDatabase db) {
+    db.execSQL(CREATE_INDEX_ON_TIMESTAMP_SQL);
+    db.execSQL(CREATE_COALESCED_TABLE_SQL);
+    db.execSQL(CREATE_INDEX_ON_COALESCED_TIMESTAMP_SQL);
+    db.execSQL(CREATE_INDEX_ON_COALESCED_OLDEST_TIMESTAMP_SQL);
+  }
 }
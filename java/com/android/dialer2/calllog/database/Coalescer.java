@@ -15,12 +15,17 @@
  */
 package com.android.dialer2.calllog.database;
 
+import android.annotation.TargetApi;
 import android.content.ContentValues;
 import android.database.Cursor;
-import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.provider.CallLog.Calls;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.annotation.WorkerThread;
 import android.telecom.PhoneAccountHandle;
+import android.text.TextUtils;
 import com.android.dialer2.CoalescedIds;
 import com.android.dialer2.DialerPhoneNumber;
 import com.android.dialer2.calllog.database.contract.AnnotatedCallLogContract.AnnotatedCallLog;
@@ -35,18 +40,36 @@ import com.google.common.base.Preconditions;
 import com.google.i18n.phonenumbers.PhoneNumberUtil;
 import com.google.protobuf.InvalidProtocolBufferException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 import java.util.Objects;
 import javax.inject.Inject;
 
 /**
- * Coalesces call log rows by combining some adjacent rows.
+ * Coalesces call log rows by combining some adjacent rows, maintaining the {@link
+ * CoalescedAnnotatedCallLog} table.
  *
  * <p>Applies the logic that determines which adjacent rows should be coalesced, and then delegates
  * to each data source to determine how individual columns should be aggregated.
  */
 public class Coalescer {
+
+  /** Order of both tables, ties are broken by ID so that groups are always formed the same way. */
+  static final String NEWEST_FIRST_ORDER =
+      AnnotatedCallLog.TIMESTAMP + " DESC, " + AnnotatedCallLog._ID + " DESC";
+
+  private static final String NOT_VOICEMAIL_SELECTION = AnnotatedCallLog.CALL_TYPE + " != ?";
+
+  /** Rows sorting at or after the row with the given timestamp (twice) and ID. */
+  private static final String NOT_NEWER_THAN_SELECTION =
+      "("
+          + AnnotatedCallLog.TIMESTAMP
+          + " < ? OR ("
+          + AnnotatedCallLog.TIMESTAMP
+          + " = ? AND "
+          + AnnotatedCallLog._ID
+          + " <= ?))";
+
   private final DataSources dataSources;
 
   @Inject
@@ -55,71 +78,260 @@ public class Coalescer {
   }
 
   /**
-   * Reads the entire {@link AnnotatedCallLog} database into memory from the provided {@code
-   * allAnnotatedCallLog} parameter and then builds and returns a new {@link MatrixCursor} which is
-   * the result of combining adjacent rows which should be collapsed for display purposes.
+   * Rebuilds the {@link CoalescedAnnotatedCallLog} rows which may have changed after {@link
+   * AnnotatedCallLog} rows with timestamps between {@code oldestTimestamp} and {@code
+   * newestTimestamp} were inserted, updated or deleted.
    *
-   * @param allAnnotatedCallLogRowsSortedByTimestampDesc all {@link AnnotatedCallLog} rows, sorted
-   *     by timestamp descending
-   * @return a new {@link MatrixCursor} containing the {@link CoalescedAnnotatedCallLog} rows to
-   *     display
+   * <p>Rows are grouped newest first, and whether a row joins a group only depends on the row and
+   * the first row of the group. Grouping therefore starts again from the group before the newest
+   * change, which changed rows may now join, and stops as soon as a group starts at the same row as
+   * before and all changes are newer than it, as everything from there on is unchanged.
+   *
+   * <p>Must be called in the transaction which changed the annotated call log, pass {@link
+   * Long#MAX_VALUE} and {@link Long#MIN_VALUE} to rebuild all rows.
    */
+  @TargetApi(Build.VERSION_CODES.M) // Uses try-with-resources
   @WorkerThread
-  @NonNull
-  Cursor coalesce(@NonNull Cursor allAnnotatedCallLogRowsSortedByTimestampDesc) {
+  void updateCoalescedRows(
+      @NonNull SQLiteDatabase database, long newestTimestamp, long oldestTimestamp) {
     Assert.isWorkerThread();
-
-    // Note: This method relies on rowsShouldBeCombined to determine which rows should be combined,
-    // but delegates to data sources to actually aggregate column values.
+    Assert.checkState(database.inTransaction());
 
     DialerPhoneNumberUtil dialerPhoneNumberUtil =
         new DialerPhoneNumberUtil(PhoneNumberUtil.getInstance());
 
-    MatrixCursor allCoalescedRowsMatrixCursor =
-        new MatrixCursor(
-            CoalescedAnnotatedCallLog.ALL_COLUMNS,
-            Assert.isNotNull(allAnnotatedCallLogRowsSortedByTimestampDesc).getCount());
-
-    if (!allAnnotatedCallLogRowsSortedByTimestampDesc.moveToFirst()) {
-      return allCoalescedRowsMatrixCursor;
+    regroup(database, dialerPhoneNumberUtil, newestTimestamp, oldestTimestamp);
+
+    // Inserting into a full annotated call log deletes its oldest rows, which may belong to any
+    // group reaching back as far as the oldest remaining row. Timestamps can tie, so this includes
+    // the groups ending at that row.
+    Long oldestRowTimestamp = null;
+    try (Cursor cursor =
+        database.query(
+            AnnotatedCallLog.TABLE,
+            new String[] {"min(" + AnnotatedCallLog.TIMESTAMP + ")"},
+            NOT_VOICEMAIL_SELECTION,
+            new String[] {Integer.toString(Calls.VOICEMAIL_TYPE)},
+            null,
+            null,
+            null)) {
+      if (cursor.moveToFirst() && !cursor.isNull(0)) {
+        oldestRowTimestamp = cursor.getLong(0);
+      }
     }
+    if (oldestRowTimestamp == null) {
+      database.delete(CoalescedAnnotatedCallLog.TABLE, null, null);
+      return;
+    }
+    try (Cursor cursor =
+        database.query(
+            CoalescedAnnotatedCallLog.TABLE,
+            new String[] {CoalescedAnnotatedCallLog.TIMESTAMP},
+            AnnotatedCallLogDatabaseHelper.COALESCED_OLDEST_TIMESTAMP + " <= ?",
+            new String[] {Long.toString(oldestRowTimestamp)},
+            null,
+            null,
+            NEWEST_FIRST_ORDER,
+            "1")) {
+      if (cursor.moveToFirst()) {
+        regroup(database, dialerPhoneNumberUtil, cursor.getLong(0), Long.MIN_VALUE);
+      }
+    }
+  }
 
-    int coalescedRowId = 0;
-    List<ContentValues> currentRowGroup = new ArrayList<>();
-
-    ContentValues firstRow = cursorRowToContentValues(allAnnotatedCallLogRowsSortedByTimestampDesc);
-    currentRowGroup.add(firstRow);
+  @TargetApi(Build.VERSION_CODES.M) // Uses try-with-resources
+  private void regroup(
+      SQLiteDatabase database,
+      DialerPhoneNumberUtil dialerPhoneNumberUtil,
+      long newestTimestamp,
+      long oldestTimestamp) {
+    // Find the group before the newest change, or start from the newest row if there is none.
+    String startSelection = null;
+    String[] startSelectionArgs = null;
+    try (Cursor cursor =
+        database.query(
+            CoalescedAnnotatedCallLog.TABLE,
+            new String[] {CoalescedAnnotatedCallLog._ID, CoalescedAnnotatedCallLog.TIMESTAMP},
+            CoalescedAnnotatedCallLog.TIMESTAMP + " > ?",
+            new String[] {Long.toString(newestTimestamp)},
+            null,
+            null,
+            CoalescedAnnotatedCallLog.TIMESTAMP + " ASC, " + CoalescedAnnotatedCallLog._ID + " ASC",
+            "1")) {
+      if (cursor.moveToFirst()) {
+        String timestamp = Long.toString(cursor.getLong(1));
+        startSelection = NOT_NEWER_THAN_SELECTION;
+        startSelectionArgs = new String[] {timestamp, timestamp, Long.toString(cursor.getLong(0))};
+      }
+    }
 
-    while (!currentRowGroup.isEmpty()) {
-      // Group consecutive rows
-      ContentValues firstRowInGroup = currentRowGroup.get(0);
-      ContentValues currentRow = null;
-      while (allAnnotatedCallLogRowsSortedByTimestampDesc.moveToNext()) {
-        currentRow = cursorRowToContentValues(allAnnotatedCallLogRowsSortedByTimestampDesc);
+    String selection = NOT_VOICEMAIL_SELECTION;
+    List<String> selectionArgs = new ArrayList<>();
+    selectionArgs.add(Integer.toString(Calls.VOICEMAIL_TYPE));
+    if (startSelection != null) {
+      selection += " AND " + startSelection;
+      selectionArgs.addAll(Arrays.asList(startSelectionArgs));
+    }
 
-        if (!rowsShouldBeCombined(dialerPhoneNumberUtil, firstRowInGroup, currentRow)) {
+    List<Long> staleGroupIds = new ArrayList<>();
+    List<ContentValues> newGroups = new ArrayList<>();
+    try (Cursor rows =
+            database.query(
+                AnnotatedCallLog.TABLE,
+                null,
+                selection,
+                selectionArgs.toArray(new String[0]),
+                null,
+                null,
+                NEWEST_FIRST_ORDER);
+        Cursor oldGroups =
+            database.query(
+                CoalescedAnnotatedCallLog.TABLE,
+                new String[] {CoalescedAnnotatedCallLog._ID, CoalescedAnnotatedCallLog.TIMESTAMP},
+                startSelection,
+                startSelectionArgs,
+                null,
+                null,
+                NEWEST_FIRST_ORDER)) {
+      boolean hasOldGroup = oldGroups.moveToFirst();
+      GroupingColumns columns = new GroupingColumns(rows);
+      GroupingColumns.Values groupValues = new GroupingColumns.Values();
+      GroupingColumns.Values rowValues = new GroupingColumns.Values();
+      boolean hasRow = rows.moveToFirst();
+      if (hasRow) {
+        columns.read(rows, rowValues);
+      }
+      while (hasRow) {
+        long id = rowValues.id;
+        long timestamp = rowValues.timestamp;
+
+        // Old groups starting before this row have been regrouped or are gone.
+        while (hasOldGroup && isNewer(oldGroups.getLong(1), oldGroups.getLong(0), timestamp, id)) {
+          staleGroupIds.add(oldGroups.getLong(0));
+          hasOldGroup = oldGroups.moveToNext();
+        }
+        if (hasOldGroup
+            && timestamp < oldestTimestamp
+            && oldGroups.getLong(0) == id
+            && oldGroups.getLong(1) == timestamp) {
           break;
         }
 
-        currentRowGroup.add(currentRow);
+        // Group consecutive rows, only the rows which are coalesced are read in full.
+        GroupingColumns.Values firstRowValues = rowValues;
+        rowValues = groupValues;
+        groupValues = firstRowValues;
+        List<ContentValues> currentRowGroup = new ArrayList<>();
+        currentRowGroup.add(cursorRowToContentValues(rows));
+        hasRow = false;
+        while (rows.moveToNext()) {
+          columns.read(rows, rowValues);
+          if (!rowsShouldBeCombined(dialerPhoneNumberUtil, groupValues, rowValues)) {
+            hasRow = true;
+            break;
+          }
+          currentRowGroup.add(cursorRowToContentValues(rows));
+        }
+        newGroups.add(coalesceRows(currentRowGroup));
       }
 
-      // Coalesce the group into a single row
-      ContentValues coalescedRow = coalesceRowsForAllDataSources(currentRowGroup);
-      coalescedRow.put(
-          CoalescedAnnotatedCallLog.COALESCED_IDS, getCoalescedIds(currentRowGroup).toByteArray());
-      addContentValuesToMatrixCursor(coalescedRow, allCoalescedRowsMatrixCursor, coalescedRowId++);
+      if (!hasRow) {
+        // Reached the end of the annotated call log, any remaining old groups are gone.
+        for (; hasOldGroup; hasOldGroup = oldGroups.moveToNext()) {
+          staleGroupIds.add(oldGroups.getLong(0));
+        }
+      }
+    }
 
-      // Clear the current group after the rows are coalesced.
-      currentRowGroup.clear();
+    for (long id : staleGroupIds) {
+      database.delete(
+          CoalescedAnnotatedCallLog.TABLE,
+          CoalescedAnnotatedCallLog._ID + " = ?",
+          new String[] {Long.toString(id)});
+    }
+    for (ContentValues group : newGroups) {
+      database.insertWithOnConflict(
+          CoalescedAnnotatedCallLog.TABLE, null, group, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+  }
 
-      // Add the first of the remaining rows to the current group.
-      if (!allAnnotatedCallLogRowsSortedByTimestampDesc.isAfterLast()) {
-        currentRowGroup.add(currentRow);
-      }
+  /** Whether the row at ({@code timestamp1}, {@code id1}) sorts before the other one. */
+  private static boolean isNewer(long timestamp1, long id1, long timestamp2, long id2) {
+    return timestamp1 > timestamp2 || (timestamp1 == timestamp2 && id1 > id2);
+  }
+
+  /**
+   * @param individualRows {@link AnnotatedCallLog} rows sorted by timestamp descending
+   * @return the {@link CoalescedAnnotatedCallLog} row, identified by the newest of the rows
+   */
+  private ContentValues coalesceRows(List<ContentValues> individualRows) {
+    ContentValues coalescedRow = coalesceRowsForAllDataSources(individualRows);
+    coalescedRow.put(
+        CoalescedAnnotatedCallLog._ID, individualRows.get(0).getAsLong(AnnotatedCallLog._ID));
+    coalescedRow.put(
+        CoalescedAnnotatedCallLog.COALESCED_IDS, getCoalescedIds(individualRows).toByteArray());
+    coalescedRow.put(
+        AnnotatedCallLogDatabaseHelper.COALESCED_OLDEST_TIMESTAMP,
+        individualRows.get(individualRows.size() - 1).getAsLong(AnnotatedCallLog.TIMESTAMP));
+    return coalescedRow;
+  }
+
+  /** Reads the columns deciding which rows are combined straight from a cursor. */
+  private static final class GroupingColumns {
+    private final int idIndex;
+    private final int timestampIndex;
+    private final int numberIndex;
+    private final int numberPresentationIndex;
+    private final int phoneAccountComponentNameIndex;
+    private final int phoneAccountIdIndex;
+    private final int featuresIndex;
+
+    GroupingColumns(Cursor cursor) {
+      idIndex = cursor.getColumnIndexOrThrow(AnnotatedCallLog._ID);
+      timestampIndex = cursor.getColumnIndexOrThrow(AnnotatedCallLog.TIMESTAMP);
+      numberIndex = cursor.getColumnIndexOrThrow(AnnotatedCallLog.NUMBER);
+      numberPresentationIndex = cursor.getColumnIndexOrThrow(AnnotatedCallLog.NUMBER_PRESENTATION);
+      phoneAccountComponentNameIndex =
+          cursor.getColumnIndexOrThrow(AnnotatedCallLog.PHONE_ACCOUNT_COMPONENT_NAME);
+      phoneAccountIdIndex = cursor.getColumnIndexOrThrow(AnnotatedCallLog.PHONE_ACCOUNT_ID);
+      featuresIndex = cursor.getColumnIndexOrThrow(AnnotatedCallLog.FEATURES);
+    }
+
+    /** Reads the current row of {@code cursor} into {@code values}, which are reused. */
+    void read(Cursor cursor, Values values) {
+      values.id = cursor.getLong(idIndex);
+      values.timestamp = cursor.getLong(timestampIndex);
+      values.numberBytes = cursor.getBlob(numberIndex);
+      values.number = null;
+      values.numberPresentation = cursor.getInt(numberPresentationIndex);
+      values.phoneAccountComponentName = cursor.getString(phoneAccountComponentNameIndex);
+      values.phoneAccountId = cursor.getString(phoneAccountIdIndex);
+      values.features = cursor.getInt(featuresIndex);
     }
 
-    return allCoalescedRowsMatrixCursor;
+    /** The grouping columns of one row. */
+    static final class Values {
+      long id;
+      long timestamp;
+      @Nullable byte[] numberBytes;
+      @Nullable private DialerPhoneNumber number;
+      int numberPresentation;
+      @Nullable String phoneAccountComponentName;
+      @Nullable String phoneAccountId;
+      int features;
+
+      /** Parses the number once, the first row of a group is compared to every later row. */
+      DialerPhoneNumber getNumber() {
+        if (number == null) {
+          try {
+            number = DialerPhoneNumber.parseFrom(Assert.isNotNull(numberBytes));
+          } catch (InvalidProtocolBufferException e) {
+            throw Assert.createAssertionFailException("error parsing DialerPhoneNumber proto", e);
+          }
+        }
+        return number;
+      }
+    }
   }
 
   private static ContentValues cursorRowToContentValues(Cursor cursor) {
@@ -137,68 +349,50 @@ public class Coalescer {
   }
 
   /**
-   * @param row1 a row from {@link AnnotatedCallLog}
-   * @param row2 a row from {@link AnnotatedCallLog}
+   * @param row1 the first row of a group from {@link AnnotatedCallLog}
+   * @param row2 a later row from {@link AnnotatedCallLog}
    */
   private static boolean rowsShouldBeCombined(
-      DialerPhoneNumberUtil dialerPhoneNumberUtil, ContentValues row1, ContentValues row2) {
-    // Don't combine rows which don't use the same phone account.
-    PhoneAccountHandle phoneAccount1 =
-        TelecomUtil.composePhoneAccountHandle(
-            row1.getAsString(AnnotatedCallLog.PHONE_ACCOUNT_COMPONENT_NAME),
-            row1.getAsString(AnnotatedCallLog.PHONE_ACCOUNT_ID));
-    PhoneAccountHandle phoneAccount2 =
-        TelecomUtil.composePhoneAccountHandle(
-            row2.getAsString(AnnotatedCallLog.PHONE_ACCOUNT_COMPONENT_NAME),
-            row2.getAsString(AnnotatedCallLog.PHONE_ACCOUNT_ID));
-
-    if (!Objects.equals(phoneAccount1, phoneAccount2)) {
-      return false;
+      DialerPhoneNumberUtil dialerPhoneNumberUtil,
+      GroupingColumns.Values row1,
+      GroupingColumns.Values row2) {
+    // Don't combine rows which don't use the same phone account. Identical columns always
+    // describe the same account, only compose handles to compare different spellings of it.
+    if (!TextUtils.equals(row1.phoneAccountComponentName, row2.phoneAccountComponentName)
+        || !TextUtils.equals(row1.phoneAccountId, row2.phoneAccountId)) {
+      PhoneAccountHandle phoneAccount1 =
+          TelecomUtil.composePhoneAccountHandle(
+              row1.phoneAccountComponentName, row1.phoneAccountId);
+      PhoneAccountHandle phoneAccount2 =
+          TelecomUtil.composePhoneAccountHandle(
+              row2.phoneAccountComponentName, row2.phoneAccountId);
+      if (!Objects.equals(phoneAccount1, phoneAccount2)) {
+        return false;
+      }
     }
 
-    if (!row1.getAsInteger(AnnotatedCallLog.NUMBER_PRESENTATION)
-        .equals(row2.getAsInteger(AnnotatedCallLog.NUMBER_PRESENTATION))) {
+    if (row1.numberPresentation != row2.numberPresentation) {
       return false;
     }
 
-    if (!meetsAssistedDialingCriteria(row1, row2)) {
+    // FEATURES_ASSISTED_DIALING should not be combined with calls that are
+    // !FEATURES_ASSISTED_DIALING
+    if ((row1.features & TelephonyManagerCompat.FEATURES_ASSISTED_DIALING)
+        != (row2.features & TelephonyManagerCompat.FEATURES_ASSISTED_DIALING)) {
       return false;
     }
 
-    DialerPhoneNumber number1;
-    DialerPhoneNumber number2;
-    try {
-      byte[] number1Bytes = row1.getAsByteArray(AnnotatedCallLog.NUMBER);
-      byte[] number2Bytes = row2.getAsByteArray(AnnotatedCallLog.NUMBER);
-
-      if (number1Bytes == null || number2Bytes == null) {
-        // Empty numbers should not be combined.
-        return false;
-      }
-
-      number1 = DialerPhoneNumber.parseFrom(number1Bytes);
-      number2 = DialerPhoneNumber.parseFrom(number2Bytes);
-    } catch (InvalidProtocolBufferException e) {
-      throw Assert.createAssertionFailException("error parsing DialerPhoneNumber proto", e);
+    if (row1.numberBytes == null || row2.numberBytes == null) {
+      // Empty numbers should not be combined.
+      return false;
     }
-    return dialerPhoneNumberUtil.isMatch(number1, number2);
-  }
 
-  /**
-   * Returns a boolean indicating whether or not FEATURES_ASSISTED_DIALING is mutually exclusive
-   * between two rows.
-   */
-  private static boolean meetsAssistedDialingCriteria(ContentValues row1, ContentValues row2) {
-    int row1Assisted =
-        row1.getAsInteger(AnnotatedCallLog.FEATURES)
-            & TelephonyManagerCompat.FEATURES_ASSISTED_DIALING;
-    int row2Assisted =
-        row2.getAsInteger(AnnotatedCallLog.FEATURES)
-            & TelephonyManagerCompat.FEATURES_ASSISTED_DIALING;
-
-    // FEATURES_ASSISTED_DIALING should not be combined with calls that are
-    // !FEATURES_ASSISTED_DIALING
-    return row1Assisted == row2Assisted;
+    DialerPhoneNumber number1 = row1.getNumber();
+    if (Arrays.equals(row1.numberBytes, row2.numberBytes)) {
+      // A number always matches itself unless it is empty, which saves parsing it.
+      return !number1.getNormalizedNumber().isEmpty();
+    }
+    return dialerPhoneNumberUtil.isMatch(number1, row2.getNumber());
   }
 
   /**
@@ -231,17 +425,4 @@ public class Coalescer {
 
     return coalescedIds.build();
   }
-
-  /**
-   * @param contentValues a {@link CoalescedAnnotatedCallLog} row
-   * @param matrixCursor represents {@link CoalescedAnnotatedCallLog}
-   */
-  private static void addContentValuesToMatrixCursor(
-      ContentValues contentValues, MatrixCursor matrixCursor, int rowId) {
-    MatrixCursor.RowBuilder rowBuilder = matrixCursor.newRow();
-    rowBuilder.add(CoalescedAnnotatedCallLog._ID, rowId);
-    for (Map.Entry<String, Object> entry : contentValues.valueSet()) {
-      rowBuilder.add(entry.getKey(), entry.getValue());
-    }
-  }
 }
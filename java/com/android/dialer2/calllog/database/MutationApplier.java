@@ -15,6 +15,8 @@
  */
 package com.android.dialer2.calllog.database;
 
+import android.content.ContentProvider;
+import android.content.ContentProviderClient;
 import android.content.ContentProviderOperation;
 import android.content.ContentUris;
 import android.content.ContentValues;
@@ -39,7 +41,13 @@ import java.util.List;
 import java.util.Map.Entry;
 import javax.inject.Inject;
 
-/** Applies {@link CallLogMutations} to the annotated call log. */
+/**
+ * Applies {@link CallLogMutations} to the annotated call log.
+ *
+ * <p>Mutations are handed directly to {@link AnnotatedCallLogContentProvider}, which writes them in
+ * chunks and rebuilds the coalesced rows around the changed rows. When the provider isn't local,
+ * they are applied as a single batch of operations instead.
+ */
 public class MutationApplier {
 
   private final ListeningExecutorService backgroundExecutorService;
@@ -66,6 +74,29 @@ public class MutationApplier {
       throws RemoteException, OperationApplicationException {
     Assert.isWorkerThread();
 
+    // The provider normally runs in this process, which allows skipping ContentProviderOperations.
+    ContentProviderClient client =
+        appContext
+            .getContentResolver()
+            .acquireContentProviderClient(AnnotatedCallLogContract.AUTHORITY);
+    if (client != null) {
+      try {
+        ContentProvider provider = client.getLocalContentProvider();
+        if (provider instanceof AnnotatedCallLogContentProvider) {
+          LogUtil.i(
+              "MutationApplier.applyToDatabase",
+              "applying %d inserts, %d updates and %d deletes",
+              mutations.getInserts().size(),
+              mutations.getUpdates().size(),
+              mutations.getDeletes().size());
+          ((AnnotatedCallLogContentProvider) provider).applyMutations(mutations);
+          return;
+        }
+      } finally {
+        client.release();
+      }
+    }
+
     ArrayList<ContentProviderOperation> operations = new ArrayList<>();
 
     if (!mutations.getInserts().isEmpty()) {
@@ -221,8 +221,9 @@ public class AnnotatedCallLogContract {
   /**
    * Coalesced view of the AnnotatedCallLog table.
    *
-   * <p>This is an in-memory view of the {@link AnnotatedCallLog} with some adjacent entries
-   * collapsed.
+   * <p>This is a view of the {@link AnnotatedCallLog} with some adjacent entries collapsed and
+   * voicemails left out, which is stored and updated whenever the {@link AnnotatedCallLog} changes.
+   * The {@link #_ID} of each row is the ID of the newest {@link AnnotatedCallLog} row it contains.
    *
    * <p>When adding columns be sure to update {@link #COLUMNS_ONLY_IN_COALESCED_CALL_LOG}.
    */
@@ -238,6 +239,20 @@ public class AnnotatedCallLogContract {
     public static final String CONTENT_ITEM_TYPE =
         "vnd.android.cursor.item/coalesced_annotated_call_log";
 
+    /**
+     * Query parameter limiting the number of rows returned, which are always the newest ones.
+     *
+     * <p>Type: INTEGER
+     */
+    public static final String LIMIT_PARAMETER = "limit";
+
+    /**
+     * Query parameter skipping that many of the newest rows. Requires {@link #LIMIT_PARAMETER}.
+     *
+     * <p>Type: INTEGER
+     */
+    public static final String OFFSET_PARAMETER = "offset";
+
     /**
      * IDs of rows in {@link AnnotatedCallLog} that are coalesced into one row in {@link
      * CoalescedAnnotatedCallLog}, encoded as a {@link com.android.dialer2.CoalescedIds} proto.
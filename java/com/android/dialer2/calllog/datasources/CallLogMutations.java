@@ -75,6 +75,33 @@ public final class CallLogMutations {
     deletes.add(id);
   }
 
+  /**
+   * Adds the mutations of {@code other}, which is left unchanged. Values in {@code other} replace
+   * values of the same columns of the same rows.
+   *
+   * <p>Used to combine mutations which data sources made on separate copies, which must not
+   * conflict.
+   */
+  public void merge(CallLogMutations other) {
+    for (int i = 0; i < other.inserts.size(); i++) {
+      mergeValues(inserts, other.inserts.keyAt(i), other.inserts.valueAt(i));
+    }
+    for (int i = 0; i < other.updates.size(); i++) {
+      mergeValues(updates, other.updates.keyAt(i), other.updates.valueAt(i));
+    }
+    deletes.addAll(other.deletes);
+  }
+
+  private static void mergeValues(
+      ArrayMap<Long, ContentValues> rows, long id, ContentValues contentValues) {
+    ContentValues existingContentValues = rows.get(id);
+    if (existingContentValues != null) {
+      existingContentValues.putAll(contentValues);
+    } else {
+      rows.put(id, new ContentValues(contentValues));
+    }
+  }
+
   public boolean isEmpty() {
     return inserts.isEmpty() && updates.isEmpty() && deletes.isEmpty();
   }
@@ -17,6 +17,7 @@
 package com.android.dialer2.calllog.datasources;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 
 /** Immutable lists of data sources used to populate the annotated call log. */
 public interface DataSources {
@@ -26,4 +27,14 @@ public interface DataSources {
   ImmutableList<CallLogDataSource> getDataSourcesIncludingSystemCallLog();
 
   ImmutableList<CallLogDataSource> getDataSourcesExcludingSystemCallLog();
+
+  /**
+   * Returns the data sources whose mutations {@code dataSource} reads or modifies in {@link
+   * CallLogDataSource#fill}, which must be filled before it. Data sources not depending on each
+   * other are filled concurrently.
+   *
+   * <p>Dependencies always come before {@code dataSource} in {@link
+   * #getDataSourcesIncludingSystemCallLog()}.
+   */
+  ImmutableSet<CallLogDataSource> getFillDependencies(CallLogDataSource dataSource);
 }
@@ -16,12 +16,9 @@
 
 package com.android.dialer2.calllog.datasources.phonelookup;
 
-import android.content.ContentProviderOperation;
 import android.content.ContentValues;
 import android.content.Context;
-import android.content.OperationApplicationException;
 import android.database.Cursor;
-import android.os.RemoteException;
 import android.support.annotation.MainThread;
 import android.support.annotation.WorkerThread;
 import android.text.TextUtils;
@@ -33,23 +30,21 @@ import com.android.dialer2.calllog.datasources.CallLogDataSource;
 import com.android.dialer2.calllog.datasources.CallLogMutations;
 import com.android.dialer2.calllog.datasources.util.RowCombiner;
 import com.android.dialer2.calllogutils.NumberAttributesConverter;
-import com.android.dialer2.common.Assert;
 import com.android.dialer2.common.LogUtil;
 import com.android.dialer2.common.concurrent.Annotations.BackgroundExecutor;
 import com.android.dialer2.common.concurrent.Annotations.LightweightExecutor;
 import com.android.dialer2.phonelookup.PhoneLookup;
 import com.android.dialer2.phonelookup.PhoneLookupInfo;
 import com.android.dialer2.phonelookup.composite.CompositePhoneLookup;
-import com.android.dialer2.phonelookup.database.contract.PhoneLookupHistoryContract;
 import com.android.dialer2.phonelookup.database.contract.PhoneLookupHistoryContract.PhoneLookupHistory;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Maps;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.protobuf.InvalidProtocolBufferException;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
@@ -85,6 +80,35 @@ public final class PhoneLookupDataSource implements CallLogDataSource {
    */
   private final Set<String> phoneLookupHistoryRowsToDelete = new ArraySet<>();
 
+  /**
+   * The most recent info for the numbers which will remain in the annotated call log.
+   *
+   * <p>This is state saved between the {@link #fill(Context, CallLogMutations)} and {@link
+   * #onSuccessfulFill(Context)} operations.
+   */
+  private final Map<DialerPhoneNumber, PhoneLookupInfo> phoneLookupInfoToMemoize = new ArrayMap<>();
+
+  /**
+   * When PhoneLookupHistory was read to build the original info map.
+   *
+   * <p>This is state saved between the {@link #fill(Context, CallLogMutations)} and {@link
+   * #onSuccessfulFill(Context)} operations.
+   */
+  private long phoneLookupInfoToMemoizeTimestamp;
+
+  /**
+   * The info written to the annotated call log for each of its numbers by the last successful fill.
+   *
+   * <p>The info for numbers without pending inserts is taken from here instead of re-reading
+   * PhoneLookupHistory on every fill; only the PhoneLookupHistory rows modified since {@link
+   * #memoizedPhoneLookupInfoTimestamp} (for example by render time lookups) are read again. Only
+   * held in memory; it is rebuilt from PhoneLookupHistory the first time the call log is refreshed
+   * after the process starts.
+   */
+  private final Map<DialerPhoneNumber, PhoneLookupInfo> memoizedPhoneLookupInfo = new ArrayMap<>();
+
+  private long memoizedPhoneLookupInfoTimestamp;
+
   @Inject
   PhoneLookupDataSource(
       CompositePhoneLookup compositePhoneLookup,
@@ -116,6 +140,8 @@ public final class PhoneLookupDataSource implements CallLogDataSource {
    *   <li>Uses them to fetch the current information from PhoneLookupHistory, in order to construct
    *       a map from DialerPhoneNumber to PhoneLookupInfo
    *       <ul>
+   *         <li>Numbers without pending inserts which were seen by the last successful fill reuse
+   *             the info it wrote instead of being queried again.
    *         <li>If no PhoneLookupInfo is found (e.g. app data was cleared?) an empty value is used.
    *       </ul>
    *   <li>Looks through the provided set of mutations
@@ -145,6 +171,7 @@ public final class PhoneLookupDataSource implements CallLogDataSource {
     // onSuccessfulFill is not called during a previous flow.
     phoneLookupHistoryRowsToUpdate.clear();
     phoneLookupHistoryRowsToDelete.clear();
+    phoneLookupInfoToMemoize.clear();
 
     // First query information from annotated call log (and include pending inserts).
     ListenableFuture<Map<DialerPhoneNumber, Set<Long>>> annotatedCallLogIdsByNumberFuture =
@@ -156,7 +183,7 @@ public final class PhoneLookupDataSource implements CallLogDataSource {
         Futures.transform(
             annotatedCallLogIdsByNumberFuture,
             annotatedCallLogIdsByNumber ->
-                queryPhoneLookupHistoryForNumbers(appContext, annotatedCallLogIdsByNumber.keySet()),
+                getOriginalInfoMap(appContext, annotatedCallLogIdsByNumber.keySet(), mutations),
             backgroundExecutorService);
 
     // Use the original info map to generate the updated info map by delegating to
@@ -199,8 +226,9 @@ public final class PhoneLookupDataSource implements CallLogDataSource {
           for (Entry<DialerPhoneNumber, PhoneLookupInfo> entry : updatedInfoMap.entrySet()) {
             DialerPhoneNumber dialerPhoneNumber = entry.getKey();
             PhoneLookupInfo upToDateInfo = entry.getValue();
+            Set<Long> annotatedCallLogIds = annotatedCallLogIdsByNumber.get(dialerPhoneNumber);
             if (!originalInfoMap.get(dialerPhoneNumber).equals(upToDateInfo)) {
-              for (Long id : annotatedCallLogIdsByNumber.get(dialerPhoneNumber)) {
+              for (Long id : annotatedCallLogIds) {
                 rowsToUpdate.put(id, upToDateInfo);
               }
               // Also save the updated information so that it can be written to PhoneLookupHistory
@@ -209,6 +237,9 @@ public final class PhoneLookupDataSource implements CallLogDataSource {
               String normalizedNumber = dialerPhoneNumber.getNormalizedNumber();
               phoneLookupHistoryRowsToUpdate.put(normalizedNumber, upToDateInfo);
             }
+            if (!mutations.getDeletes().containsAll(annotatedCallLogIds)) {
+              phoneLookupInfoToMemoize.put(dialerPhoneNumber, upToDateInfo);
+            }
           }
           return rowsToUpdate.build();
         };
@@ -251,32 +282,40 @@ public final class PhoneLookupDataSource implements CallLogDataSource {
   }
 
   @WorkerThread
-  private Void writePhoneLookupHistory(Context appContext)
-      throws RemoteException, OperationApplicationException {
-    ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+  private Void writePhoneLookupHistory(Context appContext) {
     long currentTimestamp = System.currentTimeMillis();
+    ContentValues[] rowsToUpdate = new ContentValues[phoneLookupHistoryRowsToUpdate.size()];
+    int i = 0;
     for (Entry<String, PhoneLookupInfo> entry : phoneLookupHistoryRowsToUpdate.entrySet()) {
-      String normalizedNumber = entry.getKey();
-      PhoneLookupInfo phoneLookupInfo = entry.getValue();
       ContentValues contentValues = new ContentValues();
-      contentValues.put(PhoneLookupHistory.PHONE_LOOKUP_INFO, phoneLookupInfo.toByteArray());
+      contentValues.put(PhoneLookupHistory.NORMALIZED_NUMBER, entry.getKey());
+      contentValues.put(PhoneLookupHistory.PHONE_LOOKUP_INFO, entry.getValue().toByteArray());
       contentValues.put(PhoneLookupHistory.LAST_MODIFIED, currentTimestamp);
-      operations.add(
-          ContentProviderOperation.newUpdate(
-                  PhoneLookupHistory.contentUriForNumber(normalizedNumber))
-              .withValues(contentValues)
-              .build());
+      rowsToUpdate[i++] = contentValues;
     }
-    for (String normalizedNumber : phoneLookupHistoryRowsToDelete) {
-      operations.add(
-          ContentProviderOperation.newDelete(
-                  PhoneLookupHistory.contentUriForNumber(normalizedNumber))
-              .build());
+    if (rowsToUpdate.length > 0) {
+      appContext.getContentResolver().bulkInsert(PhoneLookupHistory.CONTENT_URI, rowsToUpdate);
     }
-    Assert.isNotNull(
-        appContext
-            .getContentResolver()
-            .applyBatch(PhoneLookupHistoryContract.AUTHORITY, operations));
+
+    // Batch the deletes into chunks of 999, the maximum size for SQLite selection args.
+    for (List<String> normalizedNumbers :
+        Iterables.partition(phoneLookupHistoryRowsToDelete, 999)) {
+      String[] questionMarks = new String[normalizedNumbers.size()];
+      Arrays.fill(questionMarks, "?");
+      String selection =
+          PhoneLookupHistory.NORMALIZED_NUMBER + " in (" + TextUtils.join(",", questionMarks) + ")";
+      appContext
+          .getContentResolver()
+          .delete(
+              PhoneLookupHistory.CONTENT_URI,
+              selection,
+              normalizedNumbers.toArray(new String[normalizedNumbers.size()]));
+    }
+
+    // The annotated call log and PhoneLookupHistory now reflect the info computed by fill.
+    memoizedPhoneLookupInfo.clear();
+    memoizedPhoneLookupInfo.putAll(phoneLookupInfoToMemoize);
+    memoizedPhoneLookupInfoTimestamp = phoneLookupInfoToMemoizeTimestamp;
     return null;
   }
 
@@ -402,6 +441,95 @@ public final class PhoneLookupDataSource implements CallLogDataSource {
     return idsByNumber;
   }
 
+  /**
+   * Returns the info currently written to the annotated call log for {@code
+   * uniqueDialerPhoneNumbers}, or the info from PhoneLookupHistory for numbers being inserted.
+   *
+   * <p>Returned map must have same keys as {@code uniqueDialerPhoneNumbers}
+   */
+  private ImmutableMap<DialerPhoneNumber, PhoneLookupInfo> getOriginalInfoMap(
+      Context appContext,
+      Set<DialerPhoneNumber> uniqueDialerPhoneNumbers,
+      CallLogMutations mutations) {
+    // PhoneLookupHistory may have been written when the calls being inserted were recorded, so it
+    // has to be read for their numbers.
+    Set<DialerPhoneNumber> insertedNumbers = new ArraySet<>();
+    for (ContentValues insertedContentValues : mutations.getInserts().values()) {
+      try {
+        insertedNumbers.add(
+            DialerPhoneNumber.parseFrom(
+                insertedContentValues.getAsByteArray(AnnotatedCallLog.NUMBER)));
+      } catch (InvalidProtocolBufferException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    // Rows written after this may not be reflected in the memoized info, so the next fill reads
+    // them again.
+    phoneLookupInfoToMemoizeTimestamp = System.currentTimeMillis();
+
+    Set<DialerPhoneNumber> numbersToQuery = new ArraySet<>();
+    for (DialerPhoneNumber dialerPhoneNumber : uniqueDialerPhoneNumbers) {
+      if (insertedNumbers.contains(dialerPhoneNumber)
+          || !memoizedPhoneLookupInfo.containsKey(dialerPhoneNumber)) {
+        numbersToQuery.add(dialerPhoneNumber);
+      }
+    }
+    LogUtil.v(
+        "PhoneLookupDataSource.getOriginalInfoMap",
+        "querying PhoneLookupHistory for %d of %d numbers",
+        numbersToQuery.size(),
+        uniqueDialerPhoneNumbers.size());
+    if (numbersToQuery.size() == uniqueDialerPhoneNumbers.size()) {
+      return queryPhoneLookupHistoryForNumbers(appContext, uniqueDialerPhoneNumbers);
+    }
+
+    ImmutableMap<DialerPhoneNumber, PhoneLookupInfo> queriedInfoMap =
+        numbersToQuery.isEmpty()
+            ? ImmutableMap.of()
+            : queryPhoneLookupHistoryForNumbers(appContext, numbersToQuery);
+    Map<String, PhoneLookupInfo> modifiedInfoMap =
+        queryPhoneLookupHistoryModifiedSince(appContext, memoizedPhoneLookupInfoTimestamp);
+    return ImmutableMap.copyOf(
+        Maps.asMap(
+            uniqueDialerPhoneNumbers,
+            dialerPhoneNumber -> {
+              PhoneLookupInfo phoneLookupInfo = queriedInfoMap.get(dialerPhoneNumber);
+              if (phoneLookupInfo != null) {
+                return phoneLookupInfo;
+              }
+              // Note: This loses country info when number is not valid.
+              phoneLookupInfo = modifiedInfoMap.get(dialerPhoneNumber.getNormalizedNumber());
+              return phoneLookupInfo != null
+                  ? phoneLookupInfo
+                  : memoizedPhoneLookupInfo.get(dialerPhoneNumber);
+            }));
+  }
+
+  /** Returns the PhoneLookupHistory rows modified since {@code timestamp}, by normalized number. */
+  private static Map<String, PhoneLookupInfo> queryPhoneLookupHistoryModifiedSince(
+      Context appContext, long timestamp) {
+    Map<String, PhoneLookupInfo> normalizedNumberToInfoMap = new ArrayMap<>();
+    try (Cursor cursor =
+        appContext
+            .getContentResolver()
+            .query(
+                PhoneLookupHistory.CONTENT_URI,
+                new String[] {
+                  PhoneLookupHistory.NORMALIZED_NUMBER, PhoneLookupHistory.PHONE_LOOKUP_INFO,
+                },
+                PhoneLookupHistory.LAST_MODIFIED + " >= ?",
+                new String[] {String.valueOf(timestamp)},
+                null)) {
+      if (cursor == null) {
+        LogUtil.e("PhoneLookupDataSource.queryPhoneLookupHistoryModifiedSince", "null cursor");
+      } else {
+        readPhoneLookupHistory(cursor, normalizedNumberToInfoMap);
+      }
+    }
+    return normalizedNumberToInfoMap;
+  }
+
   /** Returned map must have same keys as {@code uniqueDialerPhoneNumbers} */
   private ImmutableMap<DialerPhoneNumber, PhoneLookupInfo> queryPhoneLookupHistoryForNumbers(
       Context appContext, Set<DialerPhoneNumber> uniqueDialerPhoneNumbers) {
@@ -432,21 +560,8 @@ public final class PhoneLookupDataSource implements CallLogDataSource {
                 null)) {
       if (cursor == null) {
         LogUtil.e("PhoneLookupDataSource.queryPhoneLookupHistoryForNumbers", "null cursor");
-      } else if (cursor.moveToFirst()) {
-        int normalizedNumberColumn =
-            cursor.getColumnIndexOrThrow(PhoneLookupHistory.NORMALIZED_NUMBER);
-        int phoneLookupInfoColumn =
-            cursor.getColumnIndexOrThrow(PhoneLookupHistory.PHONE_LOOKUP_INFO);
-        do {
-          String normalizedNumber = cursor.getString(normalizedNumberColumn);
-          PhoneLookupInfo phoneLookupInfo;
-          try {
-            phoneLookupInfo = PhoneLookupInfo.parseFrom(cursor.getBlob(phoneLookupInfoColumn));
-          } catch (InvalidProtocolBufferException e) {
-            throw new IllegalStateException(e);
-          }
-          normalizedNumberToInfoMap.put(normalizedNumber, phoneLookupInfo);
-        } while (cursor.moveToNext());
+      } else {
+        readPhoneLookupHistory(cursor, normalizedNumberToInfoMap);
       }
     }
 
@@ -466,6 +581,26 @@ public final class PhoneLookupDataSource implements CallLogDataSource {
             }));
   }
 
+  private static void readPhoneLookupHistory(
+      Cursor cursor, Map<String, PhoneLookupInfo> normalizedNumberToInfoMap) {
+    if (cursor.moveToFirst()) {
+      int normalizedNumberColumn =
+          cursor.getColumnIndexOrThrow(PhoneLookupHistory.NORMALIZED_NUMBER);
+      int phoneLookupInfoColumn =
+          cursor.getColumnIndexOrThrow(PhoneLookupHistory.PHONE_LOOKUP_INFO);
+      do {
+        String normalizedNumber = cursor.getString(normalizedNumberColumn);
+        PhoneLookupInfo phoneLookupInfo;
+        try {
+          phoneLookupInfo = PhoneLookupInfo.parseFrom(cursor.getBlob(phoneLookupInfoColumn));
+        } catch (InvalidProtocolBufferException e) {
+          throw new IllegalStateException(e);
+        }
+        normalizedNumberToInfoMap.put(normalizedNumber, phoneLookupInfo);
+      } while (cursor.moveToNext());
+    }
+  }
+
   private void populateInserts(
       ImmutableMap<Long, PhoneLookupInfo> existingInfo, CallLogMutations mutations) {
     for (Entry<Long, ContentValues> entry : mutations.getInserts().entrySet()) {
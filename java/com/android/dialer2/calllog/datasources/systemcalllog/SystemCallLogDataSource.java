@@ -55,7 +55,6 @@ import com.android.dialer2.storage.StorageComponent;
 import com.android.dialer2.telecom.TelecomUtil;
 import com.android.dialer2.theme.R;
 import com.android.dialer2.util.PermissionsUtil;
-import com.google.common.collect.Iterables;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.i18n.phonenumbers.PhoneNumberUtil;
@@ -430,26 +429,72 @@ public class SystemCallLogDataSource implements CallLogDataSource {
     contentValues.put(AnnotatedCallLog.PHONE_ACCOUNT_COLOR, color);
   }
 
+  /**
+   * Finds the annotated call log rows whose ids are gone from the system call log.
+   *
+   * <p>Both id lists are walked in ascending order, so the system call log only has to be queried
+   * once, for the ids between the smallest and largest annotated call log id.
+   */
+  @TargetApi(Build.VERSION_CODES.M) // Uses try-with-resources
   private static void handleDeletes(
       Context appContext, Set<Long> existingAnnotatedCallLogIds, CallLogMutations mutations) {
-    Set<Long> systemCallLogIds =
-        getIdsFromSystemCallLogThatMatch(appContext, existingAnnotatedCallLogIds);
-    LogUtil.i(
-        "SystemCallLogDataSource.handleDeletes",
-        "found %d matching entries in system call log",
-        systemCallLogIds.size());
-    Set<Long> idsInAnnotatedCallLogNoLongerInSystemCallLog = new ArraySet<>();
-    idsInAnnotatedCallLogNoLongerInSystemCallLog.addAll(existingAnnotatedCallLogIds);
-    idsInAnnotatedCallLogNoLongerInSystemCallLog.removeAll(systemCallLogIds);
+    if (existingAnnotatedCallLogIds.isEmpty()) {
+      return;
+    }
+    long[] annotatedIds = new long[existingAnnotatedCallLogIds.size()];
+    int i = 0;
+    for (long id : existingAnnotatedCallLogIds) {
+      annotatedIds[i++] = id;
+    }
+    Arrays.sort(annotatedIds);
+
+    int deletedCount = 0;
+    try (Cursor cursor =
+        appContext
+            .getContentResolver()
+            .query(
+                Calls.CONTENT_URI_WITH_VOICEMAIL,
+                new String[] {Calls._ID},
+                Calls._ID + " BETWEEN ? AND ?",
+                new String[] {
+                  String.valueOf(annotatedIds[0]),
+                  String.valueOf(annotatedIds[annotatedIds.length - 1])
+                },
+                Calls._ID + " ASC")) {
+
+      if (cursor == null) {
+        // Don't delete anything, the next refresh will try again.
+        LogUtil.e("SystemCallLogDataSource.handleDeletes", "null cursor");
+        return;
+      }
+
+      LogUtil.i(
+          "SystemCallLogDataSource.handleDeletes",
+          "found %d entries in system call log id range",
+          cursor.getCount());
+
+      int idColumn = cursor.getColumnIndexOrThrow(Calls._ID);
+      i = 0;
+      while (i < annotatedIds.length && cursor.moveToNext()) {
+        long systemCallLogId = cursor.getLong(idColumn);
+        while (i < annotatedIds.length && annotatedIds[i] < systemCallLogId) {
+          mutations.delete(annotatedIds[i++]);
+          deletedCount++;
+        }
+        if (i < annotatedIds.length && annotatedIds[i] == systemCallLogId) {
+          i++;
+        }
+      }
+    }
+    for (; i < annotatedIds.length; i++) {
+      mutations.delete(annotatedIds[i]);
+      deletedCount++;
+    }
 
     LogUtil.i(
         "SystemCallLogDataSource.handleDeletes",
         "found %d call log entries to remove",
-        idsInAnnotatedCallLogNoLongerInSystemCallLog.size());
-
-    for (long id : idsInAnnotatedCallLogNoLongerInSystemCallLog) {
-      mutations.delete(id);
-    }
+        deletedCount);
   }
 
   @TargetApi(Build.VERSION_CODES.M) // Uses try-with-resources
@@ -480,48 +525,4 @@ public class SystemCallLogDataSource implements CallLogDataSource {
     }
     return ids;
   }
-
-  @TargetApi(Build.VERSION_CODES.M) // Uses try-with-resources
-  private static Set<Long> getIdsFromSystemCallLogThatMatch(
-      Context appContext, Set<Long> matchingIds) {
-    ArraySet<Long> ids = new ArraySet<>();
-
-    // Batch the select statements into chunks of 999, the maximum size for SQLite selection args.
-    Iterable<List<Long>> batches = Iterables.partition(matchingIds, 999);
-    for (List<Long> idsInBatch : batches) {
-      String[] questionMarks = new String[idsInBatch.size()];
-      Arrays.fill(questionMarks, "?");
-
-      String whereClause = (Calls._ID + " in (") + TextUtils.join(",", questionMarks) + ")";
-      String[] whereArgs = new String[idsInBatch.size()];
-      int i = 0;
-      for (long id : idsInBatch) {
-        whereArgs[i++] = String.valueOf(id);
-      }
-
-      try (Cursor cursor =
-          appContext
-              .getContentResolver()
-              .query(
-                  Calls.CONTENT_URI_WITH_VOICEMAIL,
-                  new String[] {Calls._ID},
-                  whereClause,
-                  whereArgs,
-                  null)) {
-
-        if (cursor == null) {
-          LogUtil.e("SystemCallLogDataSource.getIdsFromSystemCallLog", "null cursor");
-          return ids;
-        }
-
-        if (cursor.moveToFirst()) {
-          int idColumn = cursor.getColumnIndexOrThrow(Calls._ID);
-          do {
-            ids.add(cursor.getLong(idColumn));
-          } while (cursor.moveToNext());
-        }
-      }
-    }
-    return ids;
-  }
 }
@@ -18,6 +18,8 @@ package com.android.dialer2.calllog.ui;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.net.Uri;
+import android.support.annotation.Nullable;
 import android.support.v4.content.CursorLoader;
 import com.android.dialer2.CoalescedIds;
 import com.android.dialer2.DialerPhoneNumber;
@@ -47,16 +49,46 @@ final class CoalescedAnnotatedCallLogCursorLoader extends CursorLoader {
   private static final int CALL_TYPE = 14;
   private static final int COALESCED_IDS = 15;
 
-  CoalescedAnnotatedCallLogCursorLoader(Context context) {
+  /** @param limit the number of rows to load, the newest ones are loaded first */
+  CoalescedAnnotatedCallLogCursorLoader(Context context, int limit) {
     // CoalescedAnnotatedCallLog requires that PROJECTION be ALL_COLUMNS and the following params be
     // null.
-    super(
-        context,
-        CoalescedAnnotatedCallLog.CONTENT_URI,
-        CoalescedAnnotatedCallLog.ALL_COLUMNS,
-        null,
-        null,
-        null);
+    super(context, getUri(limit), CoalescedAnnotatedCallLog.ALL_COLUMNS, null, null, null);
+  }
+
+  /**
+   * Changes the number of rows to load, which takes effect on the next load. Changes to the call
+   * log reload the same number of rows.
+   */
+  void setLimit(int limit) {
+    setUri(getUri(limit));
+  }
+
+  private static Uri getUri(int limit) {
+    return CoalescedAnnotatedCallLog.CONTENT_URI
+        .buildUpon()
+        .appendQueryParameter(CoalescedAnnotatedCallLog.LIMIT_PARAMETER, Integer.toString(limit))
+        .build();
+  }
+
+  /**
+   * Queries the {@code limit} rows following the newest {@code offset} ones, for appending a page
+   * to the rows already loaded without loading them again. Must be called off the main thread.
+   */
+  @Nullable
+  static Cursor queryPage(Context context, int offset, int limit) {
+    return context
+        .getContentResolver()
+        .query(
+            getUri(limit)
+                .buildUpon()
+                .appendQueryParameter(
+                    CoalescedAnnotatedCallLog.OFFSET_PARAMETER, Integer.toString(offset))
+                .build(),
+            CoalescedAnnotatedCallLog.ALL_COLUMNS,
+            null,
+            null,
+            null);
   }
 
   /** Creates a new {@link CoalescedRow} from the provided cursor using the current position. */
@@ -105,4 +137,26 @@ final class CoalescedAnnotatedCallLogCursorLoader extends CursorLoader {
   static long getTimestamp(Cursor cursor) {
     return cursor.getLong(TIMESTAMP);
   }
+
+  /**
+   * Returns {@link NumberAttributes#getIsCp2InfoIncomplete()} for the row at the current position,
+   * without parsing the other protos of the row.
+   */
+  static boolean isCp2InfoIncomplete(Cursor cursor) {
+    try {
+      return NumberAttributes.parseFrom(cursor.getBlob(NUMBER_ATTRIBUTES))
+          .getIsCp2InfoIncomplete();
+    } catch (InvalidProtocolBufferException e) {
+      throw new IllegalStateException("Couldn't parse NumberAttributes bytes");
+    }
+  }
+
+  /** Returns the number of the row at the current position. */
+  static DialerPhoneNumber getNumber(Cursor cursor) {
+    try {
+      return DialerPhoneNumber.parseFrom(cursor.getBlob(NUMBER));
+    } catch (InvalidProtocolBufferException e) {
+      throw new IllegalStateException("Couldn't parse DialerPhoneNumber bytes");
+    }
+  }
 }
@@ -24,10 +24,12 @@ import android.support.v7.widget.RecyclerView.ViewHolder;
 import android.view.LayoutInflater;
 import android.view.ViewGroup;
 import com.android.dialer2.calllogutils.CallLogDates;
+import com.android.dialer2.DialerPhoneNumber;
 import com.android.dialer2.common.Assert;
 import com.android.dialer2.glidephotomanager.GlidePhotoManager;
 import com.android.dialer2.glidephotomanager.GlidePhotoManagerComponent;
 import com.android.dialer2.time.Clock;
+import com.google.common.collect.ImmutableSet;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 
@@ -53,9 +55,16 @@ final class NewCallLogAdapter extends RecyclerView.Adapter<ViewHolder> {
     int CALL_LOG_ENTRY = 4;
   }
 
+  /** How close to the last loaded row binding has to get for more rows to be requested. */
+  private static final int LOAD_MORE_ROWS_DISTANCE = 20;
+
+  /** How many rows past each end of the viewport are looked up before they are scrolled to. */
+  private static final int PREFETCH_ROWS_DISTANCE = 10;
+
   private final Clock clock;
   private final RealtimeRowProcessor realtimeRowProcessor;
   private final GlidePhotoManager glidePhotoManager;
+  private final Runnable loadMoreRows;
 
   private Cursor cursor;
 
@@ -68,9 +77,20 @@ final class NewCallLogAdapter extends RecyclerView.Adapter<ViewHolder> {
   /** Position of the "Older" header. Null when it should not be displayed. */
   @Nullable private Integer olderHeaderPosition;
 
-  NewCallLogAdapter(Context context, Cursor cursor, Clock clock) {
+  /** The viewport last reported to {@link #onViewportChanged(int, int)}, -1 if none. */
+  private int firstVisiblePosition = -1;
+
+  private int lastVisiblePosition = -1;
+
+  /**
+   * @param cursor the first rows of the coalesced call log
+   * @param loadMoreRows called when rows close to the end of {@code cursor} are displayed, so that
+   *     a cursor with more rows can be loaded before they are scrolled to
+   */
+  NewCallLogAdapter(Context context, Cursor cursor, Clock clock, Runnable loadMoreRows) {
     this.cursor = cursor;
     this.clock = clock;
+    this.loadMoreRows = loadMoreRows;
     this.realtimeRowProcessor = CallLogUiComponent.get(context).realtimeRowProcessor();
     this.glidePhotoManager = GlidePhotoManagerComponent.get(context).glidePhotoManager();
 
@@ -79,14 +99,63 @@ final class NewCallLogAdapter extends RecyclerView.Adapter<ViewHolder> {
 
   void updateCursor(Cursor updatedCursor) {
     this.cursor = updatedCursor;
-    this.realtimeRowProcessor.clearCache();
+    clearCache();
 
     setHeaderPositions();
     notifyDataSetChanged();
   }
 
+  /**
+   * Replaces the cursor with one holding the same rows followed by more, older rows. Unlike {@link
+   * #updateCursor(Cursor)}, the rows already displayed and the processed data are kept.
+   */
+  void appendRows(Cursor cursorWithMoreRows) {
+    int previousItemCount = getItemCount();
+    this.cursor = cursorWithMoreRows;
+
+    // Rows are sorted newest first, so any header added is below the rows already displayed.
+    setHeaderPositions();
+    notifyItemRangeInserted(previousItemCount, getItemCount() - previousItemCount);
+  }
+
   void clearCache() {
     this.realtimeRowProcessor.clearCache();
+    firstVisiblePosition = -1;
+    lastVisiblePosition = -1;
+  }
+
+  /**
+   * Reports the adapter positions of the displayed rows, so that the rows displayed or about to be
+   * scrolled to can be processed together by the {@link RealtimeRowProcessor}.
+   */
+  void onViewportChanged(int firstVisiblePosition, int lastVisiblePosition) {
+    if (firstVisiblePosition == this.firstVisiblePosition
+        && lastVisiblePosition == this.lastVisiblePosition) {
+      return;
+    }
+    this.firstVisiblePosition = firstVisiblePosition;
+    this.lastVisiblePosition = lastVisiblePosition;
+    if (firstVisiblePosition < 0 || lastVisiblePosition < firstVisiblePosition) {
+      return;
+    }
+
+    int firstCursorPosition =
+        Math.max(0, getCursorPosition(firstVisiblePosition) - PREFETCH_ROWS_DISTANCE);
+    int lastCursorPosition =
+        Math.min(
+            cursor.getCount() - 1,
+            getCursorPosition(lastVisiblePosition) + PREFETCH_ROWS_DISTANCE);
+    ImmutableSet.Builder<DialerPhoneNumber> numbers = ImmutableSet.builder();
+    for (int cursorPosition = firstCursorPosition;
+        cursorPosition <= lastCursorPosition;
+        cursorPosition++) {
+      cursor.moveToPosition(cursorPosition);
+      // Runs on each scroll, so only the protos needed are parsed.
+      if (CoalescedAnnotatedCallLogCursorLoader.isCp2InfoIncomplete(cursor)) {
+        numbers.add(CoalescedAnnotatedCallLogCursorLoader.getNumber(cursor));
+      }
+    }
+    realtimeRowProcessor.setNumbersInViewport(numbers.build());
   }
 
   private void setHeaderPositions() {
@@ -164,18 +233,12 @@ final class NewCallLogAdapter extends RecyclerView.Adapter<ViewHolder> {
         break;
       case RowType.CALL_LOG_ENTRY:
         NewCallLogViewHolder newCallLogViewHolder = (NewCallLogViewHolder) viewHolder;
-        int previousHeaders = 0;
-        if (todayHeaderPosition != null && position > todayHeaderPosition) {
-          previousHeaders++;
-        }
-        if (yesterdayHeaderPosition != null && position > yesterdayHeaderPosition) {
-          previousHeaders++;
-        }
-        if (olderHeaderPosition != null && position > olderHeaderPosition) {
-          previousHeaders++;
-        }
-        cursor.moveToPosition(position - previousHeaders);
+        int cursorPosition = getCursorPosition(position);
+        cursor.moveToPosition(cursorPosition);
         newCallLogViewHolder.bind(cursor);
+        if (cursorPosition >= cursor.getCount() - LOAD_MORE_ROWS_DISTANCE) {
+          loadMoreRows.run();
+        }
         break;
       default:
         throw Assert.createIllegalStateFailException(
@@ -183,6 +246,24 @@ final class NewCallLogAdapter extends RecyclerView.Adapter<ViewHolder> {
     }
   }
 
+  /**
+   * Returns the cursor position of the row at the provided adapter position, or of the row below
+   * it for a header.
+   */
+  private int getCursorPosition(int position) {
+    int previousHeaders = 0;
+    if (todayHeaderPosition != null && position > todayHeaderPosition) {
+      previousHeaders++;
+    }
+    if (yesterdayHeaderPosition != null && position > yesterdayHeaderPosition) {
+      previousHeaders++;
+    }
+    if (olderHeaderPosition != null && position > olderHeaderPosition) {
+      previousHeaders++;
+    }
+    return position - previousHeaders;
+  }
+
   @Override
   @RowType
   public int getItemViewType(int position) {
@@ -15,7 +15,9 @@
  */
 package com.android.dialer2.calllog.ui;
 
+import android.content.Context;
 import android.database.Cursor;
+import android.database.MergeCursor;
 import android.os.Bundle;
 import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
@@ -32,12 +34,16 @@ import com.android.dialer2.calllog.CallLogComponent;
 import com.android.dialer2.calllog.RefreshAnnotatedCallLogReceiver;
 import com.android.dialer2.common.LogUtil;
 import com.android.dialer2.common.concurrent.DefaultFutureCallback;
+import com.android.dialer2.common.concurrent.DialerExecutorComponent;
 import com.android.dialer2.common.concurrent.ThreadUtil;
+import com.android.dialer2.common.concurrent.UiListener;
 import com.android.dialer2.metrics.Metrics;
 import com.android.dialer2.metrics.MetricsComponent;
 import com.android.dialer2.metrics.jank.RecyclerViewJankLogger;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.MoreExecutors;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 /** The "new" call log fragment implementation, which is built on top of the annotated call log. */
@@ -46,9 +52,34 @@ public final class NewCallLogFragment extends Fragment implements LoaderCallback
   @VisibleForTesting
   static final long MARK_ALL_CALLS_READ_WAIT_MILLIS = TimeUnit.SECONDS.toMillis(3);
 
+  /**
+   * Number of rows loaded at first and then added each time the user scrolls close to the last
+   * loaded row. The first page covers a few screens, so that it shows up without waiting for the
+   * rest of the call log.
+   */
+  @VisibleForTesting static final int PAGE_SIZE = 50;
+
   private RefreshAnnotatedCallLogReceiver refreshAnnotatedCallLogReceiver;
+  private UiListener<Cursor> loadPageListener;
   private RecyclerView recyclerView;
 
+  /** Number of rows the loader reloads when the call log changes. */
+  private int rowLimit = PAGE_SIZE;
+
+  /** Number of rows displayed, from the loader's cursor followed by {@link #pageCursors}. */
+  private int loadedRowCount;
+
+  /** The cursor last delivered by the loader. */
+  @Nullable private Cursor loaderCursor;
+
+  /** Pages of rows loaded after {@link #loaderCursor}, oldest rows last. */
+  private final List<Cursor> pageCursors = new ArrayList<>();
+
+  private boolean isLoadingPage;
+
+  /** Incremented each time the loader delivers rows, so that pages queried before are dropped. */
+  private int loaderGeneration;
+
   private boolean shouldMarkCallsRead = false;
   private final Runnable setShouldMarkCallsReadTrue = () -> shouldMarkCallsRead = true;
 
@@ -63,6 +94,9 @@ public final class NewCallLogFragment extends Fragment implements LoaderCallback
     LogUtil.enterBlock("NewCallLogFragment.onActivityCreated");
 
     refreshAnnotatedCallLogReceiver = new RefreshAnnotatedCallLogReceiver(getContext());
+    loadPageListener =
+        DialerExecutorComponent.get(getContext())
+            .createUiListener(getActivity().getFragmentManager(), "NewCallLogFragment.loadPage");
   }
 
   @Override
@@ -176,7 +210,24 @@ public final class NewCallLogFragment extends Fragment implements LoaderCallback
     recyclerView.addOnScrollListener(
         new RecyclerViewJankLogger(
             MetricsComponent.get(getContext()).metrics(), Metrics.NEW_CALL_LOG_JANK_EVENT_NAME));
-
+    recyclerView.addOnScrollListener(
+        new RecyclerView.OnScrollListener() {
+          @Override
+          public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+            // Also called after each layout, so the initial viewport is reported as well.
+            NewCallLogAdapter adapter = (NewCallLogAdapter) recyclerView.getAdapter();
+            if (adapter == null) {
+              return;
+            }
+            LinearLayoutManager layoutManager =
+                (LinearLayoutManager) recyclerView.getLayoutManager();
+            adapter.onViewportChanged(
+                layoutManager.findFirstVisibleItemPosition(),
+                layoutManager.findLastVisibleItemPosition());
+          }
+        });
+
+    rowLimit = PAGE_SIZE;
     getLoaderManager().restartLoader(0, null, this);
 
     return view;
@@ -203,7 +254,71 @@ public final class NewCallLogFragment extends Fragment implements LoaderCallback
   @Override
   public Loader<Cursor> onCreateLoader(int id, Bundle args) {
     LogUtil.enterBlock("NewCallLogFragment.onCreateLoader");
-    return new CoalescedAnnotatedCallLogCursorLoader(getContext());
+    return new CoalescedAnnotatedCallLogCursorLoader(getContext(), rowLimit);
+  }
+
+  /**
+   * Queries the page of rows following the displayed ones, unless the last page wasn't full or the
+   * next one is still loading. Only the new rows are queried, the displayed ones are kept.
+   */
+  private void loadMoreRows() {
+    if (isLoadingPage || loadedRowCount < rowLimit) {
+      return;
+    }
+    isLoadingPage = true;
+    Context appContext = getContext().getApplicationContext();
+    int offset = loadedRowCount;
+    int generation = loaderGeneration;
+    LogUtil.i("NewCallLogFragment.loadMoreRows", "loading rows after %d", offset);
+    loadPageListener.listen(
+        getContext(),
+        DialerExecutorComponent.get(appContext)
+            .backgroundExecutor()
+            .submit(
+                () ->
+                    CoalescedAnnotatedCallLogCursorLoader.queryPage(
+                        appContext, offset, PAGE_SIZE)),
+        page -> onPageLoaded(generation, page),
+        throwable -> {
+          throw new RuntimeException(throwable);
+        });
+  }
+
+  private void onPageLoaded(int generation, @Nullable Cursor page) {
+    if (generation != loaderGeneration || recyclerView.getAdapter() == null) {
+      // The loader delivered rows since, the page may not follow them.
+      if (page != null) {
+        page.close();
+      }
+      return;
+    }
+    isLoadingPage = false;
+    if (page == null) {
+      LogUtil.w("NewCallLogFragment.onPageLoaded", "null cursor");
+      return;
+    }
+
+    pageCursors.add(page);
+    loadedRowCount += page.getCount();
+    rowLimit += PAGE_SIZE;
+    // Changes to the call log reload all the rows displayed so far.
+    ((CoalescedAnnotatedCallLogCursorLoader) getLoaderManager().<Cursor>getLoader(0))
+        .setLimit(rowLimit);
+
+    Cursor[] cursors = new Cursor[pageCursors.size() + 1];
+    cursors[0] = loaderCursor;
+    for (int i = 0; i < pageCursors.size(); i++) {
+      cursors[i + 1] = pageCursors.get(i);
+    }
+    ((NewCallLogAdapter) recyclerView.getAdapter()).appendRows(new MergeCursor(cursors));
+  }
+
+  /** Closes the pages loaded after the loader's cursor, which the loader doesn't manage. */
+  private void closePageCursors() {
+    for (Cursor page : pageCursors) {
+      page.close();
+    }
+    pageCursors.clear();
   }
 
   @Override
@@ -216,20 +331,28 @@ public final class NewCallLogFragment extends Fragment implements LoaderCallback
       LogUtil.w("NewCallLogFragment.onLoadFinished", "null cursor");
       return;
     }
+    loaderGeneration++;
+    isLoadingPage = false;
+    loaderCursor = newCursor;
+    loadedRowCount = newCursor.getCount();
 
     // TODO(zachh): Handle empty cursor by showing empty view.
     if (recyclerView.getAdapter() == null) {
       recyclerView.setLayoutManager(new LinearLayoutManager(getContext()));
       recyclerView.setAdapter(
-          new NewCallLogAdapter(getContext(), newCursor, System::currentTimeMillis));
+          new NewCallLogAdapter(
+              getContext(), newCursor, System::currentTimeMillis, this::loadMoreRows));
     } else {
       ((NewCallLogAdapter) recyclerView.getAdapter()).updateCursor(newCursor);
     }
+    closePageCursors();
   }
 
   @Override
   public void onLoaderReset(Loader<Cursor> loader) {
     LogUtil.enterBlock("NewCallLogFragment.onLoaderReset");
     recyclerView.setAdapter(null);
+    loaderCursor = null;
+    closePageCursors();
   }
 }
@@ -20,8 +20,12 @@ import android.content.ContentProviderOperation;
 import android.content.ContentValues;
 import android.content.Context;
 import android.support.annotation.MainThread;
+import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
 import android.util.ArrayMap;
+import android.util.LruCache;
+import android.view.Choreographer;
+import android.view.Choreographer.FrameCallback;
 import com.android.dialer2.DialerPhoneNumber;
 import com.android.dialer2.calllog.model.CoalescedRow;
 import com.android.dialer2.calllogutils.NumberAttributesConverter;
@@ -35,11 +39,15 @@ import com.android.dialer2.phonelookup.PhoneLookupInfo;
 import com.android.dialer2.phonelookup.composite.CompositePhoneLookup;
 import com.android.dialer2.phonelookup.database.contract.PhoneLookupHistoryContract;
 import com.android.dialer2.phonelookup.database.contract.PhoneLookupHistoryContract.PhoneLookupHistory;
+import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.Map;
@@ -58,6 +66,11 @@ import javax.inject.Inject;
  * the CP2 information for all of them at once, and so information for those rows must be retrieved
  * at display time.
  *
+ * <p>Lookups requested while binding rows, or for rows about to be scrolled to (see {@link
+ * #setNumbersInViewport(ImmutableSet)}), are queued and started together once per frame. Each
+ * number is looked up once no matter how many rows show it, and lookups for rows which were
+ * scrolled away before the next frame are dropped.
+ *
  * <p>This class also updates {@link PhoneLookupHistory} with the results that it fetches.
  */
 public final class RealtimeRowProcessor {
@@ -72,7 +85,26 @@ public final class RealtimeRowProcessor {
   private final ListeningExecutorService uiExecutor;
   private final ListeningExecutorService backgroundExecutor;
 
-  private final Map<DialerPhoneNumber, PhoneLookupInfo> cache = new ArrayMap<>();
+  @VisibleForTesting static final int MAX_CACHE_SIZE = 200;
+
+  private final LruCache<DialerPhoneNumber, PhoneLookupInfo> cache =
+      new LruCache<>(MAX_CACHE_SIZE);
+
+  /**
+   * Lookups to start on the next frame. The futures are empty if the number was no longer in the
+   * viewport by then.
+   */
+  private final Map<DialerPhoneNumber, SettableFuture<Optional<PhoneLookupInfo>>> queuedLookups =
+      new ArrayMap<>();
+
+  private final Map<DialerPhoneNumber, ListenableFuture<PhoneLookupInfo>> ongoingLookups =
+      new ArrayMap<>();
+
+  private final FrameCallback startQueuedLookupsCallback = frameTimeNanos -> startQueuedLookups();
+  private boolean startQueuedLookupsPosted;
+
+  /** Numbers of the rows displayed or about to be, null if the viewport was never reported. */
+  @Nullable private ImmutableSet<DialerPhoneNumber> numbersInViewport;
 
   private final Map<DialerPhoneNumber, PhoneLookupInfo> queuedPhoneLookupHistoryWrites =
       new LinkedHashMap<>(); // Keep the order so the most recent looked up value always wins
@@ -106,23 +138,105 @@ public final class RealtimeRowProcessor {
       return Futures.immediateFuture(applyPhoneLookupInfoToRow(cachedPhoneLookupInfo, row));
     }
 
-    ListenableFuture<PhoneLookupInfo> phoneLookupInfoFuture =
-        compositePhoneLookup.lookup(row.number());
     return Futures.transform(
-        phoneLookupInfoFuture,
-        phoneLookupInfo -> {
-          queuePhoneLookupHistoryWrite(row.number(), phoneLookupInfo);
-          cache.put(row.number(), phoneLookupInfo);
-          return applyPhoneLookupInfoToRow(phoneLookupInfo, row);
-        },
-        uiExecutor /* ensures the cache is updated on a single thread */);
+        queueLookup(row.number()),
+        phoneLookupInfo ->
+            phoneLookupInfo.isPresent()
+                ? applyPhoneLookupInfoToRow(phoneLookupInfo.get(), row)
+                // The row was scrolled away, it is looked up again if it is bound again.
+                : row,
+        MoreExecutors.directExecutor());
+  }
+
+  /**
+   * Sets the numbers of the rows which are displayed or about to be scrolled to, and starts looking
+   * up the ones which need it.
+   *
+   * <p>Queued lookups for other numbers are dropped.
+   */
+  @MainThread
+  void setNumbersInViewport(ImmutableSet<DialerPhoneNumber> numbers) {
+    Assert.isMainThread();
+    numbersInViewport = numbers;
+    for (DialerPhoneNumber number : numbers) {
+      if (cache.get(number) == null) {
+        queueLookup(number);
+      }
+    }
   }
 
-  /** Clears the internal cache. */
+  /** Clears the internal cache and forgets the viewport until it is reported again. */
   @MainThread
   public void clearCache() {
     Assert.isMainThread();
-    cache.clear();
+    cache.evictAll();
+    numbersInViewport = null;
+  }
+
+  @MainThread
+  private ListenableFuture<Optional<PhoneLookupInfo>> queueLookup(DialerPhoneNumber number) {
+    ListenableFuture<PhoneLookupInfo> ongoingLookup = ongoingLookups.get(number);
+    if (ongoingLookup != null) {
+      return Futures.transform(ongoingLookup, Optional::of, MoreExecutors.directExecutor());
+    }
+
+    SettableFuture<Optional<PhoneLookupInfo>> queuedLookup = queuedLookups.get(number);
+    if (queuedLookup == null) {
+      queuedLookup = SettableFuture.create();
+      queuedLookups.put(number, queuedLookup);
+      if (!startQueuedLookupsPosted) {
+        Choreographer.getInstance().postFrameCallback(startQueuedLookupsCallback);
+        startQueuedLookupsPosted = true;
+      }
+    }
+    return queuedLookup;
+  }
+
+  @MainThread
+  private void startQueuedLookups() {
+    Assert.isMainThread();
+    startQueuedLookupsPosted = false;
+
+    int startedLookups = 0;
+    for (Entry<DialerPhoneNumber, SettableFuture<Optional<PhoneLookupInfo>>> entry :
+        queuedLookups.entrySet()) {
+      DialerPhoneNumber number = entry.getKey();
+      SettableFuture<Optional<PhoneLookupInfo>> queuedLookup = entry.getValue();
+      if (numbersInViewport != null && !numbersInViewport.contains(number)) {
+        queuedLookup.set(Optional.absent());
+        continue;
+      }
+
+      ListenableFuture<PhoneLookupInfo> phoneLookupInfoFuture = compositePhoneLookup.lookup(number);
+      ongoingLookups.put(number, phoneLookupInfoFuture);
+      startedLookups++;
+      Futures.addCallback(
+          phoneLookupInfoFuture,
+          new FutureCallback<PhoneLookupInfo>() {
+            @Override
+            public void onSuccess(PhoneLookupInfo phoneLookupInfo) {
+              ongoingLookups.remove(number);
+              queuePhoneLookupHistoryWrite(number, phoneLookupInfo);
+              cache.put(number, phoneLookupInfo);
+            }
+
+            @Override
+            public void onFailure(Throwable throwable) {
+              // The failure is propagated to the rows through queuedLookup.
+              ongoingLookups.remove(number);
+            }
+          },
+          uiExecutor /* ensures the cache is updated on a single thread */);
+      queuedLookup.setFuture(
+          Futures.transform(phoneLookupInfoFuture, Optional::of, MoreExecutors.directExecutor()));
+    }
+    LogUtil.v(
+        "RealtimeRowProcessor.startQueuedLookups",
+        "started %d lookups, %d ongoing, %d cached",
+        startedLookups,
+        ongoingLookups.size(),
+        cache.size());
+    queuedLookups.clear();
   }
 
   @MainThread
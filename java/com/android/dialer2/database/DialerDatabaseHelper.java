@@ -44,13 +44,21 @@ import com.android.dialer2.common.concurrent.DialerExecutorComponent;
 import com.android.dialer2.common.database.Selection;
 import com.android.dialer2.configprovider.ConfigProviderBindings;
 import com.android.dialer2.database.FilteredNumberContract.FilteredNumberColumns;
+import com.android.dialer2.smartdial.util.SmartDialMatchPosition;
 import com.android.dialer2.smartdial.util.SmartDialNameMatcher;
 import com.android.dialer2.smartdial.util.SmartDialPrefix;
 import com.android.dialer2.util.PermissionsUtil;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Database helper for smart dial. Designed as a singleton to make sure there is only one access
@@ -83,10 +91,42 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
 
   private static final String DATABASE_VERSION_PROPERTY = "database_version";
   private static final int MAX_ENTRIES = 20;
+  /** Maximum number of rows kept by {@link #getLooseMatchCandidates}. */
+  private static final int MAX_CANDIDATES = 500;
+
+  /** Number of updated rows whose prefixes are generated and written together. */
+  private static final int UPDATE_CHUNK_SIZE = 250;
+  /** Maximum number of chunks read from the contacts provider but not written yet. */
+  private static final int MAX_UPDATE_CHUNKS_IN_FLIGHT = 8;
+
+  /**
+   * The ranking of the in-memory trie depends on the time it was built, see {@link
+   * SmartDialSortingOrder#SORT_BY_DATA_USAGE}. Older tries are not used for lookups.
+   */
+  private static final long MAX_SMART_DIAL_TRIE_AGE_MILLIS = TimeUnit.HOURS.toMillis(6);
+
+  /** Columns of the smart dial table needed to build a {@link ContactNumber}. */
+  private static final String LOOSE_MATCH_COLUMNS =
+      SmartDialDbColumns.DATA_ID
+          + ", "
+          + SmartDialDbColumns.DISPLAY_NAME_PRIMARY
+          + ", "
+          + SmartDialDbColumns.PHOTO_ID
+          + ", "
+          + SmartDialDbColumns.NUMBER
+          + ", "
+          + SmartDialDbColumns.CONTACT_ID
+          + ", "
+          + SmartDialDbColumns.LOOKUP_KEY
+          + ", "
+          + SmartDialDbColumns.CARRIER_PRESENCE;
 
   private final Context context;
   private boolean isTestInstance = false;
 
+  /** In-memory index of the smart dial database, or null if it hasn't been built yet. */
+  @Nullable private volatile SmartDialTrie smartDialTrie;
+
   protected DialerDatabaseHelper(Context context, String databaseName, int dbVersion) {
     super(context, databaseName, null, dbVersion);
     this.context = Objects.requireNonNull(context, "Context must not be null");
@@ -359,18 +399,20 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
    * @param db Database to operate on.
    * @param lastUpdatedTimeMillis the last time at which an update to the smart dial database was
    *     run.
+   * @return The number of rows removed from both tables.
    */
-  private void removeDeletedContacts(SQLiteDatabase db, String lastUpdatedTimeMillis) {
+  private int removeDeletedContacts(SQLiteDatabase db, String lastUpdatedTimeMillis) {
     Cursor deletedContactCursor = getDeletedContactCursor(lastUpdatedTimeMillis);
 
     if (deletedContactCursor == null) {
-      return;
+      return 0;
     }
 
+    int removedRows = 0;
     db.beginTransaction();
     try {
       if (!deletedContactCursor.moveToFirst()) {
-        return;
+        return 0;
       }
 
       do {
@@ -385,17 +427,19 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
 
         Selection smartDialSelection =
             Selection.column(SmartDialDbColumns.CONTACT_ID).is("=", deleteContactId);
-        db.delete(
-            Tables.SMARTDIAL_TABLE,
-            smartDialSelection.getSelection(),
-            smartDialSelection.getSelectionArgs());
+        removedRows +=
+            db.delete(
+                Tables.SMARTDIAL_TABLE,
+                smartDialSelection.getSelection(),
+                smartDialSelection.getSelectionArgs());
 
         Selection prefixSelection =
             Selection.column(PrefixColumns.CONTACT_ID).is("=", deleteContactId);
-        db.delete(
-            Tables.PREFIX_TABLE,
-            prefixSelection.getSelection(),
-            prefixSelection.getSelectionArgs());
+        removedRows +=
+            db.delete(
+                Tables.PREFIX_TABLE,
+                prefixSelection.getSelection(),
+                prefixSelection.getSelectionArgs());
       } while (deletedContactCursor.moveToNext());
 
       db.setTransactionSuccessful();
@@ -403,6 +447,7 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
       deletedContactCursor.close();
       db.endTransaction();
     }
+    return removedRows;
   }
 
   private Cursor getDeletedContactCursor(String lastUpdateMillis) {
@@ -423,26 +468,30 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
    *
    * @param db Database pointer to the dialer database.
    * @param last_update_time Time stamp of last successful update of the dialer database.
+   * @return The number of rows removed from both tables.
    */
-  private void removePotentiallyCorruptedContacts(SQLiteDatabase db, String last_update_time) {
-    db.delete(
-        Tables.PREFIX_TABLE,
-        PrefixColumns.CONTACT_ID
-            + " IN "
-            + "(SELECT "
-            + SmartDialDbColumns.CONTACT_ID
-            + " FROM "
-            + Tables.SMARTDIAL_TABLE
-            + " WHERE "
-            + SmartDialDbColumns.LAST_SMARTDIAL_UPDATE_TIME
-            + " > "
-            + last_update_time
-            + ")",
-        null);
-    db.delete(
-        Tables.SMARTDIAL_TABLE,
-        SmartDialDbColumns.LAST_SMARTDIAL_UPDATE_TIME + " > " + last_update_time,
-        null);
+  private int removePotentiallyCorruptedContacts(SQLiteDatabase db, String last_update_time) {
+    final int removedPrefixes =
+        db.delete(
+            Tables.PREFIX_TABLE,
+            PrefixColumns.CONTACT_ID
+                + " IN "
+                + "(SELECT "
+                + SmartDialDbColumns.CONTACT_ID
+                + " FROM "
+                + Tables.SMARTDIAL_TABLE
+                + " WHERE "
+                + SmartDialDbColumns.LAST_SMARTDIAL_UPDATE_TIME
+                + " > "
+                + last_update_time
+                + ")",
+            null);
+    final int removedRows =
+        db.delete(
+            Tables.SMARTDIAL_TABLE,
+            SmartDialDbColumns.LAST_SMARTDIAL_UPDATE_TIME + " > " + last_update_time,
+            null);
+    return removedPrefixes + removedRows;
   }
 
   /**
@@ -450,9 +499,11 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
    *
    * @param db Database pointer to the smartdial database
    * @param updatedContactCursor Cursor pointing to the list of recently updated contacts.
+   * @return The number of rows removed from both tables.
    */
   @VisibleForTesting
-  void removeUpdatedContacts(SQLiteDatabase db, Cursor updatedContactCursor) {
+  int removeUpdatedContacts(SQLiteDatabase db, Cursor updatedContactCursor) {
+    int removedRows = 0;
     db.beginTransaction();
     try {
       updatedContactCursor.moveToPosition(-1);
@@ -466,179 +517,224 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
 
         final Long contactId = updatedContactCursor.getLong(UpdatedContactQuery.UPDATED_CONTACT_ID);
 
-        db.delete(Tables.SMARTDIAL_TABLE, SmartDialDbColumns.CONTACT_ID + "=" + contactId, null);
-        db.delete(Tables.PREFIX_TABLE, PrefixColumns.CONTACT_ID + "=" + contactId, null);
+        removedRows +=
+            db.delete(
+                Tables.SMARTDIAL_TABLE, SmartDialDbColumns.CONTACT_ID + "=" + contactId, null);
+        removedRows +=
+            db.delete(Tables.PREFIX_TABLE, PrefixColumns.CONTACT_ID + "=" + contactId, null);
       }
 
       db.setTransactionSuccessful();
     } finally {
       db.endTransaction();
     }
+    return removedRows;
   }
 
   /**
-   * Inserts updated contacts as rows to the smartdial table.
+   * Inserts updated contacts as rows to the smartdial table, and the prefixes of their numbers and
+   * names to the prefix table.
+   *
+   * <p>Rows are read from the cursor in chunks of {@link #UPDATE_CHUNK_SIZE}. The prefixes of each
+   * chunk are generated on the {@link DialerExecutorComponent#lowPriorityThreadPool()} while the
+   * calling thread reads the following chunks, and the calling thread writes the chunks in order,
+   * each in its own transaction. If the pool hasn't started a chunk by the time it is needed, the
+   * calling thread generates the prefixes itself.
    *
    * @param db Database pointer to the smartdial database.
    * @param updatedContactCursor Cursor pointing to the list of recently updated contacts.
    * @param currentMillis Current time to be recorded in the smartdial table as update timestamp.
+   * @return The number of rows inserted into the smartdial table.
    */
   @VisibleForTesting
-  protected void insertUpdatedContactsAndNumberPrefix(
+  protected int insertUpdatedContactsAndPrefixes(
       SQLiteDatabase db, Cursor updatedContactCursor, Long currentMillis) {
-    db.beginTransaction();
-    try {
-      final String sqlInsert =
-          "INSERT INTO "
-              + Tables.SMARTDIAL_TABLE
-              + " ("
-              + SmartDialDbColumns.DATA_ID
-              + ", "
-              + SmartDialDbColumns.NUMBER
-              + ", "
-              + SmartDialDbColumns.CONTACT_ID
-              + ", "
-              + SmartDialDbColumns.LOOKUP_KEY
-              + ", "
-              + SmartDialDbColumns.DISPLAY_NAME_PRIMARY
-              + ", "
-              + SmartDialDbColumns.PHOTO_ID
-              + ", "
-              + SmartDialDbColumns.LAST_TIME_USED
-              + ", "
-              + SmartDialDbColumns.TIMES_USED
-              + ", "
-              + SmartDialDbColumns.STARRED
-              + ", "
-              + SmartDialDbColumns.IS_SUPER_PRIMARY
-              + ", "
-              + SmartDialDbColumns.IN_VISIBLE_GROUP
-              + ", "
-              + SmartDialDbColumns.IS_PRIMARY
-              + ", "
-              + SmartDialDbColumns.CARRIER_PRESENCE
-              + ", "
-              + SmartDialDbColumns.LAST_SMARTDIAL_UPDATE_TIME
-              + ") "
-              + " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
-      final SQLiteStatement insert = db.compileStatement(sqlInsert);
-
-      final String numberSqlInsert =
-          "INSERT INTO "
-              + Tables.PREFIX_TABLE
-              + " ("
-              + PrefixColumns.CONTACT_ID
-              + ", "
-              + PrefixColumns.PREFIX
-              + ") "
-              + " VALUES (?, ?)";
-      final SQLiteStatement numberInsert = db.compileStatement(numberSqlInsert);
+    final ExecutorService threadPool =
+        DialerExecutorComponent.get(context).lowPriorityThreadPool();
+    final String missingName = context.getResources().getString(R.string.missing_name);
 
-      updatedContactCursor.moveToPosition(-1);
-      while (updatedContactCursor.moveToNext()) {
-        insert.clearBindings();
+    final String sqlInsert =
+        "INSERT INTO "
+            + Tables.SMARTDIAL_TABLE
+            + " ("
+            + SmartDialDbColumns.DATA_ID
+            + ", "
+            + SmartDialDbColumns.NUMBER
+            + ", "
+            + SmartDialDbColumns.CONTACT_ID
+            + ", "
+            + SmartDialDbColumns.LOOKUP_KEY
+            + ", "
+            + SmartDialDbColumns.DISPLAY_NAME_PRIMARY
+            + ", "
+            + SmartDialDbColumns.PHOTO_ID
+            + ", "
+            + SmartDialDbColumns.LAST_TIME_USED
+            + ", "
+            + SmartDialDbColumns.TIMES_USED
+            + ", "
+            + SmartDialDbColumns.STARRED
+            + ", "
+            + SmartDialDbColumns.IS_SUPER_PRIMARY
+            + ", "
+            + SmartDialDbColumns.IN_VISIBLE_GROUP
+            + ", "
+            + SmartDialDbColumns.IS_PRIMARY
+            + ", "
+            + SmartDialDbColumns.CARRIER_PRESENCE
+            + ", "
+            + SmartDialDbColumns.LAST_SMARTDIAL_UPDATE_TIME
+            + ") "
+            + " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    final SQLiteStatement insert = db.compileStatement(sqlInsert);
 
-        if (updatedContactCursor.isNull(PhoneQuery.PHONE_ID)) {
-          LogUtil.i(
-              "DialerDatabaseHelper.insertUpdatedContactsAndNumberPrefix",
-              "_id column null. Row was deleted during iteration, skipping");
-          continue;
+    final String prefixSqlInsert =
+        "INSERT INTO "
+            + Tables.PREFIX_TABLE
+            + " ("
+            + PrefixColumns.CONTACT_ID
+            + ", "
+            + PrefixColumns.PREFIX
+            + ") "
+            + " VALUES (?, ?)";
+    final SQLiteStatement prefixInsert = db.compileStatement(prefixSqlInsert);
+
+    /** Distinct contact ID and name pairs whose name prefixes are already being generated. */
+    final Set<String> indexedNames = new HashSet<>();
+    final ArrayDeque<FutureTask<UpdatedContactChunk>> chunksInFlight = new ArrayDeque<>();
+    int insertedRows = 0;
+    try {
+      updatedContactCursor.moveToPosition(-1);
+      UpdatedContactChunk chunk;
+      while ((chunk = readUpdatedContactChunk(updatedContactCursor, missingName, indexedNames))
+          != null) {
+        final FutureTask<UpdatedContactChunk> task = new FutureTask<>(chunk);
+        chunksInFlight.add(task);
+        threadPool.execute(task);
+
+        if (chunksInFlight.size() >= MAX_UPDATE_CHUNKS_IN_FLIGHT) {
+          insertedRows +=
+              writeUpdatedContactChunk(
+                  db, insert, prefixInsert, getChunk(chunksInFlight.remove()), currentMillis);
         }
+      }
+      while (!chunksInFlight.isEmpty()) {
+        insertedRows +=
+            writeUpdatedContactChunk(
+                db, insert, prefixInsert, getChunk(chunksInFlight.remove()), currentMillis);
+      }
+    } finally {
+      for (FutureTask<UpdatedContactChunk> task : chunksInFlight) {
+        task.cancel(false);
+      }
+      insert.close();
+      prefixInsert.close();
+    }
+    return insertedRows;
+  }
 
-        // Handle string columns which can possibly be null first. In the case of certain
-        // null columns (due to malformed rows possibly inserted by third-party apps
-        // or sync adapters), skip the phone number row.
-        final String number = updatedContactCursor.getString(PhoneQuery.PHONE_NUMBER);
-        if (TextUtils.isEmpty(number)) {
-          continue;
-        } else {
-          insert.bindString(2, number);
-        }
+  /**
+   * Reads up to {@link #UPDATE_CHUNK_SIZE} valid rows from the cursor.
+   *
+   * @return The rows, or null if the cursor is exhausted.
+   */
+  @Nullable
+  private UpdatedContactChunk readUpdatedContactChunk(
+      Cursor updatedContactCursor, String missingName, Set<String> indexedNames) {
+    final ArrayList<UpdatedContactRow> rows = new ArrayList<>(UPDATE_CHUNK_SIZE);
+    while (rows.size() < UPDATE_CHUNK_SIZE && updatedContactCursor.moveToNext()) {
+      if (updatedContactCursor.isNull(PhoneQuery.PHONE_ID)) {
+        LogUtil.i(
+            "DialerDatabaseHelper.readUpdatedContactChunk",
+            "_id column null. Row was deleted during iteration, skipping");
+        continue;
+      }
 
-        final String lookupKey = updatedContactCursor.getString(PhoneQuery.PHONE_LOOKUP_KEY);
-        if (TextUtils.isEmpty(lookupKey)) {
-          continue;
-        } else {
-          insert.bindString(4, lookupKey);
-        }
+      // Handle string columns which can possibly be null first. In the case of certain
+      // null columns (due to malformed rows possibly inserted by third-party apps
+      // or sync adapters), skip the phone number row.
+      final String number = updatedContactCursor.getString(PhoneQuery.PHONE_NUMBER);
+      if (TextUtils.isEmpty(number)) {
+        continue;
+      }
 
-        final String displayName = updatedContactCursor.getString(PhoneQuery.PHONE_DISPLAY_NAME);
-        if (displayName == null) {
-          insert.bindString(5, context.getResources().getString(R.string.missing_name));
-        } else {
-          insert.bindString(5, displayName);
-        }
-        insert.bindLong(1, updatedContactCursor.getLong(PhoneQuery.PHONE_ID));
-        insert.bindLong(3, updatedContactCursor.getLong(PhoneQuery.PHONE_CONTACT_ID));
-        insert.bindLong(6, updatedContactCursor.getLong(PhoneQuery.PHONE_PHOTO_ID));
-        insert.bindLong(7, updatedContactCursor.getLong(PhoneQuery.PHONE_LAST_TIME_USED));
-        insert.bindLong(8, updatedContactCursor.getInt(PhoneQuery.PHONE_TIMES_USED));
-        insert.bindLong(9, updatedContactCursor.getInt(PhoneQuery.PHONE_STARRED));
-        insert.bindLong(10, updatedContactCursor.getInt(PhoneQuery.PHONE_IS_SUPER_PRIMARY));
-        insert.bindLong(11, updatedContactCursor.getInt(PhoneQuery.PHONE_IN_VISIBLE_GROUP));
-        insert.bindLong(12, updatedContactCursor.getInt(PhoneQuery.PHONE_IS_PRIMARY));
-        insert.bindLong(13, updatedContactCursor.getInt(PhoneQuery.PHONE_CARRIER_PRESENCE));
-        insert.bindLong(14, currentMillis);
-        insert.executeInsert();
-        final String contactPhoneNumber = updatedContactCursor.getString(PhoneQuery.PHONE_NUMBER);
-        final ArrayList<String> numberPrefixes =
-            SmartDialPrefix.parseToNumberTokens(context, contactPhoneNumber);
-
-        for (String numberPrefix : numberPrefixes) {
-          numberInsert.bindLong(1, updatedContactCursor.getLong(PhoneQuery.PHONE_CONTACT_ID));
-          numberInsert.bindString(2, numberPrefix);
-          numberInsert.executeInsert();
-          numberInsert.clearBindings();
-        }
+      final String lookupKey = updatedContactCursor.getString(PhoneQuery.PHONE_LOOKUP_KEY);
+      if (TextUtils.isEmpty(lookupKey)) {
+        continue;
       }
 
-      db.setTransactionSuccessful();
-    } finally {
-      db.endTransaction();
+      final String displayName = updatedContactCursor.getString(PhoneQuery.PHONE_DISPLAY_NAME);
+      final UpdatedContactRow row =
+          new UpdatedContactRow(
+              updatedContactCursor.getLong(PhoneQuery.PHONE_ID),
+              number,
+              updatedContactCursor.getLong(PhoneQuery.PHONE_CONTACT_ID),
+              lookupKey,
+              displayName == null ? missingName : displayName,
+              updatedContactCursor.getLong(PhoneQuery.PHONE_PHOTO_ID),
+              updatedContactCursor.getLong(PhoneQuery.PHONE_LAST_TIME_USED),
+              updatedContactCursor.getInt(PhoneQuery.PHONE_TIMES_USED),
+              updatedContactCursor.getInt(PhoneQuery.PHONE_STARRED),
+              updatedContactCursor.getInt(PhoneQuery.PHONE_IS_SUPER_PRIMARY),
+              updatedContactCursor.getInt(PhoneQuery.PHONE_IN_VISIBLE_GROUP),
+              updatedContactCursor.getInt(PhoneQuery.PHONE_IS_PRIMARY),
+              updatedContactCursor.getInt(PhoneQuery.PHONE_CARRIER_PRESENCE));
+      row.indexName = indexedNames.add(row.contactId + "/" + row.displayName);
+      rows.add(row);
+    }
+    return rows.isEmpty() ? null : new UpdatedContactChunk(context, rows);
+  }
+
+  /** Waits for the prefixes of a chunk, generating them on this thread if not started yet. */
+  private static UpdatedContactChunk getChunk(FutureTask<UpdatedContactChunk> task) {
+    // No-op if the thread pool already started the task.
+    task.run();
+    try {
+      return task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("interrupted while updating smart dial database", e);
+    } catch (ExecutionException e) {
+      throw new IllegalStateException("failed to generate smart dial prefixes", e.getCause());
     }
   }
 
   /**
-   * Inserts prefixes of contact names to the prefix table.
+   * Writes a chunk of rows and their prefixes in a single transaction.
    *
-   * @param db Database pointer to the smartdial database.
-   * @param nameCursor Cursor pointing to the list of distinct updated contacts.
+   * @return The number of rows written to the smartdial table.
    */
-  @VisibleForTesting
-  void insertNamePrefixes(SQLiteDatabase db, Cursor nameCursor) {
-    final int columnIndexName = nameCursor.getColumnIndex(SmartDialDbColumns.DISPLAY_NAME_PRIMARY);
-    final int columnIndexContactId = nameCursor.getColumnIndex(SmartDialDbColumns.CONTACT_ID);
-
+  private static int writeUpdatedContactChunk(
+      SQLiteDatabase db,
+      SQLiteStatement insert,
+      SQLiteStatement prefixInsert,
+      UpdatedContactChunk chunk,
+      long currentMillis) {
     db.beginTransaction();
     try {
-      final String sqlInsert =
-          "INSERT INTO "
-              + Tables.PREFIX_TABLE
-              + " ("
-              + PrefixColumns.CONTACT_ID
-              + ", "
-              + PrefixColumns.PREFIX
-              + ") "
-              + " VALUES (?, ?)";
-      final SQLiteStatement insert = db.compileStatement(sqlInsert);
-
-      while (nameCursor.moveToNext()) {
-        if (nameCursor.isNull(columnIndexContactId)) {
-          LogUtil.i(
-              "DialerDatabaseHelper.insertNamePrefixes",
-              "contact_id column null. Row was deleted during iteration, skipping");
-          continue;
-        }
-
-        /** Computes a list of prefixes of a given contact name. */
-        final ArrayList<String> namePrefixes =
-            SmartDialPrefix.generateNamePrefixes(context, nameCursor.getString(columnIndexName));
+      for (UpdatedContactRow row : chunk.rows) {
+        insert.clearBindings();
+        insert.bindLong(1, row.dataId);
+        insert.bindString(2, row.number);
+        insert.bindLong(3, row.contactId);
+        insert.bindString(4, row.lookupKey);
+        insert.bindString(5, row.displayName);
+        insert.bindLong(6, row.photoId);
+        insert.bindLong(7, row.lastTimeUsed);
+        insert.bindLong(8, row.timesUsed);
+        insert.bindLong(9, row.starred);
+        insert.bindLong(10, row.isSuperPrimary);
+        insert.bindLong(11, row.inVisibleGroup);
+        insert.bindLong(12, row.isPrimary);
+        insert.bindLong(13, row.carrierPresence);
+        insert.bindLong(14, currentMillis);
+        insert.executeInsert();
 
-        for (String namePrefix : namePrefixes) {
-          insert.bindLong(1, nameCursor.getLong(columnIndexContactId));
-          insert.bindString(2, namePrefix);
-          insert.executeInsert();
-          insert.clearBindings();
+        for (String prefix : row.prefixes) {
+          prefixInsert.bindLong(1, row.contactId);
+          prefixInsert.bindString(2, prefix);
+          prefixInsert.executeInsert();
+          prefixInsert.clearBindings();
         }
       }
 
@@ -646,6 +742,7 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
     } finally {
       db.endTransaction();
     }
+    return chunk.rows.size();
   }
 
   /**
@@ -687,9 +784,21 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
       stopWatch.lap("Queried the Contacts database");
     }
 
+    /**
+     * Makes sure that lookups can be served from memory while the tables are modified, so that they
+     * keep seeing the previous state until the update completes. A trie that is only too old is
+     * rebuilt once at the end instead, and lookups query the database until then.
+     */
+    if (smartDialTrie == null) {
+      rebuildSmartDialTrie(db);
+      if (DEBUG) {
+        stopWatch.lap("Built the smart dial trie of the previous update");
+      }
+    }
+
     /** Removes contacts that have been deleted. */
-    removeDeletedContacts(db, lastUpdateMillis);
-    removePotentiallyCorruptedContacts(db, lastUpdateMillis);
+    int changedRows = removeDeletedContacts(db, lastUpdateMillis);
+    changedRows += removePotentiallyCorruptedContacts(db, lastUpdateMillis);
 
     if (DEBUG) {
       stopWatch.lap("Finished deleting deleted entries");
@@ -721,7 +830,7 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
         return;
       }
       try {
-        removeUpdatedContacts(db, updatedContactCursor);
+        changedRows += removeUpdatedContacts(db, updatedContactCursor);
       } finally {
         updatedContactCursor.close();
       }
@@ -751,48 +860,15 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
     }
 
     try {
-      /** Inserts recently updated phone numbers to the smartdial database. */
-      insertUpdatedContactsAndNumberPrefix(db, updatedPhoneCursor, currentMillis);
+      /** Inserts recently updated phone numbers and their prefixes to the smartdial database. */
+      changedRows += insertUpdatedContactsAndPrefixes(db, updatedPhoneCursor, currentMillis);
       if (DEBUG) {
-        stopWatch.lap("Finished building the smart dial table");
+        stopWatch.lap("Finished building the smart dial and prefix tables");
       }
     } finally {
       updatedPhoneCursor.close();
     }
 
-    /**
-     * Gets a list of distinct contacts which have been updated, and adds the name prefixes of these
-     * contacts to the prefix table.
-     */
-    final Cursor nameCursor =
-        db.rawQuery(
-            "SELECT DISTINCT "
-                + SmartDialDbColumns.DISPLAY_NAME_PRIMARY
-                + ", "
-                + SmartDialDbColumns.CONTACT_ID
-                + " FROM "
-                + Tables.SMARTDIAL_TABLE
-                + " WHERE "
-                + SmartDialDbColumns.LAST_SMARTDIAL_UPDATE_TIME
-                + " = "
-                + currentMillis,
-            new String[] {});
-    if (nameCursor != null) {
-      try {
-        if (DEBUG) {
-          stopWatch.lap("Queried the smart dial table for contact names");
-        }
-
-        /** Inserts prefixes of names into the prefix table. */
-        insertNamePrefixes(db, nameCursor);
-        if (DEBUG) {
-          stopWatch.lap("Finished building the name prefix table");
-        }
-      } finally {
-        nameCursor.close();
-      }
-    }
-
     /** Creates index on contact_id for fast JOIN operation. */
     db.execSQL(
         "CREATE INDEX IF NOT EXISTS smartdial_contact_id_index ON "
@@ -858,6 +934,18 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
       stopWatch.stopAndLog(TAG + "Finished updating index stats", 0);
     }
 
+    /**
+     * Rebuilds the in-memory index from the updated tables, unless it already reflects them and its
+     * ranking is still accurate.
+     */
+    if (changedRows > 0 || !isUsable(smartDialTrie)) {
+      rebuildSmartDialTrie(db);
+    } else {
+      LogUtil.i(
+          "DialerDatabaseHelper.updateSmartDialDatabase",
+          "no rows changed, keeping smart dial trie");
+    }
+
     final SharedPreferences.Editor editor = databaseLastUpdateSharedPref.edit();
     editor.putLong(LAST_UPDATED_MILLIS, currentMillis);
     editor.apply();
@@ -870,15 +958,199 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
     context.sendBroadcast(intent);
   }
 
+  /**
+   * Loads the smart dial and prefix tables into a new {@link SmartDialTrie} and makes it available
+   * to {@link #getLooseMatches(String, SmartDialNameMatcher)}.
+   *
+   * @param db Database pointer to the smartdial database.
+   */
+  @VisibleForTesting
+  void rebuildSmartDialTrie(SQLiteDatabase db) {
+    final long currentMillis = System.currentTimeMillis();
+
+    /** Collects all prefixes of each contact. */
+    final HashMap<Long, ArrayList<String>> prefixesByContact = new HashMap<>();
+    final Cursor prefixCursor =
+        db.rawQuery(
+            "SELECT "
+                + PrefixColumns.CONTACT_ID
+                + ", "
+                + PrefixColumns.PREFIX
+                + " FROM "
+                + Tables.PREFIX_TABLE,
+            new String[] {});
+    if (prefixCursor == null) {
+      smartDialTrie = null;
+      return;
+    }
+    try {
+      while (prefixCursor.moveToNext()) {
+        final long contactId = prefixCursor.getLong(0);
+        ArrayList<String> prefixes = prefixesByContact.get(contactId);
+        if (prefixes == null) {
+          prefixes = new ArrayList<>();
+          prefixesByContact.put(contactId, prefixes);
+        }
+        prefixes.add(prefixCursor.getString(1));
+      }
+    } finally {
+      prefixCursor.close();
+    }
+
+    /** Adds the rows in the order in which getLooseMatches returns them. */
+    final Cursor cursor =
+        db.rawQuery(
+            "SELECT "
+                + LOOSE_MATCH_COLUMNS
+                + " FROM "
+                + Tables.SMARTDIAL_TABLE
+                + " ORDER BY "
+                + SmartDialSortingOrder.SORT_ORDER,
+            new String[] {Long.toString(currentMillis)});
+    if (cursor == null) {
+      smartDialTrie = null;
+      return;
+    }
+    final SmartDialTrie.Builder builder = new SmartDialTrie.Builder(currentMillis);
+    try {
+      /** Gets the column ID from the cursor, see LOOSE_MATCH_COLUMNS. */
+      final int columnDataId = 0;
+      final int columnDisplayNamePrimary = 1;
+      final int columnPhotoId = 2;
+      final int columnNumber = 3;
+      final int columnId = 4;
+      final int columnLookupKey = 5;
+      final int columnCarrierPresence = 6;
+
+      while (cursor.moveToNext()) {
+        final long id = cursor.getLong(columnId);
+        final ArrayList<String> prefixes = prefixesByContact.get(id);
+        if (prefixes == null) {
+          // Not in the prefix table, so not reachable through the SQL query either.
+          continue;
+        }
+        builder.addRow(
+            new ContactNumber(
+                id,
+                cursor.getLong(columnDataId),
+                cursor.getString(columnDisplayNamePrimary),
+                cursor.getString(columnNumber),
+                cursor.getString(columnLookupKey),
+                cursor.getLong(columnPhotoId),
+                cursor.getInt(columnCarrierPresence)),
+            prefixes);
+      }
+    } finally {
+      cursor.close();
+    }
+
+    final SmartDialTrie trie = builder.build();
+    LogUtil.i(
+        "DialerDatabaseHelper.rebuildSmartDialTrie",
+        "built trie with %d rows and %d nodes",
+        trie.getRowCount(),
+        trie.getNodeCount());
+    smartDialTrie = trie;
+  }
+
+  /** Returns true if {@code trie} has been built and its ranking is still accurate enough. */
+  private static boolean isUsable(@Nullable SmartDialTrie trie) {
+    return trie != null
+        && System.currentTimeMillis() - trie.getCreatedMillis() < MAX_SMART_DIAL_TRIE_AGE_MILLIS;
+  }
+
   /**
    * Returns a list of candidate contacts where the query is a prefix of the dialpad index of the
    * contact's name or phone number.
    *
+   * <p>The in-memory {@link SmartDialTrie} is used when it is available, and the database is
+   * queried otherwise.
+   *
    * @param query The prefix of a contact's dialpad index.
    * @return A list of top candidate contacts that will be suggested to user to match their input.
    */
   @WorkerThread
-  public synchronized ArrayList<ContactNumber> getLooseMatches(
+  public ArrayList<ContactNumber> getLooseMatches(String query, SmartDialNameMatcher nameMatcher) {
+    final SmartDialTrie trie = smartDialTrie;
+    if (isUsable(trie)) {
+      final StopWatch stopWatch = DEBUG ? StopWatch.start(":Trie query") : null;
+      final ArrayList<ContactNumber> result =
+          trie.getLooseMatches(context, query, nameMatcher, MAX_ENTRIES);
+      if (DEBUG) {
+        stopWatch.stopAndLog(TAG + "Finished trie query", 0);
+      }
+      return result;
+    }
+    return getLooseMatchesFromDatabase(query, nameMatcher);
+  }
+
+  /**
+   * Returns every row that matches the query, so that the matches of longer queries can be found by
+   * narrowing down the result instead of looking them up again.
+   *
+   * <p>If {@code previous} was returned for a prefix of {@code query} and the in-memory index
+   * hasn't been rebuilt since, its rows are filtered. Otherwise the rows are looked up in the
+   * in-memory index.
+   *
+   * @param query The prefix of a contact's dialpad index.
+   * @param previous The candidates returned for a previous query, if any.
+   * @return The candidates, or null if the in-memory index isn't available or too many rows match.
+   */
+  @Nullable
+  @WorkerThread
+  public LooseMatchCandidates getLooseMatchCandidates(
+      String query, SmartDialNameMatcher nameMatcher, @Nullable LooseMatchCandidates previous) {
+    final SmartDialTrie trie = smartDialTrie;
+    if (!isUsable(trie)) {
+      return null;
+    }
+
+    // An empty query doesn't match any name, so it can't be narrowed down.
+    if (previous != null
+        && previous.trie == trie
+        && !previous.query.isEmpty()
+        && query.startsWith(previous.query)) {
+      final ArrayList<LooseMatchCandidate> narrowed = new ArrayList<>();
+      for (LooseMatchCandidate candidate : previous.candidates) {
+        final LooseMatchCandidate match = candidate.narrow(context, query, nameMatcher);
+        if (match != null) {
+          narrowed.add(match);
+        }
+      }
+      return new LooseMatchCandidates(trie, query, narrowed);
+    }
+
+    final ArrayList<LooseMatchCandidate> candidates =
+        trie.getLooseMatchCandidates(context, query, nameMatcher, MAX_CANDIDATES);
+    return candidates == null ? null : new LooseMatchCandidates(trie, query, candidates);
+  }
+
+  /**
+   * Returns the top candidate contacts among {@code candidates}, in the same way as {@link
+   * #getLooseMatches(String, SmartDialNameMatcher)} does for the candidates' query.
+   */
+  public ArrayList<ContactNumber> getLooseMatches(LooseMatchCandidates candidates) {
+    final ArrayList<ContactNumber> result = new ArrayList<>();
+    final Set<ContactMatch> duplicates = new HashSet<>();
+    for (LooseMatchCandidate candidate : candidates.candidates) {
+      if (result.size() >= MAX_ENTRIES) {
+        break;
+      }
+      final ContactNumber contactNumber = candidate.contactNumber;
+      if (duplicates.add(new ContactMatch(contactNumber.lookupKey, contactNumber.id))) {
+        result.add(contactNumber);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Same as {@link #getLooseMatches(String, SmartDialNameMatcher)}, but always queries the
+   * database.
+   */
+  @VisibleForTesting
+  @WorkerThread
+  synchronized ArrayList<ContactNumber> getLooseMatchesFromDatabase(
       String query, SmartDialNameMatcher nameMatcher) {
     final SQLiteDatabase db = getReadableDatabase();
 
@@ -895,19 +1167,7 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
     final Cursor cursor =
         db.rawQuery(
             "SELECT "
-                + SmartDialDbColumns.DATA_ID
-                + ", "
-                + SmartDialDbColumns.DISPLAY_NAME_PRIMARY
-                + ", "
-                + SmartDialDbColumns.PHOTO_ID
-                + ", "
-                + SmartDialDbColumns.NUMBER
-                + ", "
-                + SmartDialDbColumns.CONTACT_ID
-                + ", "
-                + SmartDialDbColumns.LOOKUP_KEY
-                + ", "
-                + SmartDialDbColumns.CARRIER_PRESENCE
+                + LOOSE_MATCH_COLUMNS
                 + " FROM "
                 + Tables.SMARTDIAL_TABLE
                 + " WHERE "
@@ -1268,6 +1528,160 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
     }
   }
 
+  /** A row of the smart dial table that matches a query, along with what matched. */
+  public static class LooseMatchCandidate {
+
+    public final ContactNumber contactNumber;
+    /** Positions of the name match, empty if the name doesn't match. */
+    public final ArrayList<SmartDialMatchPosition> nameMatchPositions;
+    /** Position of the number match, null if the number doesn't match. */
+    @Nullable public final SmartDialMatchPosition numberMatchPosition;
+
+    private LooseMatchCandidate(
+        ContactNumber contactNumber,
+        ArrayList<SmartDialMatchPosition> nameMatchPositions,
+        @Nullable SmartDialMatchPosition numberMatchPosition) {
+      this.contactNumber = contactNumber;
+      this.nameMatchPositions = nameMatchPositions;
+      this.numberMatchPosition = numberMatchPosition;
+    }
+
+    /** Returns a candidate if the name or number of {@code contactNumber} matches the query. */
+    @Nullable
+    static LooseMatchCandidate match(
+        Context context,
+        ContactNumber contactNumber,
+        String query,
+        SmartDialNameMatcher nameMatcher) {
+      final ArrayList<SmartDialMatchPosition> nameMatchPositions =
+          nameMatcher.matches(context, contactNumber.displayName)
+              ? nameMatcher.getMatchPositions()
+              : new ArrayList<>();
+      final SmartDialMatchPosition numberMatchPosition =
+          nameMatcher.matchesNumber(context, contactNumber.phoneNumber, query);
+      if (nameMatchPositions.isEmpty() && numberMatchPosition == null) {
+        return null;
+      }
+      return new LooseMatchCandidate(contactNumber, nameMatchPositions, numberMatchPosition);
+    }
+
+    /**
+     * Returns a candidate if this row still matches {@code query}, which extends the query this
+     * candidate was matched against. A name or number that didn't match the shorter query can't
+     * match the longer one, so it isn't checked again.
+     */
+    @Nullable
+    LooseMatchCandidate narrow(Context context, String query, SmartDialNameMatcher nameMatcher) {
+      final ArrayList<SmartDialMatchPosition> narrowedNamePositions =
+          !nameMatchPositions.isEmpty() && nameMatcher.matches(context, contactNumber.displayName)
+              ? nameMatcher.getMatchPositions()
+              : new ArrayList<>();
+      final SmartDialMatchPosition narrowedNumberPosition =
+          numberMatchPosition != null
+              ? nameMatcher.matchesNumber(context, contactNumber.phoneNumber, query)
+              : null;
+      if (narrowedNamePositions.isEmpty() && narrowedNumberPosition == null) {
+        return null;
+      }
+      return new LooseMatchCandidate(contactNumber, narrowedNamePositions, narrowedNumberPosition);
+    }
+  }
+
+  /**
+   * All rows matching a query in ranking order, without removing duplicated contacts. See {@link
+   * #getLooseMatchCandidates(String, SmartDialNameMatcher, LooseMatchCandidates)}.
+   */
+  public static class LooseMatchCandidates {
+
+    /** The index the candidates were found in. Candidates can't be reused once it is replaced. */
+    private final SmartDialTrie trie;
+
+    public final String query;
+    public final ArrayList<LooseMatchCandidate> candidates;
+
+    private LooseMatchCandidates(
+        SmartDialTrie trie, String query, ArrayList<LooseMatchCandidate> candidates) {
+      this.trie = trie;
+      this.query = query;
+      this.candidates = candidates;
+    }
+  }
+
+  /** A row of the contacts provider that will be inserted into the smartdial table. */
+  private static class UpdatedContactRow {
+
+    final long dataId;
+    final String number;
+    final long contactId;
+    final String lookupKey;
+    final String displayName;
+    final long photoId;
+    final long lastTimeUsed;
+    final int timesUsed;
+    final int starred;
+    final int isSuperPrimary;
+    final int inVisibleGroup;
+    final int isPrimary;
+    final int carrierPresence;
+
+    /** Whether the prefixes of the name should be inserted along with this row. */
+    boolean indexName;
+    /** Prefixes to insert into the prefix table, set by {@link UpdatedContactChunk#call()}. */
+    ArrayList<String> prefixes;
+
+    UpdatedContactRow(
+        long dataId,
+        String number,
+        long contactId,
+        String lookupKey,
+        String displayName,
+        long photoId,
+        long lastTimeUsed,
+        int timesUsed,
+        int starred,
+        int isSuperPrimary,
+        int inVisibleGroup,
+        int isPrimary,
+        int carrierPresence) {
+      this.dataId = dataId;
+      this.number = number;
+      this.contactId = contactId;
+      this.lookupKey = lookupKey;
+      this.displayName = displayName;
+      this.photoId = photoId;
+      this.lastTimeUsed = lastTimeUsed;
+      this.timesUsed = timesUsed;
+      this.starred = starred;
+      this.isSuperPrimary = isSuperPrimary;
+      this.inVisibleGroup = inVisibleGroup;
+      this.isPrimary = isPrimary;
+      this.carrierPresence = carrierPresence;
+    }
+  }
+
+  /** Generates the number and name prefixes of a chunk of updated rows. */
+  private static class UpdatedContactChunk implements Callable<UpdatedContactChunk> {
+
+    private final Context context;
+    final ArrayList<UpdatedContactRow> rows;
+
+    UpdatedContactChunk(Context context, ArrayList<UpdatedContactRow> rows) {
+      this.context = context;
+      this.rows = rows;
+    }
+
+    @Override
+    public UpdatedContactChunk call() {
+      for (UpdatedContactRow row : rows) {
+        row.prefixes = SmartDialPrefix.parseToNumberTokens(context, row.number);
+        if (row.indexName) {
+          row.prefixes.addAll(SmartDialPrefix.generateNamePrefixes(context, row.displayName));
+        }
+      }
+      return this;
+    }
+  }
+
   /** Data format for finding duplicated contacts. */
   private static class ContactMatch {
 
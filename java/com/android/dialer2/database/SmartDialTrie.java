@@ -0,0 +1,464 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer2.database;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import com.android.dialer2.database.DialerDatabaseHelper.ContactNumber;
+import com.android.dialer2.database.DialerDatabaseHelper.LooseMatchCandidate;
+import com.android.dialer2.smartdial.util.SmartDialNameMatcher;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * An immutable, in-memory trie of the dialpad index prefixes stored in the prefix table.
+ *
+ * <p>Each smart dial row is assigned an ordinal that reflects its position in the smart dial sort
+ * order at the time the trie is built. Every prefix string of a contact is inserted into the trie,
+ * and the node where the string ends records the ordinals of all rows belonging to that contact. A
+ * query matches a row if the query is a prefix of any of the strings of the row's contact, which is
+ * equivalent to the row being recorded somewhere in the subtree of the query's node.
+ *
+ * <p>Since each node also knows the smallest ordinal in its subtree, the best ranked rows can be
+ * enumerated in order with a small priority queue, without visiting the whole subtree. All node
+ * data is kept in primitive arrays to keep the footprint small for large address books.
+ */
+final class SmartDialTrie {
+
+  /** Keys on the dialpad. Dialpad indexes and normalized numbers only contain digits 0-9. */
+  private static final int RADIX = 10;
+
+  private static final int NO_NODE = -1;
+  private static final int NO_ROW = -1;
+  private static final int ROOT = 0;
+
+  private final ContactNumber[] rows;
+  /** Index of the deduplication key ({@code lookupKey}, {@code id}) of each row. */
+  private final int[] rowContacts;
+
+  private final int[] firstChild;
+  private final int[] nextSibling;
+  private final byte[] digits;
+  private final int[] subtreeMinRow;
+  /** Upper bound of the number of rows in the subtree of each node. */
+  private final int[] subtreeRowBound;
+  private final int[] postingHead;
+
+  private final int[] postingRow;
+  private final int[] postingNext;
+
+  private final long createdMillis;
+
+  /** Per-lookup scratch space, guarded by {@code this}. */
+  private final int[] contactStamps;
+
+  private final int[] rowStamps;
+  private int stamp;
+  private long[] heap = new long[32];
+  private int heapSize;
+
+  private SmartDialTrie(Builder builder) {
+    rows = builder.rows.toArray(new ContactNumber[builder.rows.size()]);
+    rowContacts = Arrays.copyOf(builder.rowContacts, rows.length);
+
+    firstChild = Arrays.copyOf(builder.firstChild, builder.nodeCount);
+    nextSibling = Arrays.copyOf(builder.nextSibling, builder.nodeCount);
+    digits = Arrays.copyOf(builder.digits, builder.nodeCount);
+    subtreeMinRow = Arrays.copyOf(builder.subtreeMinRow, builder.nodeCount);
+    subtreeRowBound = Arrays.copyOf(builder.subtreeRowBound, builder.nodeCount);
+    postingHead = Arrays.copyOf(builder.postingHead, builder.nodeCount);
+
+    postingRow = Arrays.copyOf(builder.postingRow, builder.postingCount);
+    postingNext = Arrays.copyOf(builder.postingNext, builder.postingCount);
+
+    contactStamps = new int[builder.contactKeys.size()];
+    rowStamps = new int[rows.length];
+    createdMillis = builder.createdMillis;
+  }
+
+  /** Returns the wall clock time at which the rows of this trie were ranked. */
+  long getCreatedMillis() {
+    return createdMillis;
+  }
+
+  /** Returns the number of rows stored in this trie. */
+  int getRowCount() {
+    return rows.length;
+  }
+
+  /** Returns the number of nodes in this trie. */
+  int getNodeCount() {
+    return firstChild.length;
+  }
+
+  /**
+   * Returns the best ranked contacts whose index has {@code query} as a prefix and whose name or
+   * number is accepted by {@code nameMatcher}, in the same order and with the same deduplication as
+   * {@link DialerDatabaseHelper#getLooseMatches(String, SmartDialNameMatcher)}.
+   *
+   * @param query The normalized query, only containing digits.
+   * @param maxEntries The maximum number of contacts to return.
+   */
+  @NonNull
+  synchronized ArrayList<ContactNumber> getLooseMatches(
+      Context context, String query, SmartDialNameMatcher nameMatcher, int maxEntries) {
+    final ArrayList<ContactNumber> result = new ArrayList<>();
+    if (!startIteration(findNode(query))) {
+      return result;
+    }
+
+    int row;
+    while (result.size() < maxEntries && (row = nextRow()) != NO_ROW) {
+      final int contact = rowContacts[row];
+      if (contactStamps[contact] == stamp) {
+        // Another number of the contact was already added.
+        continue;
+      }
+
+      final ContactNumber contactNumber = rows[row];
+      final boolean nameMatches = nameMatcher.matches(context, contactNumber.displayName);
+      final boolean numberMatches =
+          nameMatcher.matchesNumber(context, contactNumber.phoneNumber, query) != null;
+      if (nameMatches || numberMatches) {
+        contactStamps[contact] = stamp;
+        result.add(contactNumber);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns every row whose index has {@code query} as a prefix and whose name or number is
+   * accepted by {@code nameMatcher}, in rank order and without deduplicating contacts.
+   *
+   * @param query The normalized query, only containing digits.
+   * @param maxCandidates The maximum number of rows to return.
+   * @return The matching rows, or null if there may be more than {@code maxCandidates} of them.
+   */
+  @Nullable
+  synchronized ArrayList<LooseMatchCandidate> getLooseMatchCandidates(
+      Context context, String query, SmartDialNameMatcher nameMatcher, int maxCandidates) {
+    final ArrayList<LooseMatchCandidate> result = new ArrayList<>();
+    final int node = findNode(query);
+    if (node == NO_NODE) {
+      return result;
+    }
+    if (subtreeRowBound[node] > maxCandidates) {
+      // Too broad to be worth narrowing down, avoid running the matcher on every row.
+      return null;
+    }
+    if (!startIteration(node)) {
+      return result;
+    }
+
+    int row;
+    while ((row = nextRow()) != NO_ROW) {
+      final LooseMatchCandidate candidate =
+          LooseMatchCandidate.match(context, rows[row], query, nameMatcher);
+      if (candidate != null) {
+        result.add(candidate);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Prepares {@link #nextRow()} to return the rows in the subtree of {@code node}.
+   *
+   * @return false if there are no such rows.
+   */
+  private boolean startIteration(int node) {
+    if (node == NO_NODE || subtreeMinRow[node] == Integer.MAX_VALUE) {
+      return false;
+    }
+
+    nextStamp();
+    heapSize = 0;
+    push(subtreeMinRow[node], encodeNode(node));
+    return true;
+  }
+
+  /**
+   * Returns the next best ranked row of the current iteration, or {@link #NO_ROW} if all matching
+   * rows have been returned. Each row is returned at most once.
+   */
+  private int nextRow() {
+    while (heapSize > 0) {
+      final int target = (int) pop();
+
+      if (isNode(target)) {
+        final int expanded = decode(target);
+        final int head = postingHead[expanded];
+        if (head != NO_NODE) {
+          push(postingRow[head], encodePosting(head));
+        }
+        for (int child = firstChild[expanded]; child != NO_NODE; child = nextSibling[child]) {
+          push(subtreeMinRow[child], encodeNode(child));
+        }
+        continue;
+      }
+
+      final int posting = decode(target);
+      final int next = postingNext[posting];
+      if (next != NO_NODE) {
+        push(postingRow[next], encodePosting(next));
+      }
+
+      final int row = postingRow[posting];
+      if (rowStamps[row] == stamp) {
+        // Reached again through another prefix string of the contact.
+        continue;
+      }
+      rowStamps[row] = stamp;
+      return row;
+    }
+    return NO_ROW;
+  }
+
+  private int findNode(String query) {
+    int node = ROOT;
+    for (int i = 0; i < query.length() && node != NO_NODE; i++) {
+      final int digit = query.charAt(i) - '0';
+      if (digit < 0 || digit >= RADIX) {
+        return NO_NODE;
+      }
+      node = findChild(firstChild, nextSibling, digits, node, (byte) digit);
+    }
+    return node;
+  }
+
+  private void nextStamp() {
+    stamp++;
+    if (stamp == 0) {
+      // Wrapped around, forget all previous lookups.
+      Arrays.fill(contactStamps, 0);
+      Arrays.fill(rowStamps, 0);
+      stamp = 1;
+    }
+  }
+
+  /*
+   * Heap entries pack the ordinal used for ordering in the upper 32 bits and the target in the lower
+   * 32 bits. Even targets are nodes still to be expanded, odd targets are cursors into the posting
+   * list of a node.
+   */
+
+  private static int encodeNode(int node) {
+    return node << 1;
+  }
+
+  private static int encodePosting(int posting) {
+    return (posting << 1) | 1;
+  }
+
+  private static boolean isNode(int target) {
+    return (target & 1) == 0;
+  }
+
+  private static int decode(int target) {
+    return target >>> 1;
+  }
+
+  private void push(int rowOrdinal, int target) {
+    if (heapSize == heap.length) {
+      heap = Arrays.copyOf(heap, heapSize * 2);
+    }
+    final long entry = ((long) rowOrdinal << 32) | (target & 0xffffffffL);
+    int i = heapSize++;
+    while (i > 0) {
+      final int parent = (i - 1) >>> 1;
+      if (heap[parent] <= entry) {
+        break;
+      }
+      heap[i] = heap[parent];
+      i = parent;
+    }
+    heap[i] = entry;
+  }
+
+  private long pop() {
+    final long top = heap[0];
+    final int size = --heapSize;
+    final long last = heap[size];
+    int i = 0;
+    while (true) {
+      int child = 2 * i + 1;
+      if (child >= size) {
+        break;
+      }
+      if (child + 1 < size && heap[child + 1] < heap[child]) {
+        child++;
+      }
+      if (last <= heap[child]) {
+        break;
+      }
+      heap[i] = heap[child];
+      i = child;
+    }
+    if (size > 0) {
+      heap[i] = last;
+    }
+    return top;
+  }
+
+  private static int findChild(
+      int[] firstChild, int[] nextSibling, byte[] digits, int node, byte digit) {
+    for (int child = firstChild[node]; child != NO_NODE; child = nextSibling[child]) {
+      if (digits[child] == digit) {
+        return child;
+      }
+    }
+    return NO_NODE;
+  }
+
+  /**
+   * Builds a {@link SmartDialTrie}. Rows must be added in the order in which they should be
+   * returned.
+   */
+  static final class Builder {
+
+    private final long createdMillis;
+
+    private final ArrayList<ContactNumber> rows = new ArrayList<>();
+    private final HashMap<String, Integer> contactKeys = new HashMap<>();
+    private int[] rowContacts = new int[64];
+
+    private int nodeCount;
+    private int[] firstChild = new int[256];
+    private int[] nextSibling = new int[256];
+    private byte[] digits = new byte[256];
+    private int[] subtreeMinRow = new int[256];
+    private int[] subtreeRowBound = new int[256];
+    private int[] postingHead = new int[256];
+    private int[] postingTail = new int[256];
+
+    private int postingCount;
+    private int[] postingRow = new int[256];
+    private int[] postingNext = new int[256];
+
+    Builder(long createdMillis) {
+      this.createdMillis = createdMillis;
+      newNode((byte) 0);
+    }
+
+    /**
+     * Adds a row that can be looked up by any prefix of any of {@code prefixes}.
+     *
+     * @param contactNumber The row to add.
+     * @param prefixes The dialpad index strings of the row's contact.
+     */
+    void addRow(ContactNumber contactNumber, Iterable<String> prefixes) {
+      final int row = rows.size();
+      rows.add(contactNumber);
+
+      final String contactKey = contactNumber.lookupKey + '/' + contactNumber.id;
+      Integer contact = contactKeys.get(contactKey);
+      if (contact == null) {
+        contact = contactKeys.size();
+        contactKeys.put(contactKey, contact);
+      }
+      if (row == rowContacts.length) {
+        rowContacts = Arrays.copyOf(rowContacts, row * 2);
+      }
+      rowContacts[row] = contact;
+
+      for (String prefix : prefixes) {
+        insert(prefix, row);
+      }
+    }
+
+    SmartDialTrie build() {
+      return new SmartDialTrie(this);
+    }
+
+    private void insert(String prefix, int row) {
+      for (int i = 0; i < prefix.length(); i++) {
+        final int digit = prefix.charAt(i) - '0';
+        if (digit < 0 || digit >= RADIX) {
+          // Can't be typed on the dialpad, the SQL query wouldn't match it either.
+          return;
+        }
+      }
+
+      int node = ROOT;
+      markSubtree(node, row);
+      for (int i = 0; i < prefix.length(); i++) {
+        final byte digit = (byte) (prefix.charAt(i) - '0');
+        int child = findChild(firstChild, nextSibling, digits, node, digit);
+        if (child == NO_NODE) {
+          child = newNode(digit);
+          nextSibling[child] = firstChild[node];
+          firstChild[node] = child;
+        }
+        node = child;
+        markSubtree(node, row);
+      }
+
+      // Rows are added in ascending order, so the posting lists stay sorted and a duplicate can
+      // only be the last entry.
+      final int tail = postingTail[node];
+      if (tail != NO_NODE && postingRow[tail] == row) {
+        return;
+      }
+      if (postingCount == postingRow.length) {
+        postingRow = Arrays.copyOf(postingRow, postingCount * 2);
+        postingNext = Arrays.copyOf(postingNext, postingCount * 2);
+      }
+      final int posting = postingCount++;
+      postingRow[posting] = row;
+      postingNext[posting] = NO_NODE;
+      if (tail == NO_NODE) {
+        postingHead[node] = posting;
+      } else {
+        postingNext[tail] = posting;
+      }
+      postingTail[node] = posting;
+    }
+
+    private void markSubtree(int node, int row) {
+      if (row < subtreeMinRow[node]) {
+        subtreeMinRow[node] = row;
+      }
+      // Counts a row once per prefix string, hence only an upper bound.
+      subtreeRowBound[node]++;
+    }
+
+    private int newNode(byte digit) {
+      if (nodeCount == firstChild.length) {
+        final int capacity = nodeCount * 2;
+        firstChild = Arrays.copyOf(firstChild, capacity);
+        nextSibling = Arrays.copyOf(nextSibling, capacity);
+        digits = Arrays.copyOf(digits, capacity);
+        subtreeMinRow = Arrays.copyOf(subtreeMinRow, capacity);
+        subtreeRowBound = Arrays.copyOf(subtreeRowBound, capacity);
+        postingHead = Arrays.copyOf(postingHead, capacity);
+        postingTail = Arrays.copyOf(postingTail, capacity);
+      }
+      final int node = nodeCount++;
+      firstChild[node] = NO_NODE;
+      nextSibling[node] = NO_NODE;
+      digits[node] = digit;
+      subtreeMinRow[node] = Integer.MAX_VALUE;
+      subtreeRowBound[node] = 0;
+      postingHead[node] = NO_NODE;
+      postingTail[node] = NO_NODE;
+      return node;
+    }
+  }
+}
@@ -18,27 +18,24 @@ package com.android.dialer2.lookup;
 
 import com.android.dialer2.phonenumbercache.ContactInfo;
 
+import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.provider.ContactsContract.Contacts;
 import android.telephony.PhoneNumberUtils;
 import android.telephony.TelephonyManager;
-import android.util.JsonReader;
-import android.util.JsonWriter;
 import android.util.Log;
 
-import com.android.dialer2.util.DialerUtils;
+import com.android.dialer2.lookup.LookupCacheDatabase.Columns;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.InputStreamReader;
-import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.util.ArrayList;
-import java.util.List;
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -46,6 +43,7 @@ import org.json.JSONObject;
 public class LookupCache {
     private static final String TAG = LookupCache.class.getSimpleName();
 
+    // Keys of the JSON files the cache used to be stored in
     public static final String NAME = "Name";
     public static final String TYPE = "Type";
     public static final String LABEL = "Label";
@@ -56,6 +54,30 @@ public class LookupCache {
     //public static final String PHOTO_URI = "PhotoURI";
     public static final String LOOKUP_URI = "LookupURI";
 
+    /** Number of cached contacts after which the least recently used are evicted. */
+    private static final int MAX_ENTRIES = 1000;
+    /** Age after which a cached contact is looked up again. */
+    private static final long MAX_AGE_MILLIS = TimeUnit.DAYS.toMillis(30);
+    /** Images larger than this aren't cached, they'd bloat the database. */
+    static final int MAX_IMAGE_BYTES = 512 * 1024;
+
+    private static final String SELECT_NUMBER = Columns.NORMALIZED_NUMBER + " = ? AND "
+            + Columns.CREATED_TIME + " > ?";
+    // Rows added by cacheImage() before the contact was cached have no type
+    private static final String SELECT_CONTACT = SELECT_NUMBER + " AND "
+            + Columns.TYPE + " IS NOT NULL";
+
+    private static final String[] CONTACT_PROJECTION = new String[] {
+        Columns.NAME, // 0
+        Columns.TYPE, // 1
+        Columns.LABEL, // 2
+        Columns.NUMBER, // 3
+        Columns.FORMATTED_NUMBER, // 4
+        Columns.PHOTO_ID, // 5
+        Columns.LOOKUP_URI, // 6
+        Columns.IMAGE + " IS NOT NULL", // 7
+    };
+
     public static boolean hasCachedContact(Context context, String number) {
         String normalizedNumber = formatE164(context, number);
 
@@ -63,53 +85,49 @@ public class LookupCache {
             return false;
         }
 
-        File file = getFilePath(context, normalizedNumber);
-        return file.exists();
+        return count(context, SELECT_CONTACT, getSelectionArgs(normalizedNumber)) > 0;
     }
 
     public static void cacheContact(Context context, ContactInfo info) {
-        File file = getFilePath(context, info.normalizedNumber);
-
-        if (file.exists()) {
-            file.delete();
+        if (info.normalizedNumber == null) {
+            return;
         }
 
-        FileOutputStream out = null;
-        JsonWriter writer = null;
+        long now = System.currentTimeMillis();
+        ContentValues values = new ContentValues();
+        values.put(Columns.NAME, info.name);
+        values.put(Columns.TYPE, info.type);
+        values.put(Columns.LABEL, info.label);
+        values.put(Columns.NUMBER, info.number);
+        values.put(Columns.FORMATTED_NUMBER, info.formattedNumber);
+        values.put(Columns.PHOTO_ID, info.photoId);
+        values.put(Columns.LOOKUP_URI,
+                info.lookupUri != null ? info.lookupUri.toString() : null);
+        values.put(Columns.CREATED_TIME, now);
+        values.put(Columns.LAST_ACCESS_TIME, now);
+
+        // We do not save the photo URI. If there's a cached image, that
+        // will be used when the contact is retrieved. Otherwise, photoUri
+        // will be set to null.
 
         try {
-            out = new FileOutputStream(file);
-            writer = new JsonWriter(new OutputStreamWriter(out, "UTF-8"));
-            writer.setIndent("  ");
-            List messages = new ArrayList();
-
-            writer.beginObject();
-            if (info.name != null) writer.name(NAME).value(info.name);
-            writer.name(TYPE).value(info.type);
-            if (info.label != null) writer.name(LABEL).value(info.label);
-            if (info.number != null) writer.name(NUMBER).value(info.number);
-            if (info.formattedNumber != null) {
-                writer.name(FORMATTED_NUMBER).value(info.formattedNumber);
-            }
-            if (info.normalizedNumber != null) {
-                writer.name(NORMALIZED_NUMBER).value(info.normalizedNumber);
-            }
-            writer.name(PHOTO_ID).value(info.photoId);
-
-            if (info.lookupUri != null) {
-                writer.name(LOOKUP_URI).value(info.lookupUri.toString());
+            SQLiteDatabase db = getDatabase(context);
+            db.beginTransaction();
+            try {
+                // An update keeps the image already cached for the number
+                if (db.update(LookupCacheDatabase.TABLE, values,
+                        Columns.NORMALIZED_NUMBER + " = ?",
+                        new String[] { info.normalizedNumber }) == 0) {
+                    values.put(Columns.NORMALIZED_NUMBER, info.normalizedNumber);
+                    db.insert(LookupCacheDatabase.TABLE, null, values);
+                }
+                evict(db, now);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
             }
-
-            // We do not save the photo URI. If there's a cached image, that
-            // will be used when the contact is retrieved. Otherwise, photoUri
-            // will be set to null.
-
-            writer.endObject();
-        } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            DialerUtils.closeQuietly(writer);
-            DialerUtils.closeQuietly(out);
+        } catch (SQLiteException e) {
+            Log.e(TAG, "Failed to cache contact", e);
         }
     }
 
@@ -120,113 +138,83 @@ public class LookupCache {
             return null;
         }
 
-        File file = getFilePath(context, normalizedNumber);
-        if (!file.exists()) {
-            // Whatever is calling this should probably check anyway
-            return null;
-        }
-
         ContactInfo info = new ContactInfo();
-
-        FileInputStream in = null;
-        JsonReader reader = null;
+        boolean hasImage;
 
         try {
-            in = new FileInputStream(file);
-            reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
-
-            reader.beginObject();
-            while (reader.hasNext()) {
-                String name = reader.nextName();
-
-                if (NAME.equals(name)) {
-                    info.name = reader.nextString();
-                } else if (TYPE.equals(name)) {
-                    info.type = reader.nextInt();
-                } else if (LABEL.equals(name)) {
-                    info.label = reader.nextString();
-                } else if (NUMBER.equals(name)) {
-                    info.number = reader.nextString();
-                } else if (FORMATTED_NUMBER.equals(name)) {
-                    info.formattedNumber = reader.nextString();
-                } else if (NORMALIZED_NUMBER.equals(name)) {
-                    info.normalizedNumber = reader.nextString();
-                } else if (PHOTO_ID.equals(name)) {
-                    info.photoId = reader.nextInt();
-                } else if (LOOKUP_URI.equals(name)) {
-                    Uri lookupUri = Uri.parse(reader.nextString());
-
-                    if (hasCachedImage(context, normalizedNumber)) {
-                        // Insert cached photo URI
-                        Uri image = Uri.withAppendedPath(
-                                LookupProvider.IMAGE_CACHE_URI,
-                                Uri.encode(normalizedNumber));
-
-                        String json = lookupUri.getEncodedFragment();
-                        if (json != null) {
-                            try {
-                                JSONObject jsonObj = new JSONObject(json);
-                                jsonObj.putOpt(Contacts.PHOTO_URI, image.toString());
-                                lookupUri = lookupUri.buildUpon()
-                                        .encodedFragment(jsonObj.toString())
-                                        .build();
-                            } catch (JSONException e) {
-                                Log.e(TAG, "Failed to add image URI to json", e);
-                            }
-                        }
-
-                        info.photoUri = image;
-                    }
-
-                    info.lookupUri = lookupUri;
+            SQLiteDatabase db = getDatabase(context);
+            Cursor cursor = db.query(LookupCacheDatabase.TABLE, CONTACT_PROJECTION,
+                    SELECT_CONTACT, getSelectionArgs(normalizedNumber), null, null, null);
+            try {
+                if (!cursor.moveToFirst()) {
+                    // Whatever is calling this should probably check anyway
+                    return null;
                 }
+
+                info.name = cursor.getString(0);
+                info.type = cursor.getInt(1);
+                info.label = cursor.getString(2);
+                info.number = cursor.getString(3);
+                info.formattedNumber = cursor.getString(4);
+                info.normalizedNumber = normalizedNumber;
+                info.photoId = cursor.getLong(5);
+                if (!cursor.isNull(6)) {
+                    info.lookupUri = Uri.parse(cursor.getString(6));
+                }
+                hasImage = cursor.getInt(7) != 0;
+            } finally {
+                cursor.close();
             }
-            reader.endObject();
-        } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            DialerUtils.closeQuietly(reader);
-            DialerUtils.closeQuietly(in);
-        }
 
-        return info;
-    }
+            touch(db, normalizedNumber);
+        } catch (SQLiteException e) {
+            Log.e(TAG, "Failed to read cached contact", e);
+            return null;
+        }
 
-    public static void deleteCachedContacts(Context context) {
-        File dir = new File(context.getCacheDir()
-                + File.separator + "lookup");
+        if (hasImage && info.lookupUri != null) {
+            // Insert cached photo URI
+            Uri image = Uri.withAppendedPath(
+                    LookupProvider.IMAGE_CACHE_URI,
+                    Uri.encode(normalizedNumber));
+
+            String json = info.lookupUri.getEncodedFragment();
+            if (json != null) {
+                try {
+                    JSONObject jsonObj = new JSONObject(json);
+                    jsonObj.putOpt(Contacts.PHOTO_URI, image.toString());
+                    info.lookupUri = info.lookupUri.buildUpon()
+                            .encodedFragment(jsonObj.toString())
+                            .build();
+                } catch (JSONException e) {
+                    Log.e(TAG, "Failed to add image URI to json", e);
+                }
+            }
 
-        if (!dir.exists()) {
-            Log.v(TAG, "Lookup cache directory does not exist. Not clearing it.");
-            return;
+            info.photoUri = image;
         }
 
-        if (!dir.isDirectory()) {
-            Log.e(TAG, "Path " + dir + " is not a directory");
-            return;
-        }
+        return info;
+    }
 
-        File[] files = dir.listFiles();
-        if (files != null) {
-            for (File file : files) {
-                if (file.isFile()) {
-                    file.delete();
-                }
-            }
+    public static void deleteCachedContacts(Context context) {
+        try {
+            getDatabase(context).delete(LookupCacheDatabase.TABLE, null, null);
+        } catch (SQLiteException e) {
+            Log.e(TAG, "Failed to clear lookup cache", e);
         }
+        LookupCacheDatabase.deleteLegacyImages(context);
     }
 
     public static void deleteCachedContact(
             Context context, String normalizedNumber) {
-        File f = getFilePath(context, normalizedNumber);
-        if (f.exists()) {
-            f.delete();
-        }
-
-        f = getImagePath(context, normalizedNumber);
-        if (f.exists()) {
-            f.delete();
+        try {
+            getDatabase(context).delete(LookupCacheDatabase.TABLE,
+                    Columns.NORMALIZED_NUMBER + " = ?", new String[] { normalizedNumber });
+        } catch (SQLiteException e) {
+            Log.e(TAG, "Failed to delete cached contact", e);
         }
+        LookupCacheDatabase.deleteLegacyImage(context, normalizedNumber);
     }
 
     public static boolean hasCachedImage(Context context, String number) {
@@ -236,8 +224,8 @@ public class LookupCache {
             return false;
         }
 
-        File file = getImagePath(context, normalizedNumber);
-        return file.exists();
+        return count(context, SELECT_NUMBER + " AND " + Columns.IMAGE + " IS NOT NULL",
+                getSelectionArgs(normalizedNumber)) > 0;
     }
 
     public static Uri cacheImage(Context context,
@@ -248,58 +236,121 @@ public class LookupCache {
             return null;
         }
 
-        File image = getImagePath(context, normalizedNumber);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (!bmp.compress(Bitmap.CompressFormat.WEBP, 100, out)) {
+            Log.e(TAG, "Failed to compress image");
+            return null;
+        }
+        if (out.size() > MAX_IMAGE_BYTES) {
+            Log.w(TAG, "Not caching image of " + out.size() + " bytes");
+            return null;
+        }
 
-        FileOutputStream out = null;
+        long now = System.currentTimeMillis();
+        ContentValues values = new ContentValues();
+        values.put(Columns.IMAGE, out.toByteArray());
+        values.put(Columns.LAST_ACCESS_TIME, now);
 
         try {
-            out = new FileOutputStream(image);
-            bmp.compress(Bitmap.CompressFormat.WEBP, 100, out);
-            return Uri.fromFile(image);
-        } catch (Exception e) {
-            e.printStackTrace();
-        } finally {
-            DialerUtils.closeQuietly(out);
+            SQLiteDatabase db = getDatabase(context);
+            db.beginTransaction();
+            try {
+                if (db.update(LookupCacheDatabase.TABLE, values, Columns.NORMALIZED_NUMBER
+                        + " = ?", new String[] { normalizedNumber }) == 0) {
+                    // The image arrived before the contact, keep it for when it does
+                    values.put(Columns.NORMALIZED_NUMBER, normalizedNumber);
+                    values.put(Columns.CREATED_TIME, now);
+                    db.insert(LookupCacheDatabase.TABLE, null, values);
+                    evict(db, now);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (SQLiteException e) {
+            Log.e(TAG, "Failed to cache image", e);
+            return null;
         }
-        return null;
+
+        return Uri.withAppendedPath(LookupProvider.IMAGE_CACHE_URI,
+                Uri.encode(normalizedNumber));
     }
 
     public static Bitmap getCachedImage(Context context, String normalizedNumber) {
-        File image = getImagePath(context, normalizedNumber);
-        if (!image.exists()) {
+        byte[] image = getCachedImageBytes(context, normalizedNumber);
+        if (image == null) {
             return null;
         }
 
         BitmapFactory.Options options = new BitmapFactory.Options();
         options.inPreferredConfig = Bitmap.Config.ARGB_8888;
-        return BitmapFactory.decodeFile(image.getPath(), options);
-    }
-
-    private static String formatE164(Context context, String number) {
-        String countryIso = ((TelephonyManager) context.getSystemService(
-                Context.TELEPHONY_SERVICE)).getSimCountryIso().toUpperCase();
-        return PhoneNumberUtils.formatNumberToE164(number, countryIso);
+        return BitmapFactory.decodeByteArray(image, 0, image.length, options);
     }
 
-    private static File getFilePath(Context context, String normalizedNumber) {
-        File dir = new File(context.getCacheDir()
-                + File.separator + "lookup");
+    /** Returns the compressed cached image, or null if there is none. */
+    public static byte[] getCachedImageBytes(Context context, String normalizedNumber) {
+        try {
+            SQLiteDatabase db = getDatabase(context);
+            Cursor cursor = db.query(LookupCacheDatabase.TABLE,
+                    new String[] { Columns.IMAGE }, SELECT_NUMBER,
+                    getSelectionArgs(normalizedNumber), null, null, null);
+            byte[] image;
+            try {
+                image = cursor.moveToFirst() ? cursor.getBlob(0) : null;
+            } finally {
+                cursor.close();
+            }
 
-        if (!dir.exists()) {
-            dir.mkdirs();
+            if (image != null) {
+                touch(db, normalizedNumber);
+            }
+            return image;
+        } catch (SQLiteException e) {
+            Log.e(TAG, "Failed to read cached image", e);
+            return null;
         }
+    }
 
-        return new File(dir, normalizedNumber + ".json");
+    private static SQLiteDatabase getDatabase(Context context) {
+        return LookupCacheDatabase.getInstance(context).getWritableDatabase();
     }
 
-    public static File getImagePath(Context context, String normalizedNumber) {
-        File dir = new File(context.getCacheDir()
-                + File.separator + "lookup");
+    private static String[] getSelectionArgs(String normalizedNumber) {
+        long minCreatedTime = System.currentTimeMillis() - MAX_AGE_MILLIS;
+        return new String[] { normalizedNumber, String.valueOf(minCreatedTime) };
+    }
 
-        if (!dir.exists()) {
-            dir.mkdirs();
+    private static long count(Context context, String selection, String[] selectionArgs) {
+        try {
+            return DatabaseUtils.queryNumEntries(getDatabase(context),
+                    LookupCacheDatabase.TABLE, selection, selectionArgs);
+        } catch (SQLiteException e) {
+            Log.e(TAG, "Failed to query lookup cache", e);
+            return 0;
         }
+    }
 
-        return new File(dir, normalizedNumber + ".webp");
+    /** Marks an entry as recently used, so it's evicted last. */
+    private static void touch(SQLiteDatabase db, String normalizedNumber) {
+        ContentValues values = new ContentValues();
+        values.put(Columns.LAST_ACCESS_TIME, System.currentTimeMillis());
+        db.update(LookupCacheDatabase.TABLE, values,
+                Columns.NORMALIZED_NUMBER + " = ?", new String[] { normalizedNumber });
+    }
+
+    /** Removes expired entries and the least recently used ones beyond the size cap. */
+    static void evict(SQLiteDatabase db, long now) {
+        db.delete(LookupCacheDatabase.TABLE, Columns.CREATED_TIME + " <= ?",
+                new String[] { String.valueOf(now - MAX_AGE_MILLIS) });
+        db.delete(LookupCacheDatabase.TABLE, Columns.NORMALIZED_NUMBER + " IN (SELECT "
+                + Columns.NORMALIZED_NUMBER + " FROM " + LookupCacheDatabase.TABLE
+                + " ORDER BY " + Columns.LAST_ACCESS_TIME + " DESC LIMIT -1 OFFSET "
+                + MAX_ENTRIES + ")", null);
+    }
+
+    private static String formatE164(Context context, String number) {
+        String countryIso = ((TelephonyManager) context.getSystemService(
+                Context.TELEPHONY_SERVICE)).getSimCountryIso().toUpperCase();
+        return PhoneNumberUtils.formatNumberToE164(number, countryIso);
     }
 }
@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2018 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer2.lookup;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.AsyncTask;
+import android.util.JsonReader;
+import android.util.Log;
+
+import com.android.dialer2.util.DialerUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+
+/**
+ * Database backing {@link LookupCache}. Holds one row per normalized number, with the cached
+ * image stored inline.
+ *
+ * <p>The cache used to be a directory holding a JSON file and an image file per number. Those
+ * files are imported on a background thread once the database is created. The JSON files are
+ * deleted then, but the image files are kept: their file URIs were handed out as photo URIs and
+ * may still be stored elsewhere, e.g. in the call log. They are deleted along with the cached
+ * contacts.
+ */
+class LookupCacheDatabase extends SQLiteOpenHelper {
+    private static final String TAG = LookupCacheDatabase.class.getSimpleName();
+
+    private static final String DATABASE_NAME = "lookup.db";
+    private static final int DATABASE_VERSION = 1;
+
+    private static final String LEGACY_DIRECTORY = "lookup";
+    private static final String LEGACY_IMAGE_SUFFIX = ".webp";
+
+    static final String TABLE = "contacts";
+
+    interface Columns {
+        String NORMALIZED_NUMBER = "normalized_number";
+        String NAME = "name";
+        String TYPE = "type";
+        String LABEL = "label";
+        String NUMBER = "number";
+        String FORMATTED_NUMBER = "formatted_number";
+        String PHOTO_ID = "photo_id";
+        String LOOKUP_URI = "lookup_uri";
+        /** Compressed image, null if none was cached. */
+        String IMAGE = "image";
+        /** When the contact was looked up, used to expire entries. */
+        String CREATED_TIME = "created_time";
+        /** When the contact or image was last read, used to evict entries. */
+        String LAST_ACCESS_TIME = "last_access_time";
+    }
+
+    private static LookupCacheDatabase sInstance;
+
+    private final Context mContext;
+
+    static synchronized LookupCacheDatabase getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new LookupCacheDatabase(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private LookupCacheDatabase(Context context) {
+        // Lives in the cache directory like the files it replaces, the system may clear it
+        super(context, new File(context.getCacheDir(), DATABASE_NAME).getPath(),
+                null, DATABASE_VERSION);
+        mContext = context;
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE + " ("
+                + Columns.NORMALIZED_NUMBER + " TEXT PRIMARY KEY NOT NULL, "
+                + Columns.NAME + " TEXT, "
+                + Columns.TYPE + " INTEGER, "
+                + Columns.LABEL + " TEXT, "
+                + Columns.NUMBER + " TEXT, "
+                + Columns.FORMATTED_NUMBER + " TEXT, "
+                + Columns.PHOTO_ID + " INTEGER, "
+                + Columns.LOOKUP_URI + " TEXT, "
+                + Columns.IMAGE + " BLOB, "
+                + Columns.CREATED_TIME + " INTEGER NOT NULL, "
+                + Columns.LAST_ACCESS_TIME + " INTEGER NOT NULL);");
+        db.execSQL("CREATE INDEX last_access_time_index ON " + TABLE
+                + " (" + Columns.LAST_ACCESS_TIME + ");");
+
+        // Don't hold up whichever thread opened the database first
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(this::importLegacyFiles);
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // Everything in here can be looked up again
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE);
+        onCreate(db);
+    }
+
+    /** Moves the contents of the old per number files into the table. */
+    private void importLegacyFiles() {
+        File dir = new File(mContext.getCacheDir(), LEGACY_DIRECTORY);
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        int imported = 0;
+        try {
+            SQLiteDatabase db = getWritableDatabase();
+            db.beginTransaction();
+            try {
+                for (File file : files) {
+                    String fileName = file.getName();
+                    if (fileName.endsWith(".json")) {
+                        String normalizedNumber =
+                                fileName.substring(0, fileName.length() - ".json".length());
+                        ContentValues values = readLegacyContact(file);
+                        if (values != null) {
+                            File image = new File(dir, normalizedNumber + LEGACY_IMAGE_SUFFIX);
+                            if (image.isFile() && image.length() <= LookupCache.MAX_IMAGE_BYTES) {
+                                values.put(Columns.IMAGE, readLegacyImage(image));
+                            }
+                            values.put(Columns.NORMALIZED_NUMBER, normalizedNumber);
+                            // Each file was written when its contact was looked up
+                            values.put(Columns.CREATED_TIME, file.lastModified());
+                            values.put(Columns.LAST_ACCESS_TIME, now);
+                            // Contacts cached since the database was created are newer
+                            if (db.insertWithOnConflict(TABLE, null, values,
+                                    SQLiteDatabase.CONFLICT_IGNORE) != -1) {
+                                imported++;
+                            }
+                        }
+                    }
+                }
+                LookupCache.evict(db, now);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (SQLiteException e) {
+            Log.e(TAG, "Failed to import cached contacts", e);
+        }
+
+        for (File file : files) {
+            if (!file.getName().endsWith(LEGACY_IMAGE_SUFFIX)) {
+                file.delete();
+            }
+        }
+        Log.i(TAG, "Imported " + imported + " cached contacts");
+    }
+
+    /** Deletes the image file of a number which the old cache may have handed out a URI for. */
+    static void deleteLegacyImage(Context context, String normalizedNumber) {
+        new File(new File(context.getCacheDir(), LEGACY_DIRECTORY),
+                normalizedNumber + LEGACY_IMAGE_SUFFIX).delete();
+    }
+
+    /** Deletes the remaining files of the old cache. */
+    static void deleteLegacyImages(Context context) {
+        File dir = new File(context.getCacheDir(), LEGACY_DIRECTORY);
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private static ContentValues readLegacyContact(File file) {
+        ContentValues values = new ContentValues();
+        FileInputStream in = null;
+        JsonReader reader = null;
+
+        try {
+            in = new FileInputStream(file);
+            reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+
+                if (LookupCache.NAME.equals(name)) {
+                    values.put(Columns.NAME, reader.nextString());
+                } else if (LookupCache.TYPE.equals(name)) {
+                    values.put(Columns.TYPE, reader.nextInt());
+                } else if (LookupCache.LABEL.equals(name)) {
+                    values.put(Columns.LABEL, reader.nextString());
+                } else if (LookupCache.NUMBER.equals(name)) {
+                    values.put(Columns.NUMBER, reader.nextString());
+                } else if (LookupCache.FORMATTED_NUMBER.equals(name)) {
+                    values.put(Columns.FORMATTED_NUMBER, reader.nextString());
+                } else if (LookupCache.PHOTO_ID.equals(name)) {
+                    values.put(Columns.PHOTO_ID, reader.nextLong());
+                } else if (LookupCache.LOOKUP_URI.equals(name)) {
+                    values.put(Columns.LOOKUP_URI, reader.nextString());
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            return values;
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            Log.w(TAG, "Failed to import " + file, e);
+            return null;
+        } finally {
+            DialerUtils.closeQuietly(reader);
+            DialerUtils.closeQuietly(in);
+        }
+    }
+
+    private static byte[] readLegacyImage(File file) {
+        RandomAccessFile in = null;
+        try {
+            in = new RandomAccessFile(file, "r");
+            byte[] image = new byte[(int) in.length()];
+            in.readFully(image);
+            return image;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to import " + file, e);
+            return null;
+        } finally {
+            DialerUtils.closeQuietly(in);
+        }
+    }
+}
@@ -32,6 +32,8 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.os.SystemClock;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.CommonDataKinds.StructuredPostal;
 import android.provider.ContactsContract.Contacts;
@@ -41,21 +43,30 @@ import android.util.Log;
 import com.android.contacts.common.list.DirectoryPartition;
 import com.android.contacts.common.list.PhoneNumberListAdapter.PhoneQuery;
 import com.android.dialer2.phonenumbercache.ContactInfo;
+import com.android.dialer2.util.DialerUtils;
 import com.android.dialer2.util.PermissionsUtil;
 import com.android.dialer2.R;
 
-import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 
 import org.json.JSONArray;
@@ -113,8 +124,46 @@ public class LookupProvider extends ContentProvider {
             Uri.withAppendedPath(AUTHORITY_URI, "images");
 
     private static final UriMatcher sURIMatcher = new UriMatcher(-1);
-    private final LinkedList<FutureTask> mActiveTasks =
-            new LinkedList<FutureTask>();
+
+    /** Number of lookups performed in parallel. */
+    private static final int MAX_RUNNING_TASKS = 3;
+    /** Number of queued and running lookups after which the oldest is cancelled. */
+    private static final int MAX_ACTIVE_TASKS = 8;
+    private static final long TASK_TIMEOUT_MS = 10000;
+
+    private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(
+            MAX_RUNNING_TASKS, MAX_RUNNING_TASKS, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(final Runnable r) {
+                    return new Thread("LookupThread-" + mCount.incrementAndGet()) {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    };
+                }
+            });
+
+    static {
+        sExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /** Queued and running lookups by {@link LookupTask#mKey}, oldest first. */
+    private final LinkedHashMap<String, LookupTask> mActiveTasks =
+            new LinkedHashMap<String, LookupTask>();
+
+    // Statistics reported by dump(), guarded by mActiveTasks
+    private int mStartedCount;
+    private int mJoinedCount;
+    private int mSupersededCount;
+    private int mTimedOutCount;
+    private int mCompletedCount;
+    private long mTotalQueueMillis;
+    private long mTotalRunMillis;
 
     private static final int NEARBY = 0;
     private static final int PEOPLE = 1;
@@ -126,33 +175,54 @@ public class LookupProvider extends ContentProvider {
         sURIMatcher.addURI(AUTHORITY, "images/*", IMAGE);
     }
 
-    private class FutureCallable<T> implements Callable<T> {
-        private final Callable<T> mCallable;
-        private volatile FutureTask<T> mFuture;
-
-        public FutureCallable(Callable<T> callable) {
-            mFuture = null;
-            mCallable = callable;
+    /**
+     * A lookup that is queued or running. Identical queries arriving while it is in flight wait
+     * for the same task instead of performing their own lookup.
+     */
+    private class LookupTask extends FutureTask<ContactInfo[]> {
+        private final String mKey;
+        private final int mType;
+        private final String mFilter;
+        private final long mQueuedMillis = SystemClock.elapsedRealtime();
+        private volatile long mStartedMillis;
+        /** Number of queries waiting for the result, guarded by mActiveTasks. */
+        private int mWaiters;
+
+        public LookupTask(String key, final int type, final String filter,
+                final Location location) {
+            super(new Callable<ContactInfo[]>() {
+                @Override
+                public ContactInfo[] call() {
+                    return lookup(type, filter, location);
+                }
+            });
+            mKey = key;
+            mType = type;
+            mFilter = filter;
         }
 
-        public T call() throws Exception {
-            Log.v(TAG, "Future called for " + Thread.currentThread().getName());
-
-            T result = mCallable.call();
-            if (mFuture == null) {
-                return result;
-            }
+        @Override
+        public void run() {
+            mStartedMillis = SystemClock.elapsedRealtime();
+            super.run();
+        }
 
+        @Override
+        protected void done() {
+            long now = SystemClock.elapsedRealtime();
             synchronized (mActiveTasks) {
-                mActiveTasks.remove(mFuture);
+                if (mActiveTasks.get(mKey) == this) {
+                    mActiveTasks.remove(mKey);
+                }
+                if (mStartedMillis != 0 && !isCancelled()) {
+                    mCompletedCount++;
+                    mTotalQueueMillis += mStartedMillis - mQueuedMillis;
+                    mTotalRunMillis += now - mStartedMillis;
+                }
             }
-
-            mFuture = null;
-            return result;
-        }
-
-        public void setFuture(FutureTask<T> future) {
-            mFuture = future;
+            if (DEBUG && mStartedMillis != 0) Log.v(TAG, "Lookup for " + mFilter
+                    + " waited " + (mStartedMillis - mQueuedMillis) + " ms, ran "
+                    + (now - mStartedMillis) + " ms");
         }
     }
 
@@ -200,16 +270,8 @@ public class LookupProvider extends ContentProvider {
                 Log.e(TAG, "query: invalid limit parameter: '" + limit + "'");
             }
 
-            final Location finalLastLocation = lastLocation;
-            final int finalMaxResults = maxResults;
-
-            return execute(new Callable<Cursor>() {
-                @Override
-                public Cursor call() {
-                    return handleFilter(match, projection, filter,
-                            finalMaxResults, finalLastLocation);
-                }
-            }, "FilterThread");
+            return handleFilter(match, projection, filter, maxResults,
+                    lastLocation);
         }
 
         return null;
@@ -252,15 +314,28 @@ public class LookupProvider extends ContentProvider {
         case IMAGE:
             String number = uri.getLastPathSegment();
 
-            File image = LookupCache.getImagePath(getContext(), number);
-
             if (mode.equals("r")) {
-                if (image == null || !image.exists() || !image.isFile()) {
+                byte[] image = LookupCache.getCachedImageBytes(getContext(), number);
+                if (image == null) {
                     throw new FileNotFoundException("Cached image does not exist");
                 }
 
-                return ParcelFileDescriptor.open(image,
-                        ParcelFileDescriptor.MODE_READ_ONLY);
+                // The image is stored in the cache database, stream it through a pipe
+                return openPipeHelper(uri, null, null, image, new PipeDataWriter<byte[]>() {
+                    @Override
+                    public void writeDataToPipe(ParcelFileDescriptor output, Uri imageUri,
+                            String mimeType, Bundle opts, byte[] data) {
+                        FileOutputStream out =
+                                new FileOutputStream(output.getFileDescriptor());
+                        try {
+                            out.write(data);
+                        } catch (IOException e) {
+                            Log.w(TAG, "Failed to write image to pipe", e);
+                        } finally {
+                            DialerUtils.closeQuietly(out);
+                        }
+                    }
+                });
             } else {
                 throw new FileNotFoundException("The URI is read only");
             }
@@ -342,14 +417,7 @@ public class LookupProvider extends ContentProvider {
             } catch (UnsupportedEncodingException e) {
             }
 
-            ContactInfo[] results = null;
-            if (type == NEARBY) {
-                ForwardLookup fl = ForwardLookup.getInstance(getContext());
-                results = fl.lookup(getContext(), filter, lastLocation);
-            } else if (type == PEOPLE) {
-                PeopleLookup pl = PeopleLookup.getInstance(getContext());
-                results = pl.lookup(getContext(), filter);
-            }
+            ContactInfo[] results = execute(type, filter, lastLocation);
 
             if (results == null || results.length == 0) {
                 if (DEBUG) Log.v(TAG, "handleFilter(" + filter + "): No results");
@@ -459,46 +527,121 @@ public class LookupProvider extends ContentProvider {
     }
 
     /**
-     * Execute thread that is killed after a specified amount of time.
+     * Perform the lookup.
      *
-     * @param callable The thread
-     * @param name Name of the thread
-     * @return Instance of the thread
+     * @param type NEARBY or PEOPLE
+     * @param filter String to lookup
+     * @param lastLocation Coordinates of last location query
+     * @return The results
+     */
+    private ContactInfo[] lookup(int type, String filter, Location lastLocation) {
+        if (type == NEARBY) {
+            ForwardLookup fl = ForwardLookup.getInstance(getContext());
+            return fl.lookup(getContext(), filter, lastLocation);
+        } else if (type == PEOPLE) {
+            PeopleLookup pl = PeopleLookup.getInstance(getContext());
+            return pl.lookup(getContext(), filter);
+        }
+        return null;
+    }
+
+    /**
+     * Run a lookup on the shared executor and wait for it for a limited amount of time.
+     *
+     * <p>A query identical to one already in flight waits for that one's results. A new query
+     * cancels the queued, not yet running queries of the same type, since those were made for
+     * a filter the user has already typed past.
+     *
+     * @param type NEARBY or PEOPLE
+     * @param filter String to lookup
+     * @param lastLocation Coordinates of last location query
+     * @return The results, or null if the lookup failed, timed out or was cancelled
      */
-    private <T> T execute(Callable<T> callable, String name) {
-        FutureCallable<T> futureCallable = new FutureCallable<T>(callable);
-        FutureTask<T> future = new FutureTask<T>(futureCallable);
-        futureCallable.setFuture(future);
+    private ContactInfo[] execute(int type, String filter, Location lastLocation) {
+        String key = type + "/" + filter;
+        if (lastLocation != null) {
+            key += "/" + lastLocation.getLatitude() + "," + lastLocation.getLongitude();
+        }
 
+        LookupTask task;
         synchronized (mActiveTasks) {
-            mActiveTasks.addLast(future);
-            Log.v(TAG, "Currently running tasks: " + mActiveTasks.size());
+            task = mActiveTasks.get(key);
+            if (task != null) {
+                mJoinedCount++;
+                Log.v(TAG, "Joining lookup in flight for " + filter);
+            } else {
+                Iterator<LookupTask> it = mActiveTasks.values().iterator();
+                while (it.hasNext()) {
+                    LookupTask other = it.next();
+                    if (other.mType == type && sExecutor.remove(other)) {
+                        it.remove();
+                        other.cancel(false);
+                        mSupersededCount++;
+                    }
+                }
 
-            while (mActiveTasks.size() > 8) {
-                Log.w(TAG, "Too many tasks, canceling one");
-                mActiveTasks.removeFirst().cancel(true);
+                task = new LookupTask(key, type, filter, lastLocation);
+                mActiveTasks.put(key, task);
+                while (mActiveTasks.size() > MAX_ACTIVE_TASKS) {
+                    Log.w(TAG, "Too many tasks, canceling one");
+                    it = mActiveTasks.values().iterator();
+                    LookupTask oldest = it.next();
+                    it.remove();
+                    sExecutor.remove(oldest);
+                    oldest.cancel(true);
+                }
+                mStartedCount++;
+                sExecutor.execute(task);
             }
+            task.mWaiters++;
+            Log.v(TAG, "Active tasks: " + mActiveTasks.size()
+                    + ", queued: " + sExecutor.getQueue().size());
         }
 
-        Log.v(TAG, "Starting task " + name);
-
-        new Thread(future, name).start();
-
+        boolean timedOut = false;
         try {
-            Log.v(TAG, "Getting future " + name);
-            return future.get(10000, TimeUnit.MILLISECONDS);
+            return task.get(TASK_TIMEOUT_MS, TimeUnit.MILLISECONDS);
         } catch (InterruptedException e) {
-            Log.w(TAG, "Task was interrupted: " + name);
+            Log.w(TAG, "Task was interrupted: " + filter);
             Thread.currentThread().interrupt();
         } catch (ExecutionException e) {
-            Log.w(TAG, "Task threw an exception: " + name, e);
+            Log.w(TAG, "Task threw an exception: " + filter, e);
         } catch (TimeoutException e) {
-            Log.w(TAG, "Task timed out: " + name);
-            future.cancel(true);
+            Log.w(TAG, "Task timed out: " + filter);
+            timedOut = true;
         } catch (CancellationException e) {
-            Log.w(TAG, "Task was cancelled: " + name);
+            Log.w(TAG, "Task was cancelled: " + filter);
+        } finally {
+            synchronized (mActiveTasks) {
+                task.mWaiters--;
+                if (timedOut) {
+                    mTimedOutCount++;
+                    // Other queries may still be waiting for the same lookup
+                    if (task.mWaiters == 0) {
+                        task.cancel(true);
+                    }
+                }
+            }
         }
 
         return null;
     }
+
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        synchronized (mActiveTasks) {
+            writer.println("Active lookups: " + mActiveTasks.size());
+            writer.println("Queued lookups: " + sExecutor.getQueue().size());
+            writer.println("Started lookups: " + mStartedCount);
+            writer.println("Joined lookups: " + mJoinedCount);
+            writer.println("Superseded lookups: " + mSupersededCount);
+            writer.println("Timed out queries: " + mTimedOutCount);
+            if (mCompletedCount > 0) {
+                writer.println("Average queue time: "
+                        + mTotalQueueMillis / mCompletedCount + " ms");
+                writer.println("Average run time: "
+                        + mTotalRunMillis / mCompletedCount + " ms");
+            }
+        }
+    }
 }
@@ -16,15 +16,17 @@
 
 package com.android.dialer2.lookup;
 
+import android.os.SystemClock;
 import android.text.Html;
+import android.util.LruCache;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedWriter;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStreamWriter;
 import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.nio.charset.Charset;
 import java.nio.charset.IllegalCharsetNameException;
@@ -39,10 +41,67 @@ public class LookupUtils {
     private static final String USER_AGENT =
             "Mozilla/5.0 (X11; Linux x86_64; rv:42.0) Gecko/20100101 Firefox/42.0";
 
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    private static final int READ_TIMEOUT_MS = 5000;
+    /** Time allowed for a whole request, a slow trickle of data doesn't hit the read timeout. */
+    private static final long REQUEST_DEADLINE_MS = 10000;
+    /** Responses are buffered in memory, anything larger is refused. */
+    private static final int MAX_RESPONSE_BYTES = 2 * 1024 * 1024;
+
+    private static final int RESPONSE_CACHE_BYTES = 1024 * 1024;
+    private static final int MAX_CACHED_RESPONSE_BYTES = RESPONSE_CACHE_BYTES / 8;
+
+    /**
+     * GET responses that carry an ETag or Last-Modified header, so that repeated lookups only
+     * revalidate them instead of downloading them again.
+     */
+    private static final LruCache<String, CachedResponse> sResponseCache =
+            new LruCache<String, CachedResponse>(RESPONSE_CACHE_BYTES) {
+                @Override
+                protected int sizeOf(String key, CachedResponse value) {
+                    return value.mBody.length;
+                }
+            };
+
+    /** Patterns compiled for the String based regex methods, keyed by flags and regex. */
+    private static final LruCache<String, Pattern> sPatternCache =
+            new LruCache<String, Pattern>(32);
+
+    private static class CachedResponse {
+        private final String mETag;
+        private final String mLastModified;
+        private final String mContentType;
+        private final byte[] mBody;
+
+        private CachedResponse(String eTag, String lastModified, String contentType,
+                byte[] body) {
+            mETag = eTag;
+            mLastModified = lastModified;
+            mContentType = contentType;
+            mBody = body;
+        }
+    }
+
+    private static class Response {
+        private final byte[] mBody;
+        private final String mContentType;
+
+        private Response(byte[] body, String contentType) {
+            mBody = body;
+            mContentType = contentType;
+        }
+
+        private String getBodyAsString() {
+            return new String(mBody, determineCharset(mContentType));
+        }
+    }
+
     private static HttpURLConnection prepareHttpConnection(String url, Map<String, String> headers)
             throws IOException {
         // open connection
         HttpURLConnection urlConnection = (HttpURLConnection) new URL(url).openConnection();
+        urlConnection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        urlConnection.setReadTimeout(READ_TIMEOUT_MS);
         // set user agent (default value is null)
         urlConnection.setRequestProperty("User-Agent", USER_AGENT);
         // set all other headers if not null
@@ -55,28 +114,112 @@ public class LookupUtils {
         return urlConnection;
     }
 
-    private static byte[] httpFetch(HttpURLConnection urlConnection) throws IOException {
-        // query url, read and return buffered response body
-        // we want to make sure that the connection gets closed here
-        InputStream is = new BufferedInputStream(urlConnection.getInputStream());
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        byte[] result = null;
+    /**
+     * Perform a request and read the response body.
+     *
+     * <p>On success the connection isn't disconnected, reading the body to the end and closing
+     * the stream hands the socket back to the keep-alive pool for the next request to the host.
+     *
+     * @param postData Body to POST, or null to GET
+     */
+    private static Response execute(String url, Map<String, String> headers, String postData)
+            throws IOException {
+        long deadline = SystemClock.elapsedRealtime() + REQUEST_DEADLINE_MS;
+        String cacheKey = postData == null ? getCacheKey(url, headers) : null;
+        CachedResponse cached = cacheKey != null ? sResponseCache.get(cacheKey) : null;
+
+        HttpURLConnection connection = prepareHttpConnection(url, headers);
+        boolean success = false;
         try {
-            byte[] partial = new byte[4096];
+            if (cached != null) {
+                if (cached.mETag != null) {
+                    connection.setRequestProperty("If-None-Match", cached.mETag);
+                }
+                if (cached.mLastModified != null) {
+                    connection.setRequestProperty("If-Modified-Since", cached.mLastModified);
+                }
+            }
+
+            // write postData to buffered output stream
+            if (postData != null) {
+                connection.setDoOutput(true);
+                BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(
+                        connection.getOutputStream()));
+                try {
+                    bw.write(postData, 0, postData.length());
+                } finally {
+                    bw.close();
+                }
+            }
+
+            Response response;
+            if (cached != null
+                    && connection.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                readBody(connection, deadline);
+                response = new Response(cached.mBody, cached.mContentType);
+            } else {
+                response = new Response(readBody(connection, deadline),
+                        connection.getContentType());
+                if (cacheKey != null) {
+                    cacheResponse(cacheKey, connection, response);
+                }
+            }
+            success = true;
+            return response;
+        } finally {
+            if (!success) {
+                // Don't leave a half read connection in the pool
+                connection.disconnect();
+            }
+        }
+    }
+
+    private static byte[] readBody(HttpURLConnection connection, long deadline)
+            throws IOException {
+        int length = connection.getContentLength();
+        if (length > MAX_RESPONSE_BYTES) {
+            throw new IOException("Response of " + length + " bytes is too large");
+        }
+
+        InputStream is = connection.getInputStream();
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(length > 0 ? length : 8192);
+            byte[] partial = new byte[8192];
             int read;
-            while ((read = is.read(partial, 0, 4096)) != -1) {
+            while ((read = is.read(partial)) != -1) {
                 baos.write(partial, 0, read);
+                if (baos.size() > MAX_RESPONSE_BYTES) {
+                    throw new IOException("Response exceeds " + MAX_RESPONSE_BYTES + " bytes");
+                }
+                if (SystemClock.elapsedRealtime() > deadline) {
+                    throw new SocketTimeoutException("Response not received within "
+                            + REQUEST_DEADLINE_MS + " ms");
+                }
             }
-            result = baos.toByteArray();
+            return baos.toByteArray();
         } finally {
             is.close();
-            baos.close();
         }
-        return result;
     }
 
-    private static Charset determineCharset(HttpURLConnection connection) {
-        String contentType = connection.getContentType();
+    private static String getCacheKey(String url, Map<String, String> headers) {
+        return headers == null || headers.isEmpty() ? url : url + "\n" + headers;
+    }
+
+    private static void cacheResponse(String cacheKey, HttpURLConnection connection,
+            Response response) {
+        String eTag = connection.getHeaderField("ETag");
+        String lastModified = connection.getHeaderField("Last-Modified");
+        if ((eTag == null && lastModified == null)
+                || response.mBody.length > MAX_CACHED_RESPONSE_BYTES) {
+            sResponseCache.remove(cacheKey);
+            return;
+        }
+        sResponseCache.put(cacheKey, new CachedResponse(eTag, lastModified,
+                response.mContentType, response.mBody));
+    }
+
+    private static Charset determineCharset(String contentType) {
         if (contentType != null) {
             String[] split = contentType.split(";");
             for (int i = 0; i < split.length; i++) {
@@ -94,53 +237,40 @@ public class LookupUtils {
     }
 
     public static String httpGet(String url, Map<String, String> headers) throws IOException {
-        HttpURLConnection connection = prepareHttpConnection(url, headers);
-        try {
-            byte[] response = httpFetch(connection);
-            return new String(response, determineCharset(connection));
-        } finally {
-            connection.disconnect();
-        }
+        return execute(url, headers, null).getBodyAsString();
     }
 
     public static byte[] httpGetBytes(String url, Map<String, String> headers) throws IOException {
-        HttpURLConnection connection = prepareHttpConnection(url, headers);
-        try {
-            return httpFetch(connection);
-        } finally {
-            connection.disconnect();
-        }
+        return execute(url, headers, null).mBody;
     }
 
     public static String httpPost(String url, Map<String, String> headers, String postData)
             throws IOException {
-        HttpURLConnection connection = prepareHttpConnection(url, headers);
+        return execute(url, headers, postData).getBodyAsString();
+    }
 
-        try {
-            // write postData to buffered output stream
-            if (postData != null) {
-                connection.setDoOutput(true);
-                BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(
-                        connection.getOutputStream()));
-                try {
-                    bw.write(postData, 0, postData.length());
-                    // close connection and re-throw exception
-                } finally {
-                    bw.close();
-                }
-            }
-            byte[] response = httpFetch(connection);
-            return new String(response, determineCharset(connection));
-        } finally {
-            connection.disconnect();
+    private static Pattern getPattern(String regex, boolean dotall) {
+        String key = (dotall ? "s" : "-") + regex;
+        Pattern pattern = sPatternCache.get(key);
+        if (pattern == null) {
+            pattern = Pattern.compile(regex, dotall ? Pattern.DOTALL : 0);
+            sPatternCache.put(key, pattern);
         }
+        return pattern;
     }
 
     public static List<String> allRegexResults(String input, String regex, boolean dotall) {
+        return allRegexResults(input, getPattern(regex, dotall));
+    }
+
+    /**
+     * Returns the trimmed first group of every match of {@code pattern}, or null if
+     * {@code input} is null.
+     */
+    public static List<String> allRegexResults(String input, Pattern pattern) {
         if (input == null) {
             return null;
         }
-        Pattern pattern = Pattern.compile(regex, dotall ? Pattern.DOTALL : 0);
         Matcher matcher = pattern.matcher(input);
 
         List<String> regexResults = new ArrayList<String>();
@@ -151,10 +281,17 @@ public class LookupUtils {
     }
 
     public static String firstRegexResult(String input, String regex, boolean dotall) {
+        return firstRegexResult(input, getPattern(regex, dotall));
+    }
+
+    /**
+     * Returns the trimmed first group of the first match of {@code pattern}, or null if there is
+     * none or {@code input} is null.
+     */
+    public static String firstRegexResult(String input, Pattern pattern) {
         if (input == null) {
             return null;
         }
-        Pattern pattern = Pattern.compile(regex, dotall ? Pattern.DOTALL : 0);
         Matcher m = pattern.matcher(input);
         return m.find() ? m.group(1).trim() : null;
     }
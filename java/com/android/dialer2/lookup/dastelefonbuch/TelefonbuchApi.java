@@ -22,6 +22,7 @@ import android.net.Uri;
 import com.android.dialer2.lookup.LookupUtils;
 
 import java.io.IOException;
+import java.util.regex.Pattern;
 
 public class TelefonbuchApi {
     private static final String TAG = TelefonbuchApi.class.getSimpleName();
@@ -30,9 +31,17 @@ public class TelefonbuchApi {
             "https://www.dastelefonbuch.de/?s=a20000" +
             "&cmd=search&sort_ok=0&sp=55&vert_ok=0&aktion=23";
 
-    private static String NAME_REGEX ="<a id=\"name0.*?>\\s*\n?(.*?)\n?\\s*</a>";
-    private static String NUMBER_REGEX = "<span\\s+class=\"ico fon.*>.*<span>(.*?)</span><br/>";
-    private static String ADDRESS_REGEX = "<address.*?>\n?(.*?)</address>";
+    private static final Pattern RESULTS_PATTERN = Pattern.compile(
+            ": Treffer(.*)Ende Treffer", Pattern.DOTALL);
+    private static final Pattern NAME_PATTERN = Pattern.compile(
+            "<a id=\"name0.*?>\\s*\n?(.*?)\n?\\s*</a>", Pattern.DOTALL);
+    private static final Pattern NUMBER_PATTERN = Pattern.compile(
+            "<span\\s+class=\"ico fon.*>.*<span>(.*?)</span><br/>");
+    private static final Pattern ADDRESS_PATTERN = Pattern.compile(
+            "<address.*?>\n?(.*?)</address>", Pattern.DOTALL);
+    private static final Pattern HIDDEN_SPAN_PATTERN = Pattern.compile(
+            "<span class=\"hide\".*?\\/span>");
+    private static final Pattern SPAN_TAG_PATTERN = Pattern.compile("</?span.*?>");
 
     private TelefonbuchApi() {
     }
@@ -46,16 +55,15 @@ public class TelefonbuchApi {
         // Cut out everything we're not interested in (scripts etc.) to
         // speed up the subsequent matching.
         String output = LookupUtils.firstRegexResult(
-                LookupUtils.httpGet(uri.toString(), null),
-                ": Treffer(.*)Ende Treffer", true);
+                LookupUtils.httpGet(uri.toString(), null), RESULTS_PATTERN);
 
-        String name = parseValue(output, NAME_REGEX, true, false);
+        String name = parseValue(output, NAME_PATTERN, false);
         if (name == null) {
             return null;
         }
 
-        String phoneNumber = parseValue(output, NUMBER_REGEX, false, true);
-        String address = parseValue(output, ADDRESS_REGEX, true, true);
+        String phoneNumber = parseValue(output, NUMBER_PATTERN, true);
+        String address = parseValue(output, ADDRESS_PATTERN, true);
 
         ContactInfo info = new ContactInfo();
         info.name = name;
@@ -66,14 +74,13 @@ public class TelefonbuchApi {
         return info;
     }
 
-    private static String parseValue(String output, String regex,
-            boolean dotall, boolean removeSpans) {
-        String result = LookupUtils.firstRegexResult(output, regex, dotall);
+    private static String parseValue(String output, Pattern pattern, boolean removeSpans) {
+        String result = LookupUtils.firstRegexResult(output, pattern);
         if (result != null && removeSpans) {
             // completely remove hidden spans (including contents) ...
-            result = result.replaceAll("<span class=\"hide\".*?\\/span>", "");
+            result = HIDDEN_SPAN_PATTERN.matcher(result).replaceAll("");
             // ... and remove span wrappers around data content
-            result = result.replaceAll("</?span.*?>", "");
+            result = SPAN_TAG_PATTERN.matcher(result).replaceAll("");
         }
         return LookupUtils.fromHtml(result);
     }
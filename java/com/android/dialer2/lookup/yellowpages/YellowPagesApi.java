@@ -34,6 +34,32 @@ public class YellowPagesApi {
     private static final String LOOKUP_URL_CANADA =
             "https://www.yellowpages.ca/search/si/1/";
 
+    private static final Pattern GALLERY_PATTERN = Pattern.compile(
+            "href=\"([^\"]+gallery\\?lid=[^\"]+)\"", Pattern.DOTALL);
+    private static final Pattern IMAGE_PATTERN = Pattern.compile(
+            "\"type\":\"image\",\"src\":\"([^\"]+)\"", Pattern.DOTALL);
+    private static final Pattern NAME_WEBSITE_PATTERN_US = Pattern.compile(
+            "<a href=\"([^>]+?)\"[^>]+?class=\"url[^>]+?>([^<]+)</a>",
+            Pattern.DOTALL);
+    private static final Pattern NAME_WEBSITE_PATTERN_CA = Pattern.compile(
+            "class=\"ypgListingTitleLink utagLink\".*?href=\"(.*?)\">"
+                    + "(<span\\s+class=\"listingTitle\">.*?</span>)",
+            Pattern.DOTALL);
+    private static final Pattern NUMBER_PATTERN_US = Pattern.compile(
+            "business-phone.*?>\n*([^\n<]+)\n*<", Pattern.DOTALL);
+    private static final Pattern NUMBER_PATTERN_CA = Pattern.compile(
+            "<div\\s+class=\"phoneNumber\">(.*?)</div>", Pattern.DOTALL);
+    private static final Pattern STREET_PATTERN_US = Pattern.compile(
+            "street-address.*?>\n*([^\n<]+)\n*<", Pattern.DOTALL);
+    private static final Pattern CITY_PATTERN_US = Pattern.compile(
+            "locality.*?>\n*([^\n<]+)\n*<", Pattern.DOTALL);
+    private static final Pattern STATE_PATTERN_US = Pattern.compile(
+            "region.*?>\n*([^\n<]+)\n*<", Pattern.DOTALL);
+    private static final Pattern ZIP_PATTERN_US = Pattern.compile(
+            "postal-code.*?>\n*([^\n<]+)\n*<", Pattern.DOTALL);
+    private static final Pattern ADDRESS_PATTERN_CA = Pattern.compile(
+            "<div\\s+class=\"address\">(.*?)</div>", Pattern.DOTALL);
+
     private String mProvider = null;
     private String mNumber = null;
     private String mOutput = null;
@@ -57,8 +83,7 @@ public class YellowPagesApi {
 
     private String getPhotoUrl(String website) throws IOException {
         String output = LookupUtils.httpGet(website, null);
-        String galleryRef = LookupUtils.firstRegexResult(output,
-                "href=\"([^\"]+gallery\\?lid=[^\"]+)\"", true);
+        String galleryRef = LookupUtils.firstRegexResult(output, GALLERY_PATTERN);
         if (galleryRef == null) {
             return null;
         }
@@ -66,17 +91,14 @@ public class YellowPagesApi {
         // Get first image
         return LookupUtils.firstRegexResult(
                 LookupUtils.httpGet("https://www.yellowpages.com" + galleryRef, null),
-                "\"type\":\"image\",\"src\":\"([^\"]+)\"", true);
+                IMAGE_PATTERN);
     }
 
     private String[] parseNameWebsiteUnitedStates() {
-        Pattern regexNameAndWebsite = Pattern.compile(
-                "<a href=\"([^>]+?)\"[^>]+?class=\"url[^>]+?>([^<]+)</a>",
-                Pattern.DOTALL);
         String name = null;
         String website = null;
 
-        Matcher m = regexNameAndWebsite.matcher(mOutput);
+        Matcher m = NAME_WEBSITE_PATTERN_US.matcher(mOutput);
         if (m.find()) {
             website = m.group(1).trim();
             name = m.group(2).trim();
@@ -86,14 +108,10 @@ public class YellowPagesApi {
     }
 
     private String[] parseNameWebsiteCanada() {
-        Pattern regexNameAndWebsite = Pattern.compile(
-                "class=\"ypgListingTitleLink utagLink\".*?href=\"(.*?)\">"
-                        + "(<span\\s+class=\"listingTitle\">.*?</span>)",
-                Pattern.DOTALL);
         String name = null;
         String website = null;
 
-        Matcher m = regexNameAndWebsite.matcher(mOutput);
+        Matcher m = NAME_WEBSITE_PATTERN_CA.matcher(mOutput);
         if (m.find()) {
             website = m.group(1).trim();
             name = LookupUtils.fromHtml(m.group(2).trim());
@@ -107,28 +125,22 @@ public class YellowPagesApi {
     }
 
     private String parseNumberUnitedStates() {
-        return LookupUtils.firstRegexResult(mOutput,
-                "business-phone.*?>\n*([^\n<]+)\n*<", true);
+        return LookupUtils.firstRegexResult(mOutput, NUMBER_PATTERN_US);
     }
 
     private String parseNumberCanada() {
-        return LookupUtils.firstRegexResult(mOutput,
-                "<div\\s+class=\"phoneNumber\">(.*?)</div>", true);
+        return LookupUtils.firstRegexResult(mOutput, NUMBER_PATTERN_CA);
     }
 
     private String parseAddressUnitedStates() {
-        String addressStreet = LookupUtils.firstRegexResult(mOutput,
-                "street-address.*?>\n*([^\n<]+)\n*<", true);
+        String addressStreet = LookupUtils.firstRegexResult(mOutput, STREET_PATTERN_US);
         if (addressStreet != null && addressStreet.endsWith(",")) {
             addressStreet = addressStreet.substring(0, addressStreet.length() - 1);
         }
 
-        String addressCity = LookupUtils.firstRegexResult(mOutput,
-                "locality.*?>\n*([^\n<]+)\n*<", true);
-        String addressState = LookupUtils.firstRegexResult(mOutput,
-                "region.*?>\n*([^\n<]+)\n*<", true);
-        String addressZip = LookupUtils.firstRegexResult(mOutput,
-                "postal-code.*?>\n*([^\n<]+)\n*<", true);
+        String addressCity = LookupUtils.firstRegexResult(mOutput, CITY_PATTERN_US);
+        String addressState = LookupUtils.firstRegexResult(mOutput, STATE_PATTERN_US);
+        String addressZip = LookupUtils.firstRegexResult(mOutput, ZIP_PATTERN_US);
 
         StringBuilder sb = new StringBuilder();
 
@@ -157,8 +169,7 @@ public class YellowPagesApi {
     }
 
     private String parseAddressCanada() {
-        String address = LookupUtils.firstRegexResult(mOutput,
-                "<div\\s+class=\"address\">(.*?)</div>", true);
+        String address = LookupUtils.firstRegexResult(mOutput, ADDRESS_PATTERN_CA);
         return LookupUtils.fromHtml(address);
     }
 
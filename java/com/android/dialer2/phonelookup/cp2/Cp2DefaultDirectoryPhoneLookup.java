@@ -64,15 +64,17 @@ public final class Cp2DefaultDirectoryPhoneLookup implements PhoneLookup<Cp2Info
   private static final String PREF_LAST_TIMESTAMP_PROCESSED =
       "cp2DefaultDirectoryPhoneLookupLastTimestampProcessed";
 
-  // We cannot efficiently process invalid numbers because batch queries cannot be constructed which
-  // accomplish the necessary loose matching. We'll attempt to process a limited number of them,
-  // but if there are too many we fall back to querying CP2 at render time.
-  private static final int MAX_SUPPORTED_INVALID_NUMBERS = 5;
+  // Batch queries cannot be constructed which accomplish the loose matching needed for invalid
+  // numbers. Up to this many of them are queried individually against PHONE_LOOKUP; if there are
+  // more, they are matched in bulk using the Cp2PhoneIndex instead. If the index can't be brought
+  // up to date, they are marked incomplete and queried at render time.
+  private static final int MAX_INDIVIDUALLY_QUERIED_INVALID_NUMBERS = 5;
 
   private final Context appContext;
   private final SharedPreferences sharedPreferences;
   private final ListeningExecutorService backgroundExecutorService;
   private final ListeningExecutorService lightweightExecutorService;
+  private final Cp2PhoneIndex cp2PhoneIndex;
 
   @Nullable private Long currentLastTimestampProcessed;
 
@@ -81,11 +83,13 @@ public final class Cp2DefaultDirectoryPhoneLookup implements PhoneLookup<Cp2Info
       @ApplicationContext Context appContext,
       @Unencrypted SharedPreferences sharedPreferences,
       @BackgroundExecutor ListeningExecutorService backgroundExecutorService,
-      @LightweightExecutor ListeningExecutorService lightweightExecutorService) {
+      @LightweightExecutor ListeningExecutorService lightweightExecutorService,
+      Cp2PhoneIndex cp2PhoneIndex) {
     this.appContext = appContext;
     this.sharedPreferences = sharedPreferences;
     this.backgroundExecutorService = backgroundExecutorService;
     this.lightweightExecutorService = lightweightExecutorService;
+    this.cp2PhoneIndex = cp2PhoneIndex;
   }
 
   @Override
@@ -137,19 +141,6 @@ public final class Cp2DefaultDirectoryPhoneLookup implements PhoneLookup<Cp2Info
 
   @Override
   public ListenableFuture<Boolean> isDirty(ImmutableSet<DialerPhoneNumber> phoneNumbers) {
-    PartitionedNumbers partitionedNumbers = new PartitionedNumbers(phoneNumbers);
-    if (partitionedNumbers.invalidNumbers().size() > MAX_SUPPORTED_INVALID_NUMBERS) {
-      // If there are N invalid numbers, we can't determine determine dirtiness without running N
-      // queries; since running this many queries is not feasible for the (lightweight) isDirty
-      // check, simply return true. The expectation is that this should rarely be the case as the
-      // vast majority of numbers in call logs should be valid.
-      LogUtil.v(
-          "Cp2DefaultDirectoryPhoneLookup.isDirty",
-          "returning true because too many invalid numbers (%d)",
-          partitionedNumbers.invalidNumbers().size());
-      return Futures.immediateFuture(true);
-    }
-
     ListenableFuture<Long> lastModifiedFuture =
         backgroundExecutorService.submit(
             () -> sharedPreferences.getLong(PREF_LAST_TIMESTAMP_PROCESSED, 0L));
@@ -232,11 +223,15 @@ public final class Cp2DefaultDirectoryPhoneLookup implements PhoneLookup<Cp2Info
     queryFutures.add(
         queryPhoneTableForContactIdsBasedOnE164(partitionedNumbers.validE164Numbers()));
 
-    // Then run a separate query for each invalid number. Separate queries are done to accomplish
-    // loose matching which couldn't be accomplished with a batch query.
-    Assert.checkState(partitionedNumbers.invalidNumbers().size() <= MAX_SUPPORTED_INVALID_NUMBERS);
-    for (String invalidNumber : partitionedNumbers.invalidNumbers()) {
-      queryFutures.add(queryPhoneLookupTableForContactIdsBasedOnRawNumber(invalidNumber));
+    // Then run a separate query for each invalid number, or match them using the index if there
+    // are too many. Separate queries are done to accomplish loose matching which couldn't be
+    // accomplished with a batch query.
+    if (partitionedNumbers.invalidNumbers().size() > MAX_INDIVIDUALLY_QUERIED_INVALID_NUMBERS) {
+      queryFutures.add(queryPhoneIndexForContactIds(partitionedNumbers.invalidNumbers()));
+    } else {
+      for (String invalidNumber : partitionedNumbers.invalidNumbers()) {
+        queryFutures.add(queryPhoneLookupTableForContactIdsBasedOnRawNumber(invalidNumber));
+      }
     }
     return Futures.transform(
         Futures.allAsList(queryFutures),
@@ -344,6 +339,21 @@ public final class Cp2DefaultDirectoryPhoneLookup implements PhoneLookup<Cp2Info
         });
   }
 
+  private ListenableFuture<Set<Long>> queryPhoneIndexForContactIds(Set<String> invalidNumbers) {
+    return backgroundExecutorService.submit(
+        () -> {
+          Set<Long> contactIds = new ArraySet<>();
+          Map<String, Set<Cp2ContactInfo>> cp2ContactInfosByNumber =
+              cp2PhoneIndex.lookUp(invalidNumbers);
+          for (Set<Cp2ContactInfo> cp2ContactInfos : cp2ContactInfosByNumber.values()) {
+            for (Cp2ContactInfo cp2ContactInfo : cp2ContactInfos) {
+              contactIds.add(cp2ContactInfo.getContactId());
+            }
+          }
+          return contactIds;
+        });
+  }
+
   /** Returns true if any contacts were modified after {@code lastModified}. */
   private ListenableFuture<Boolean> contactsUpdated(Set<Long> contactIds, long lastModified) {
     return backgroundExecutorService.submit(
@@ -455,68 +465,38 @@ public final class Cp2DefaultDirectoryPhoneLookup implements PhoneLookup<Cp2Info
               deletedPhoneNumbersFuture,
               deletedPhoneNumbers -> {
 
-                // If there are too many invalid numbers, just defer the work to render time.
-                ArraySet<DialerPhoneNumber> unprocessableNumbers =
+                // If the index needed for too many invalid numbers is unavailable, defer the work
+                // to render time.
+                ListenableFuture<ArraySet<DialerPhoneNumber>> unprocessableNumbersFuture =
                     findUnprocessableNumbers(existingInfoMap);
-                Map<DialerPhoneNumber, Cp2Info> existingInfoMapToProcess = existingInfoMap;
-                if (!unprocessableNumbers.isEmpty()) {
-                  existingInfoMapToProcess =
-                      Maps.filterKeys(
-                          existingInfoMap, number -> !unprocessableNumbers.contains(number));
-                }
 
-                // For each DialerPhoneNumber that was associated with a contact or added to a
-                // contact, build a map of those DialerPhoneNumbers to a set Cp2ContactInfos, where
-                // each Cp2ContactInfo represents a contact.
-                ListenableFuture<Map<DialerPhoneNumber, Set<Cp2ContactInfo>>>
-                    updatedContactsFuture =
-                        buildMapForUpdatedOrAddedContacts(
-                            existingInfoMapToProcess, lastModified, deletedPhoneNumbers);
-
-                return Futures.transform(
-                    updatedContactsFuture,
-                    updatedContacts -> {
-
-                      // Start build a new map of updated info. This will replace existing info.
-                      ImmutableMap.Builder<DialerPhoneNumber, Cp2Info> newInfoMapBuilder =
-                          ImmutableMap.builder();
-
-                      // For each DialerPhoneNumber in existing info...
-                      for (Entry<DialerPhoneNumber, Cp2Info> entry : existingInfoMap.entrySet()) {
-                        DialerPhoneNumber dialerPhoneNumber = entry.getKey();
-                        Cp2Info existingInfo = entry.getValue();
-
-                        // Build off the existing info
-                        Cp2Info.Builder infoBuilder = Cp2Info.newBuilder(existingInfo);
-
-                        // If the contact was updated, replace the Cp2ContactInfo list
-                        if (updatedContacts.containsKey(dialerPhoneNumber)) {
-                          infoBuilder
-                              .clear()
-                              .addAllCp2ContactInfo(updatedContacts.get(dialerPhoneNumber));
-                          // If it was deleted and not added to a new contact, clear all the CP2
-                          // information.
-                        } else if (deletedPhoneNumbers.contains(dialerPhoneNumber)) {
-                          infoBuilder.clear();
-                        } else if (unprocessableNumbers.contains(dialerPhoneNumber)) {
-                          // Don't ever set the "incomplete" bit for numbers which are empty; this
-                          // causes unnecessary render time work because there will never be contact
-                          // information for an empty number. It is also required to pass the
-                          // assertion check in the new voicemail fragment, which verifies that no
-                          // voicemails rows are considered "incomplete" (the voicemail fragment
-                          // does not have the ability to fetch information at render time).
-                          if (!dialerPhoneNumber.getNormalizedNumber().isEmpty()) {
-                            // Don't clear the existing info when the number is unprocessable. It's
-                            // likely that the existing info is up-to-date so keep it in place so
-                            // that the UI doesn't pop when the query is completed at display time.
-                            infoBuilder.setIsIncomplete(true);
-                          }
-                        }
-
-                        // If the DialerPhoneNumber didn't change, add the unchanged existing info.
-                        newInfoMapBuilder.put(dialerPhoneNumber, infoBuilder.build());
+                return Futures.transformAsync(
+                    unprocessableNumbersFuture,
+                    unprocessableNumbers -> {
+                      Map<DialerPhoneNumber, Cp2Info> existingInfoMapToProcess = existingInfoMap;
+                      if (!unprocessableNumbers.isEmpty()) {
+                        existingInfoMapToProcess =
+                            Maps.filterKeys(
+                                existingInfoMap, number -> !unprocessableNumbers.contains(number));
                       }
-                      return newInfoMapBuilder.build();
+
+                      // For each DialerPhoneNumber that was associated with a contact or added to
+                      // a contact, build a map of those DialerPhoneNumbers to a set
+                      // Cp2ContactInfos, where each Cp2ContactInfo represents a contact.
+                      ListenableFuture<Map<DialerPhoneNumber, Set<Cp2ContactInfo>>>
+                          updatedContactsFuture =
+                              buildMapForUpdatedOrAddedContacts(
+                                  existingInfoMapToProcess, lastModified, deletedPhoneNumbers);
+
+                      return Futures.transform(
+                          updatedContactsFuture,
+                          updatedContacts ->
+                              buildNewInfoMap(
+                                  existingInfoMap,
+                                  updatedContacts,
+                                  deletedPhoneNumbers,
+                                  unprocessableNumbers),
+                          lightweightExecutorService);
                     },
                     lightweightExecutorService);
               },
@@ -525,16 +505,74 @@ public final class Cp2DefaultDirectoryPhoneLookup implements PhoneLookup<Cp2Info
         lightweightExecutorService);
   }
 
-  private ArraySet<DialerPhoneNumber> findUnprocessableNumbers(
+  private static ImmutableMap<DialerPhoneNumber, Cp2Info> buildNewInfoMap(
+      ImmutableMap<DialerPhoneNumber, Cp2Info> existingInfoMap,
+      Map<DialerPhoneNumber, Set<Cp2ContactInfo>> updatedContacts,
+      Set<DialerPhoneNumber> deletedPhoneNumbers,
+      Set<DialerPhoneNumber> unprocessableNumbers) {
+    // Start build a new map of updated info. This will replace existing info.
+    ImmutableMap.Builder<DialerPhoneNumber, Cp2Info> newInfoMapBuilder = ImmutableMap.builder();
+
+    // For each DialerPhoneNumber in existing info...
+    for (Entry<DialerPhoneNumber, Cp2Info> entry : existingInfoMap.entrySet()) {
+      DialerPhoneNumber dialerPhoneNumber = entry.getKey();
+      Cp2Info existingInfo = entry.getValue();
+
+      // Build off the existing info
+      Cp2Info.Builder infoBuilder = Cp2Info.newBuilder(existingInfo);
+
+      // If the contact was updated, replace the Cp2ContactInfo list
+      if (updatedContacts.containsKey(dialerPhoneNumber)) {
+        infoBuilder.clear().addAllCp2ContactInfo(updatedContacts.get(dialerPhoneNumber));
+        // If it was deleted and not added to a new contact, clear all the CP2
+        // information.
+      } else if (deletedPhoneNumbers.contains(dialerPhoneNumber)) {
+        infoBuilder.clear();
+      } else if (unprocessableNumbers.contains(dialerPhoneNumber)) {
+        // Don't ever set the "incomplete" bit for numbers which are empty; this causes unnecessary
+        // render time work because there will never be contact information for an empty number.
+        // It is also required to pass the assertion check in the new voicemail fragment, which
+        // verifies that no voicemails rows are considered "incomplete" (the voicemail fragment
+        // does not have the ability to fetch information at render time).
+        if (!dialerPhoneNumber.getNormalizedNumber().isEmpty()) {
+          // Don't clear the existing info when the number is unprocessable. It's likely that the
+          // existing info is up-to-date so keep it in place so that the UI doesn't pop when the
+          // query is completed at display time.
+          infoBuilder.setIsIncomplete(true);
+        }
+      }
+
+      // If the DialerPhoneNumber didn't change, add the unchanged existing info.
+      newInfoMapBuilder.put(dialerPhoneNumber, infoBuilder.build());
+    }
+    return newInfoMapBuilder.build();
+  }
+
+  /**
+   * Returns the invalid numbers which can't be processed, because there are too many of them to
+   * query individually and the {@link Cp2PhoneIndex} couldn't be brought up to date.
+   */
+  private ListenableFuture<ArraySet<DialerPhoneNumber>> findUnprocessableNumbers(
       ImmutableMap<DialerPhoneNumber, Cp2Info> existingInfoMap) {
-    ArraySet<DialerPhoneNumber> unprocessableNumbers = new ArraySet<>();
     PartitionedNumbers partitionedNumbers = new PartitionedNumbers(existingInfoMap.keySet());
-    if (partitionedNumbers.invalidNumbers().size() > MAX_SUPPORTED_INVALID_NUMBERS) {
-      for (String invalidNumber : partitionedNumbers.invalidNumbers()) {
-        unprocessableNumbers.addAll(partitionedNumbers.dialerPhoneNumbersForInvalid(invalidNumber));
-      }
+    if (partitionedNumbers.invalidNumbers().size() <= MAX_INDIVIDUALLY_QUERIED_INVALID_NUMBERS) {
+      return Futures.immediateFuture(new ArraySet<>());
     }
-    return unprocessableNumbers;
+    return backgroundExecutorService.submit(
+        () -> {
+          ArraySet<DialerPhoneNumber> unprocessableNumbers = new ArraySet<>();
+          if (!cp2PhoneIndex.refresh()) {
+            LogUtil.w(
+                "Cp2DefaultDirectoryPhoneLookup.findUnprocessableNumbers",
+                "couldn't refresh the phone index, deferring %d invalid numbers",
+                partitionedNumbers.invalidNumbers().size());
+            for (String invalidNumber : partitionedNumbers.invalidNumbers()) {
+              unprocessableNumbers.addAll(
+                  partitionedNumbers.dialerPhoneNumbersForInvalid(invalidNumber));
+            }
+          }
+          return unprocessableNumbers;
+        });
   }
 
   @Override
@@ -572,7 +610,9 @@ public final class Cp2DefaultDirectoryPhoneLookup implements PhoneLookup<Cp2Info
             // When the PhoneLookupHistory contains no information for a number, because for
             // example the user just upgraded to the new UI, or cleared data, we need to check for
             // updated info.
-            if (existingInfo.getCp2ContactInfoCount() == 0) {
+            // Numbers which were previously skipped because the phone index couldn't be brought
+            // up to date were marked incomplete and also need to be checked.
+            if (existingInfo.getCp2ContactInfoCount() == 0 || existingInfo.getIsIncomplete()) {
               updatedNumbers.add(dialerPhoneNumber);
             } else {
               // For each Cp2ContactInfo for each existing DialerPhoneNumber...
@@ -654,7 +694,8 @@ public final class Cp2DefaultDirectoryPhoneLookup implements PhoneLookup<Cp2Info
 
           // Divide the numbers into those that are valid and those that are not. Issue a single
           // batch query for the valid numbers against the PHONE table, and in parallel issue
-          // individual queries against PHONE_LOOKUP for each invalid number.
+          // individual queries against PHONE_LOOKUP for each invalid number (or a single lookup in
+          // the index if there are too many of them).
           // TODO(zachh): These queries are inefficient without a lastModified column to filter on.
           PartitionedNumbers partitionedNumbers =
               new PartitionedNumbers(ImmutableSet.copyOf(updatedNumbers));
@@ -662,19 +703,14 @@ public final class Cp2DefaultDirectoryPhoneLookup implements PhoneLookup<Cp2Info
           ListenableFuture<Map<String, Set<Cp2ContactInfo>>> validNumbersFuture =
               batchQueryForValidNumbers(partitionedNumbers.validE164Numbers());
 
-          List<ListenableFuture<Set<Cp2ContactInfo>>> invalidNumbersFuturesList = new ArrayList<>();
-          for (String invalidNumber : partitionedNumbers.invalidNumbers()) {
-            invalidNumbersFuturesList.add(individualQueryForInvalidNumber(invalidNumber));
-          }
-
-          ListenableFuture<List<Set<Cp2ContactInfo>>> invalidNumbersFuture =
-              Futures.allAsList(invalidNumbersFuturesList);
+          ListenableFuture<Map<String, Set<Cp2ContactInfo>>> invalidNumbersFuture =
+              queryForInvalidNumbers(partitionedNumbers.invalidNumbers());
 
           Callable<Map<DialerPhoneNumber, Set<Cp2ContactInfo>>> computeMap =
               () -> {
                 // These get() calls are safe because we are using whenAllSucceed below.
                 Map<String, Set<Cp2ContactInfo>> validNumbersResult = validNumbersFuture.get();
-                List<Set<Cp2ContactInfo>> invalidNumbersResult = invalidNumbersFuture.get();
+                Map<String, Set<Cp2ContactInfo>> invalidNumbersResult = invalidNumbersFuture.get();
 
                 Map<DialerPhoneNumber, Set<Cp2ContactInfo>> map = new ArrayMap<>();
 
@@ -695,9 +731,9 @@ public final class Cp2DefaultDirectoryPhoneLookup implements PhoneLookup<Cp2Info
                 }
 
                 // Next update the map with the invalid results.
-                int i = 0;
-                for (String invalidNumber : partitionedNumbers.invalidNumbers()) {
-                  Set<Cp2ContactInfo> cp2Infos = invalidNumbersResult.get(i++);
+                for (Entry<String, Set<Cp2ContactInfo>> entry : invalidNumbersResult.entrySet()) {
+                  String invalidNumber = entry.getKey();
+                  Set<Cp2ContactInfo> cp2Infos = entry.getValue();
                   Set<DialerPhoneNumber> dialerPhoneNumbers =
                       partitionedNumbers.dialerPhoneNumbersForInvalid(invalidNumber);
 
@@ -757,6 +793,30 @@ public final class Cp2DefaultDirectoryPhoneLookup implements PhoneLookup<Cp2Info
         });
   }
 
+  /** Returns a map containing an entry for each of the {@code invalidNumbers}. */
+  private ListenableFuture<Map<String, Set<Cp2ContactInfo>>> queryForInvalidNumbers(
+      Set<String> invalidNumbers) {
+    if (invalidNumbers.size() > MAX_INDIVIDUALLY_QUERIED_INVALID_NUMBERS) {
+      return backgroundExecutorService.submit(() -> cp2PhoneIndex.lookUp(invalidNumbers));
+    }
+
+    List<String> invalidNumbersList = new ArrayList<>(invalidNumbers);
+    List<ListenableFuture<Set<Cp2ContactInfo>>> invalidNumbersFuturesList = new ArrayList<>();
+    for (String invalidNumber : invalidNumbersList) {
+      invalidNumbersFuturesList.add(individualQueryForInvalidNumber(invalidNumber));
+    }
+    return Futures.transform(
+        Futures.allAsList(invalidNumbersFuturesList),
+        invalidNumbersResult -> {
+          Map<String, Set<Cp2ContactInfo>> cp2ContactInfosByNumber = new ArrayMap<>();
+          for (int i = 0; i < invalidNumbersList.size(); i++) {
+            cp2ContactInfosByNumber.put(invalidNumbersList.get(i), invalidNumbersResult.get(i));
+          }
+          return cp2ContactInfosByNumber;
+        },
+        lightweightExecutorService);
+  }
+
   private ListenableFuture<Set<Cp2ContactInfo>> individualQueryForInvalidNumber(
       String invalidNumber) {
     return backgroundExecutorService.submit(
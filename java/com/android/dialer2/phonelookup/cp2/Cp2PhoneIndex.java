@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.dialer2.phonelookup.cp2;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.DeletedContacts;
+import android.support.annotation.WorkerThread;
+import android.support.v4.util.ArraySet;
+import android.telephony.PhoneNumberUtils;
+import android.text.TextUtils;
+import com.android.dialer2.common.Assert;
+import com.android.dialer2.common.LogUtil;
+import com.android.dialer2.inject.ApplicationContext;
+import com.android.dialer2.phonelookup.PhoneLookupInfo.Cp2Info.Cp2ContactInfo;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * In-memory index of the phone numbers of the contacts in the default directory, used to look up
+ * numbers which are not valid E164 numbers (short codes, carrier numbers, SIP addresses, ...) in
+ * bulk.
+ *
+ * <p>CP2 can only loose match such numbers with {@link
+ * android.provider.ContactsContract.PhoneLookup}, which takes a single number per query. Instead,
+ * the index is keyed by the minimum match portion of each number (see {@link
+ * PhoneNumberUtils#toCallerIDMinMatch(String)}), the same key CP2 uses for PhoneLookup, and
+ * candidates are compared with {@link PhoneNumberUtils#compare(Context, String, String)}.
+ *
+ * <p>The index is built with a single query of the PHONE table the first time it is used.
+ * Afterwards only the contacts whose {@link Contacts#CONTACT_LAST_UPDATED_TIMESTAMP} or {@link
+ * DeletedContacts#CONTACT_DELETED_TIMESTAMP} is newer than the index are queried again.
+ */
+@Singleton
+final class Cp2PhoneIndex {
+
+  private final Context appContext;
+
+  /** Keyed by the minimum match portion of {@link Entry#number}. */
+  private final Map<String, List<Entry>> entriesByMinMatch = new HashMap<>();
+
+  private final Map<Long, Set<String>> minMatchesByContactId = new HashMap<>();
+
+  /** The most recent contact update or delete reflected in the index, or -1 if it is not built. */
+  private long lastTimestampProcessed = -1;
+
+  @Inject
+  Cp2PhoneIndex(@ApplicationContext Context appContext) {
+    this.appContext = appContext;
+  }
+
+  /**
+   * Brings the index up to date with CP2.
+   *
+   * @return false if CP2 couldn't be queried, in which case the index may be missing changes or
+   *     not built at all
+   */
+  @WorkerThread
+  synchronized boolean refresh() {
+    Assert.isWorkerThread();
+    return update();
+  }
+
+  /**
+   * Returns the contacts which have a number matching each of the provided {@code numbers}.
+   *
+   * <p>The returned map contains an entry for each of the {@code numbers}, which is empty if there
+   * is no matching contact. If the index can't be brought up to date, the numbers are matched
+   * against the index as it is; callers which need to know should call {@link #refresh()} first.
+   */
+  @WorkerThread
+  synchronized Map<String, Set<Cp2ContactInfo>> lookUp(Set<String> numbers) {
+    Assert.isWorkerThread();
+    update();
+
+    Map<String, Set<Cp2ContactInfo>> cp2ContactInfosByNumber = new HashMap<>();
+    for (String number : numbers) {
+      Set<Cp2ContactInfo> cp2ContactInfos = new ArraySet<>();
+      if (!TextUtils.isEmpty(number)) {
+        List<Entry> candidates = entriesByMinMatch.get(PhoneNumberUtils.toCallerIDMinMatch(number));
+        if (candidates != null) {
+          for (Entry candidate : candidates) {
+            if (PhoneNumberUtils.compare(appContext, number, candidate.number)) {
+              cp2ContactInfos.add(candidate.cp2ContactInfo);
+            }
+          }
+        }
+      }
+      cp2ContactInfosByNumber.put(number, cp2ContactInfos);
+    }
+    return cp2ContactInfosByNumber;
+  }
+
+  /** Brings the index up to date with CP2, returning false if CP2 couldn't be queried. */
+  private boolean update() {
+    if (lastTimestampProcessed < 0) {
+      long startTime = System.currentTimeMillis();
+      lastTimestampProcessed = 0;
+      if (!addPhoneRows(null /* selection */, null /* selectionArgs */)) {
+        // Build it from scratch next time.
+        lastTimestampProcessed = -1;
+        return false;
+      }
+      LogUtil.i(
+          "Cp2PhoneIndex.update",
+          "indexed %d contacts in %dms",
+          minMatchesByContactId.size(),
+          System.currentTimeMillis() - startTime);
+      return true;
+    }
+
+    String[] lastTimestampProcessedArgs = new String[] {Long.toString(lastTimestampProcessed)};
+    Set<Long> staleContactIds = new ArraySet<>();
+    long newLastTimestampProcessed = lastTimestampProcessed;
+
+    try (Cursor cursor =
+        appContext
+            .getContentResolver()
+            .query(
+                DeletedContacts.CONTENT_URI,
+                new String[] {
+                  DeletedContacts.CONTACT_ID, DeletedContacts.CONTACT_DELETED_TIMESTAMP
+                },
+                DeletedContacts.CONTACT_DELETED_TIMESTAMP + " > ?",
+                lastTimestampProcessedArgs,
+                null)) {
+      if (cursor == null) {
+        LogUtil.w("Cp2PhoneIndex.update", "null cursor for deleted contacts");
+        return false;
+      }
+      while (cursor.moveToNext()) {
+        staleContactIds.add(cursor.getLong(0 /* columnIndex */));
+        newLastTimestampProcessed = Math.max(newLastTimestampProcessed, cursor.getLong(1));
+      }
+    }
+
+    // Contacts which no longer have any numbers aren't in the PHONE table, so the updated contacts
+    // are found using the CONTACTS table.
+    try (Cursor cursor =
+        appContext
+            .getContentResolver()
+            .query(
+                Contacts.CONTENT_URI,
+                new String[] {Contacts._ID, Contacts.CONTACT_LAST_UPDATED_TIMESTAMP},
+                Contacts.CONTACT_LAST_UPDATED_TIMESTAMP + " > ?",
+                lastTimestampProcessedArgs,
+                null)) {
+      if (cursor == null) {
+        LogUtil.w("Cp2PhoneIndex.update", "null cursor for updated contacts");
+        return false;
+      }
+      while (cursor.moveToNext()) {
+        staleContactIds.add(cursor.getLong(0 /* columnIndex */));
+        newLastTimestampProcessed = Math.max(newLastTimestampProcessed, cursor.getLong(1));
+      }
+    }
+
+    if (staleContactIds.isEmpty()) {
+      return true;
+    }
+    long previousLastTimestampProcessed = lastTimestampProcessed;
+    for (long contactId : staleContactIds) {
+      removeContact(contactId);
+    }
+    lastTimestampProcessed = newLastTimestampProcessed;
+    if (!addPhoneRows(Phone.CONTACT_LAST_UPDATED_TIMESTAMP + " > ?", lastTimestampProcessedArgs)) {
+      // The removed contacts are added back by the next update.
+      lastTimestampProcessed = previousLastTimestampProcessed;
+      return false;
+    }
+    LogUtil.i("Cp2PhoneIndex.update", "updated %d contacts", staleContactIds.size());
+    return true;
+  }
+
+  /**
+   * Adds the PHONE table rows matching {@code selection} to the index, replacing any rows already
+   * in the index for the same contacts.
+   *
+   * @return false if the PHONE table couldn't be queried
+   */
+  private boolean addPhoneRows(String selection, String[] selectionArgs) {
+    try (Cursor cursor =
+        appContext
+            .getContentResolver()
+            .query(
+                Phone.CONTENT_URI,
+                Cp2Projections.getProjectionForPhoneIndex(),
+                selection,
+                selectionArgs,
+                null)) {
+      if (cursor == null) {
+        LogUtil.w("Cp2PhoneIndex.addPhoneRows", "null cursor");
+        return false;
+      }
+      Set<Long> addedContactIds = new ArraySet<>();
+      while (cursor.moveToNext()) {
+        Cp2ContactInfo cp2ContactInfo =
+            Cp2Projections.buildCp2ContactInfoFromCursor(appContext, cursor);
+        long contactId = cp2ContactInfo.getContactId();
+        // A contact updated after the CONTACTS table was queried would otherwise be indexed twice.
+        if (addedContactIds.add(contactId)) {
+          removeContact(contactId);
+        }
+        lastTimestampProcessed =
+            Math.max(
+                lastTimestampProcessed,
+                Cp2Projections.getContactLastUpdatedTimestampFromCursor(cursor));
+
+        String number = Cp2Projections.getNumberFromCursor(cursor);
+        if (TextUtils.isEmpty(number)) {
+          continue;
+        }
+        String minMatch = PhoneNumberUtils.toCallerIDMinMatch(number);
+        List<Entry> entries = entriesByMinMatch.get(minMatch);
+        if (entries == null) {
+          entries = new ArrayList<>(1);
+          entriesByMinMatch.put(minMatch, entries);
+        }
+        entries.add(new Entry(contactId, number, cp2ContactInfo));
+
+        Set<String> minMatches = minMatchesByContactId.get(contactId);
+        if (minMatches == null) {
+          minMatches = new ArraySet<>();
+          minMatchesByContactId.put(contactId, minMatches);
+        }
+        minMatches.add(minMatch);
+      }
+    }
+    return true;
+  }
+
+  private void removeContact(long contactId) {
+    Set<String> minMatches = minMatchesByContactId.remove(contactId);
+    if (minMatches == null) {
+      return;
+    }
+    for (String minMatch : minMatches) {
+      List<Entry> entries = entriesByMinMatch.get(minMatch);
+      Iterator<Entry> iterator = entries.iterator();
+      while (iterator.hasNext()) {
+        if (iterator.next().contactId == contactId) {
+          iterator.remove();
+        }
+      }
+      if (entries.isEmpty()) {
+        entriesByMinMatch.remove(minMatch);
+      }
+    }
+  }
+
+  /** A number of a contact. */
+  private static final class Entry {
+    final long contactId;
+    final String number;
+    final Cp2ContactInfo cp2ContactInfo;
+
+    Entry(long contactId, String number, Cp2ContactInfo cp2ContactInfo) {
+      this.contactId = contactId;
+      this.number = number;
+      this.cp2ContactInfo = cp2ContactInfo;
+    }
+  }
+}
@@ -58,7 +58,25 @@ final class Cp2Projections {
         PhoneLookup.LOOKUP_KEY // 8
       };
 
-  // The following indexes should match both PHONE_PROJECTION and PHONE_LOOKUP_PROJECTION above.
+  // Projection for building the Cp2PhoneIndex using the PHONE table, which also needs the raw
+  // number and when the contact was last updated.
+  private static final String[] PHONE_INDEX_PROJECTION =
+      new String[] {
+        Phone.DISPLAY_NAME_PRIMARY, // 0
+        Phone.PHOTO_THUMBNAIL_URI, // 1
+        Phone.PHOTO_URI, // 2
+        Phone.PHOTO_ID, // 3
+        Phone.TYPE, // 4
+        Phone.LABEL, // 5
+        Phone.NORMALIZED_NUMBER, // 6
+        Phone.CONTACT_ID, // 7
+        Phone.LOOKUP_KEY, // 8
+        Phone.NUMBER, // 9
+        Phone.CONTACT_LAST_UPDATED_TIMESTAMP // 10
+      };
+
+  // The following indexes should match PHONE_PROJECTION, PHONE_LOOKUP_PROJECTION, and
+  // PHONE_INDEX_PROJECTION above.
   private static final int CP2_INFO_NAME_INDEX = 0;
   private static final int CP2_INFO_PHOTO_THUMBNAIL_URI_INDEX = 1;
   private static final int CP2_INFO_PHOTO_URI_INDEX = 2;
@@ -69,6 +87,10 @@ final class Cp2Projections {
   private static final int CP2_INFO_CONTACT_ID_INDEX = 7;
   private static final int CP2_INFO_LOOKUP_KEY_INDEX = 8;
 
+  // The following indexes are only in PHONE_INDEX_PROJECTION.
+  private static final int PHONE_INDEX_NUMBER_INDEX = 9;
+  private static final int PHONE_INDEX_CONTACT_LAST_UPDATED_TIMESTAMP_INDEX = 10;
+
   private Cp2Projections() {}
 
   static String[] getProjectionForPhoneTable() {
@@ -79,9 +101,14 @@ final class Cp2Projections {
     return PHONE_LOOKUP_PROJECTION;
   }
 
+  static String[] getProjectionForPhoneIndex() {
+    return PHONE_INDEX_PROJECTION;
+  }
+
   /**
    * Builds a {@link Cp2ContactInfo} based on the current row of {@code cursor}, of which the
-   * projection is either {@link #PHONE_PROJECTION} or {@link #PHONE_LOOKUP_PROJECTION}.
+   * projection is {@link #PHONE_PROJECTION}, {@link #PHONE_LOOKUP_PROJECTION}, or {@link
+   * #PHONE_INDEX_PROJECTION}.
    */
   static Cp2ContactInfo buildCp2ContactInfoFromCursor(Context appContext, Cursor cursor) {
     String displayName = cursor.getString(CP2_INFO_NAME_INDEX);
@@ -123,4 +150,20 @@ final class Cp2Projections {
   static String getNormalizedNumberFromCursor(Cursor cursor) {
     return cursor.getString(CP2_INFO_NORMALIZED_NUMBER_INDEX);
   }
+
+  /**
+   * Returns the number in the current row of {@code cursor}, of which the projection is {@link
+   * #PHONE_INDEX_PROJECTION}.
+   */
+  static String getNumberFromCursor(Cursor cursor) {
+    return cursor.getString(PHONE_INDEX_NUMBER_INDEX);
+  }
+
+  /**
+   * Returns the contact last updated timestamp in the current row of {@code cursor}, of which the
+   * projection is {@link #PHONE_INDEX_PROJECTION}.
+   */
+  static long getContactLastUpdatedTimestampFromCursor(Cursor cursor) {
+    return cursor.getLong(PHONE_INDEX_CONTACT_LAST_UPDATED_TIMESTAMP_INDEX);
+  }
 }
@@ -176,6 +176,41 @@ public class PhoneLookupHistoryContentProvider extends ContentProvider {
     return insertedUri;
   }
 
+  /**
+   * Inserts or replaces the rows for the normalized numbers in {@code values}, which must be
+   * provided for each row along with all required columns.
+   *
+   * <p>Note: Unlike {@link #insert(Uri, ContentValues)}, existing rows are replaced. All rows are
+   * written in a single transaction and only a single notification for the content URI is
+   * generated.
+   */
+  @Override
+  public int bulkInsert(@NonNull Uri uri, @NonNull ContentValues[] values) {
+    Assert.checkArgument(
+        uriType(uri) == UriType.PHONE_LOOKUP_HISTORY_TABLE_CODE,
+        "bulkInsert must be applied to the whole table");
+    if (values.length == 0) {
+      return 0;
+    }
+
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+    database.beginTransaction();
+    try {
+      for (ContentValues contentValues : values) {
+        Assert.checkArgument(
+            contentValues.getAsString(PhoneLookupHistory.NORMALIZED_NUMBER) != null,
+            "You must specify a normalized number when inserting");
+        long result = database.replace(PhoneLookupHistory.TABLE, null, contentValues);
+        Assert.checkArgument(result != -1, "replacing PhoneLookupHistory row failed");
+      }
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+    }
+    notifyChange(PhoneLookupHistory.CONTENT_URI);
+    return values.length;
+  }
+
   @Override
   public int delete(
       @NonNull Uri uri, @Nullable String selection, @Nullable String[] selectionArgs) {
@@ -30,7 +30,6 @@ class PhoneLookupHistoryDatabaseHelper extends SQLiteOpenHelper {
     super(appContext, "phone_lookup_history.db", null, 1);
   }
 
-  // TODO(zachh): LAST_MODIFIED is no longer read and can be deleted.
   private static final String CREATE_TABLE_SQL =
       "create table if not exists "
           + PhoneLookupHistory.TABLE
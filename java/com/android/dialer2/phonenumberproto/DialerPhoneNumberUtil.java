@@ -21,6 +21,8 @@ import android.support.annotation.Nullable;
 import android.support.annotation.WorkerThread;
 import android.telephony.PhoneNumberUtils;
 import android.text.TextUtils;
+import android.util.LruCache;
+import android.util.Pair;
 import com.android.dialer2.DialerPhoneNumber;
 import com.android.dialer2.common.Assert;
 import com.android.dialer2.common.LogUtil;
@@ -35,14 +37,32 @@ import com.google.i18n.phonenumbers.Phonenumber.PhoneNumber;
  * lite proto instead of the {@link com.google.i18n.phonenumbers.Phonenumber.PhoneNumber} POJO.
  *
  * <p>All methods should be called on a worker thread.
+ *
+ * <p>The same few numbers are parsed and matched over and over by the call log, phone lookups and
+ * the in call UI, so the results of {@link #parse(String, String)} and {@link
+ * #isMatch(DialerPhoneNumber, DialerPhoneNumber)} are kept in LRU caches shared by all instances
+ * which use the default {@link PhoneNumberUtil} instance.
  */
 public class DialerPhoneNumberUtil {
+  private static final int MAX_CACHED_PARSED_NUMBERS = 500;
+  private static final int MAX_CACHED_MATCHES = 2000;
+
+  /** Keyed by the number to parse and the default region. */
+  private static final LruCache<Pair<String, String>, DialerPhoneNumber> parsedNumberCache =
+      new LruCache<>(MAX_CACHED_PARSED_NUMBERS);
+
+  private static final LruCache<Pair<DialerPhoneNumber, DialerPhoneNumber>, Boolean> matchCache =
+      new LruCache<>(MAX_CACHED_MATCHES);
+
   private final PhoneNumberUtil phoneNumberUtil;
+  private final boolean useSharedCaches;
 
   @WorkerThread
   public DialerPhoneNumberUtil(@NonNull PhoneNumberUtil phoneNumberUtil) {
     Assert.isWorkerThread();
     this.phoneNumberUtil = Assert.isNotNull(phoneNumberUtil);
+    // Results depend on the metadata of the PhoneNumberUtil, so only cache results of the default.
+    this.useSharedCaches = phoneNumberUtil == PhoneNumberUtil.getInstance();
   }
 
   /**
@@ -53,7 +73,21 @@ public class DialerPhoneNumberUtil {
   @WorkerThread
   public DialerPhoneNumber parse(@Nullable String numberToParse, @Nullable String defaultRegion) {
     Assert.isWorkerThread();
+    if (numberToParse == null || !useSharedCaches) {
+      return parseInternal(numberToParse, defaultRegion);
+    }
 
+    Pair<String, String> key = Pair.create(numberToParse, defaultRegion);
+    DialerPhoneNumber dialerPhoneNumber = parsedNumberCache.get(key);
+    if (dialerPhoneNumber == null) {
+      dialerPhoneNumber = parseInternal(numberToParse, defaultRegion);
+      parsedNumberCache.put(key, dialerPhoneNumber);
+    }
+    return dialerPhoneNumber;
+  }
+
+  private DialerPhoneNumber parseInternal(
+      @Nullable String numberToParse, @Nullable String defaultRegion) {
     DialerPhoneNumber.Builder dialerPhoneNumber = DialerPhoneNumber.newBuilder();
 
     if (defaultRegion != null) {
@@ -133,6 +167,20 @@ public class DialerPhoneNumberUtil {
       return false;
     }
 
+    if (!useSharedCaches) {
+      return isMatchInternal(firstNumberIn, secondNumberIn);
+    }
+    Pair<DialerPhoneNumber, DialerPhoneNumber> key = Pair.create(firstNumberIn, secondNumberIn);
+    Boolean isMatch = matchCache.get(key);
+    if (isMatch == null) {
+      isMatch = isMatchInternal(firstNumberIn, secondNumberIn);
+      matchCache.put(key, isMatch);
+    }
+    return isMatch;
+  }
+
+  private boolean isMatchInternal(
+      @NonNull DialerPhoneNumber firstNumberIn, @NonNull DialerPhoneNumber secondNumberIn) {
     PhoneNumber phoneNumber1 = null;
     try {
       phoneNumber1 =
@@ -25,9 +25,11 @@ import com.android.dialer2.common.LogUtil;
 import com.android.dialer2.database.Database;
 import com.android.dialer2.database.DialerDatabaseHelper;
 import com.android.dialer2.database.DialerDatabaseHelper.ContactNumber;
+import com.android.dialer2.database.DialerDatabaseHelper.LooseMatchCandidates;
 import com.android.dialer2.smartdial.util.SmartDialNameMatcher;
 import com.android.dialer2.util.PermissionsUtil;
 import java.util.ArrayList;
+import javax.annotation.concurrent.GuardedBy;
 
 /** Implements a Loader<Cursor> class to asynchronously load SmartDial search results. */
 public class SmartDialCursorLoader extends AsyncTaskLoader<Cursor> {
@@ -35,6 +37,16 @@ public class SmartDialCursorLoader extends AsyncTaskLoader<Cursor> {
   private static final String TAG = "SmartDialCursorLoader";
   private static final boolean DEBUG = false;
 
+  /**
+   * Candidates of the most recent query. A new loader is usually created for every query, so they
+   * are shared by all instances. When the user types another digit, these are narrowed down instead
+   * of looking up the new query from scratch.
+   */
+  private static final Object candidatesLock = new Object();
+
+  @GuardedBy("candidatesLock")
+  private static LooseMatchCandidates lastCandidates;
+
   private final Context context;
 
   private Cursor cursor;
@@ -83,8 +95,7 @@ public class SmartDialCursorLoader extends AsyncTaskLoader<Cursor> {
     /** Loads results from the database helper. */
     final DialerDatabaseHelper dialerDatabaseHelper =
         Database.get(context).getDatabaseHelper(context);
-    final ArrayList<ContactNumber> allMatches =
-        dialerDatabaseHelper.getLooseMatches(query, nameMatcher);
+    final ArrayList<ContactNumber> allMatches = getLooseMatches(dialerDatabaseHelper);
 
     if (DEBUG) {
       LogUtil.v(TAG, "Loaded matches " + allMatches.size());
@@ -106,6 +117,31 @@ public class SmartDialCursorLoader extends AsyncTaskLoader<Cursor> {
     return cursor;
   }
 
+  /**
+   * Narrows down the candidates of the previous query if the query was extended, and looks up the
+   * query from scratch otherwise.
+   */
+  private ArrayList<ContactNumber> getLooseMatches(DialerDatabaseHelper dialerDatabaseHelper) {
+    final LooseMatchCandidates previous;
+    synchronized (candidatesLock) {
+      previous = lastCandidates;
+    }
+
+    final LooseMatchCandidates candidates =
+        dialerDatabaseHelper.getLooseMatchCandidates(query, nameMatcher, previous);
+    synchronized (candidatesLock) {
+      lastCandidates = candidates;
+    }
+
+    if (candidates == null) {
+      return dialerDatabaseHelper.getLooseMatches(query, nameMatcher);
+    }
+    if (DEBUG) {
+      LogUtil.v(TAG, "Loaded candidates " + candidates.candidates.size());
+    }
+    return dialerDatabaseHelper.getLooseMatches(candidates);
+  }
+
   @Override
   public void deliverResult(Cursor cursor) {
     if (isReset()) {
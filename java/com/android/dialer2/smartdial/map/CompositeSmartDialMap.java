@@ -17,10 +17,12 @@
 package com.android.dialer2.smartdial.map;
 
 import android.content.Context;
+import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
 import android.support.v4.util.SimpleArrayMap;
 import com.android.dialer2.compat.CompatUtils;
 import com.google.common.base.Optional;
+import java.util.Locale;
 
 /**
  * A utility class that combines the functionality of two implementations of {@link SmartDialMap} so
@@ -47,6 +49,18 @@ public class CompositeSmartDialMap {
     EXTRA_MAPS.put("ukr", UkrainianSmartDialMap.getInstance());
   }
 
+  // Lookup tables for the default map combined with each of the extra maps, keyed by the same
+  // language codes as EXTRA_MAPS. Guarded by LOOKUP_TABLES.
+  private static final SimpleArrayMap<String, SmartDialLookupTable> LOOKUP_TABLES =
+      new SimpleArrayMap<>();
+
+  // Lookup table for languages without an extra map. Guarded by LOOKUP_TABLES.
+  private static SmartDialLookupTable defaultLookupTable;
+
+  // The table returned for the last locale, so that repeated calls for the same locale neither
+  // resolve its language nor take the lock.
+  private static volatile LocaleLookupTable lastLocaleLookupTable;
+
   private CompositeSmartDialMap() {}
 
   /**
@@ -56,12 +70,7 @@ public class CompositeSmartDialMap {
    * SmartDialMap#normalizeCharacter(char)} for details.
    */
   public static boolean isValidDialpadCharacter(Context context, char ch) {
-    if (DEFAULT_MAP.isValidDialpadCharacter(ch)) {
-      return true;
-    }
-
-    Optional<SmartDialMap> extraMap = getExtraMap(context);
-    return extraMap.isPresent() && extraMap.get().isValidDialpadCharacter(ch);
+    return getLookupTable(context).isValidDialpadCharacter(ch);
   }
 
   /**
@@ -71,24 +80,14 @@ public class CompositeSmartDialMap {
    * SmartDialMap#normalizeCharacter(char)} for details.
    */
   public static boolean isValidDialpadAlphabeticChar(Context context, char ch) {
-    if (DEFAULT_MAP.isValidDialpadAlphabeticChar(ch)) {
-      return true;
-    }
-
-    Optional<SmartDialMap> extraMap = getExtraMap(context);
-    return extraMap.isPresent() && extraMap.get().isValidDialpadAlphabeticChar(ch);
+    return getLookupTable(context).isValidDialpadAlphabeticChar(ch);
   }
 
   /**
    * Returns true if the provided character is a digit, and can be mapped to a key on the dialpad.
    */
   public static boolean isValidDialpadNumericChar(Context context, char ch) {
-    if (DEFAULT_MAP.isValidDialpadNumericChar(ch)) {
-      return true;
-    }
-
-    Optional<SmartDialMap> extraMap = getExtraMap(context);
-    return extraMap.isPresent() && extraMap.get().isValidDialpadNumericChar(ch);
+    return getLookupTable(context).isValidDialpadNumericChar(ch);
   }
 
   /**
@@ -100,17 +99,7 @@ public class CompositeSmartDialMap {
    * <p>If the provided character can't be mapped to a key on the dialpad, return -1.
    */
   public static byte getDialpadIndex(Context context, char ch) {
-    Optional<Byte> dialpadIndex = DEFAULT_MAP.getDialpadIndex(ch);
-    if (dialpadIndex.isPresent()) {
-      return dialpadIndex.get();
-    }
-
-    Optional<SmartDialMap> extraMap = getExtraMap(context);
-    if (extraMap.isPresent()) {
-      dialpadIndex = extraMap.get().getDialpadIndex(ch);
-    }
-
-    return dialpadIndex.isPresent() ? dialpadIndex.get() : -1;
+    return getLookupTable(context).getDialpadIndex(ch);
   }
 
   /**
@@ -122,17 +111,7 @@ public class CompositeSmartDialMap {
    * <p>If the provided character can't be mapped to a key on the dialpad, return the character.
    */
   public static char getDialpadNumericCharacter(Context context, char ch) {
-    Optional<Character> dialpadNumericChar = DEFAULT_MAP.getDialpadNumericCharacter(ch);
-    if (dialpadNumericChar.isPresent()) {
-      return dialpadNumericChar.get();
-    }
-
-    Optional<SmartDialMap> extraMap = getExtraMap(context);
-    if (extraMap.isPresent()) {
-      dialpadNumericChar = extraMap.get().getDialpadNumericCharacter(ch);
-    }
-
-    return dialpadNumericChar.isPresent() ? dialpadNumericChar.get() : ch;
+    return getLookupTable(context).getDialpadNumericCharacter(ch);
   }
 
   /**
@@ -142,19 +121,101 @@ public class CompositeSmartDialMap {
    * <p>If the provided character can't be mapped to a key on the dialpad, return the character.
    */
   public static char normalizeCharacter(Context context, char ch) {
-    Optional<Character> normalizedChar = DEFAULT_MAP.normalizeCharacter(ch);
-    if (normalizedChar.isPresent()) {
-      return normalizedChar.get();
+    return getLookupTable(context).normalizeCharacter(ch);
+  }
+
+  /**
+   * Returns the lookup table for the system's 1st language preference.
+   *
+   * <p>Loops over many characters should fetch the table once and use it directly, rather than
+   * calling the methods above for each character.
+   */
+  public static SmartDialLookupTable getLookupTable(Context context) {
+    Locale locale = CompatUtils.getLocale(context);
+    LocaleLookupTable localeLookupTable = lastLocaleLookupTable;
+    if (localeLookupTable != null && localeLookupTable.locale.equals(locale)) {
+      return localeLookupTable.lookupTable;
     }
 
-    Optional<SmartDialMap> extraMap = getExtraMap(context);
-    if (extraMap.isPresent()) {
-      normalizedChar = extraMap.get().normalizeCharacter(ch);
+    SmartDialLookupTable lookupTable = getLookupTable(locale.getISO3Language());
+    lastLocaleLookupTable = new LocaleLookupTable(locale, lookupTable);
+    return lookupTable;
+  }
+
+  private static SmartDialLookupTable getLookupTable(String languageCode) {
+    synchronized (LOOKUP_TABLES) {
+      if (!EXTRA_MAPS.containsKey(languageCode)) {
+        if (defaultLookupTable == null) {
+          defaultLookupTable = SmartDialLookupTable.create(DEFAULT_MAP, null);
+        }
+        return defaultLookupTable;
+      }
+
+      SmartDialLookupTable lookupTable = LOOKUP_TABLES.get(languageCode);
+      if (lookupTable == null) {
+        lookupTable = SmartDialLookupTable.create(DEFAULT_MAP, EXTRA_MAPS.get(languageCode));
+        LOOKUP_TABLES.put(languageCode, lookupTable);
+      }
+      return lookupTable;
+    }
+  }
+
+  /*
+   * The methods below combine a default and an optional extra map. They are used to build the
+   * lookup tables.
+   */
+
+  static boolean isValidDialpadAlphabeticChar(
+      SmartDialMap defaultMap, @Nullable SmartDialMap extraMap, char ch) {
+    return defaultMap.isValidDialpadAlphabeticChar(ch)
+        || (extraMap != null && extraMap.isValidDialpadAlphabeticChar(ch));
+  }
+
+  static boolean isValidDialpadNumericChar(
+      SmartDialMap defaultMap, @Nullable SmartDialMap extraMap, char ch) {
+    return defaultMap.isValidDialpadNumericChar(ch)
+        || (extraMap != null && extraMap.isValidDialpadNumericChar(ch));
+  }
+
+  static byte getDialpadIndex(SmartDialMap defaultMap, @Nullable SmartDialMap extraMap, char ch) {
+    Optional<Byte> dialpadIndex = defaultMap.getDialpadIndex(ch);
+    if (!dialpadIndex.isPresent() && extraMap != null) {
+      dialpadIndex = extraMap.getDialpadIndex(ch);
+    }
+
+    return dialpadIndex.isPresent() ? dialpadIndex.get() : -1;
+  }
+
+  static char getDialpadNumericCharacter(
+      SmartDialMap defaultMap, @Nullable SmartDialMap extraMap, char ch) {
+    Optional<Character> dialpadNumericChar = defaultMap.getDialpadNumericCharacter(ch);
+    if (!dialpadNumericChar.isPresent() && extraMap != null) {
+      dialpadNumericChar = extraMap.getDialpadNumericCharacter(ch);
+    }
+
+    return dialpadNumericChar.isPresent() ? dialpadNumericChar.get() : ch;
+  }
+
+  static char normalizeCharacter(
+      SmartDialMap defaultMap, @Nullable SmartDialMap extraMap, char ch) {
+    Optional<Character> normalizedChar = defaultMap.normalizeCharacter(ch);
+    if (!normalizedChar.isPresent() && extraMap != null) {
+      normalizedChar = extraMap.normalizeCharacter(ch);
     }
 
     return normalizedChar.isPresent() ? normalizedChar.get() : ch;
   }
 
+  private static final class LocaleLookupTable {
+    final Locale locale;
+    final SmartDialLookupTable lookupTable;
+
+    LocaleLookupTable(Locale locale, SmartDialLookupTable lookupTable) {
+      this.locale = locale;
+      this.lookupTable = lookupTable;
+    }
+  }
+
   @VisibleForTesting
   static Optional<SmartDialMap> getExtraMap(Context context) {
     String languageCode = CompatUtils.getLocale(context).getISO3Language();
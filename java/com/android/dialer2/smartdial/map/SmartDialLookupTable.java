@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer2.smartdial.map;
+
+import android.support.annotation.Nullable;
+
+/**
+ * Precomputed results of {@link CompositeSmartDialMap} for a default and an optional extra {@link
+ * SmartDialMap}.
+ *
+ * <p>The tables are split in blocks of {@link #BLOCK_SIZE} characters, which are only computed the
+ * first time a character of the block is looked up. Names usually use a few blocks of a single
+ * script, so creating a table is cheap and only the blocks in use are ever computed. Lookups in a
+ * computed block neither box nor allocate, so they are suitable for the per character loops of
+ * smart dial indexing and matching.
+ */
+public final class SmartDialLookupTable {
+
+  private static final int BLOCK_BITS = 8;
+  private static final int BLOCK_SIZE = 1 << BLOCK_BITS;
+
+  private static final byte FLAG_ALPHABETIC = 1;
+  private static final byte FLAG_NUMERIC = 1 << 1;
+
+  private final SmartDialMap defaultMap;
+  @Nullable private final SmartDialMap extraMap;
+
+  /**
+   * Computed blocks, null until first used. Blocks only have final fields, so they can be read
+   * without synchronization; a block computed concurrently by two threads is merely computed twice.
+   */
+  private final Block[] blocks = new Block[(Character.MAX_VALUE + 1) >> BLOCK_BITS];
+
+  private SmartDialLookupTable(SmartDialMap defaultMap, @Nullable SmartDialMap extraMap) {
+    this.defaultMap = defaultMap;
+    this.extraMap = extraMap;
+  }
+
+  /** Same as {@link CompositeSmartDialMap#isValidDialpadCharacter}. */
+  public boolean isValidDialpadCharacter(char ch) {
+    return getBlock(ch).flags[ch & (BLOCK_SIZE - 1)] != 0;
+  }
+
+  /** Same as {@link CompositeSmartDialMap#isValidDialpadAlphabeticChar}. */
+  public boolean isValidDialpadAlphabeticChar(char ch) {
+    return (getBlock(ch).flags[ch & (BLOCK_SIZE - 1)] & FLAG_ALPHABETIC) != 0;
+  }
+
+  /** Same as {@link CompositeSmartDialMap#isValidDialpadNumericChar}. */
+  public boolean isValidDialpadNumericChar(char ch) {
+    return (getBlock(ch).flags[ch & (BLOCK_SIZE - 1)] & FLAG_NUMERIC) != 0;
+  }
+
+  /** Same as {@link CompositeSmartDialMap#getDialpadIndex}. */
+  public byte getDialpadIndex(char ch) {
+    return getBlock(ch).dialpadIndexes[ch & (BLOCK_SIZE - 1)];
+  }
+
+  /** Same as {@link CompositeSmartDialMap#getDialpadNumericCharacter}. */
+  public char getDialpadNumericCharacter(char ch) {
+    return getBlock(ch).dialpadNumericChars[ch & (BLOCK_SIZE - 1)];
+  }
+
+  /** Same as {@link CompositeSmartDialMap#normalizeCharacter}. */
+  public char normalizeCharacter(char ch) {
+    return getBlock(ch).normalizedChars[ch & (BLOCK_SIZE - 1)];
+  }
+
+  /** Creates a table in which {@code defaultMap} takes precedence over {@code extraMap}. */
+  static SmartDialLookupTable create(SmartDialMap defaultMap, @Nullable SmartDialMap extraMap) {
+    return new SmartDialLookupTable(defaultMap, extraMap);
+  }
+
+  private Block getBlock(char ch) {
+    int blockIndex = ch >> BLOCK_BITS;
+    Block block = blocks[blockIndex];
+    if (block == null) {
+      block = new Block(defaultMap, extraMap, (char) (blockIndex << BLOCK_BITS));
+      blocks[blockIndex] = block;
+    }
+    return block;
+  }
+
+  /** The results of both maps for {@link #BLOCK_SIZE} consecutive characters. */
+  private static final class Block {
+    final char[] normalizedChars = new char[BLOCK_SIZE];
+    final byte[] flags = new byte[BLOCK_SIZE];
+    final byte[] dialpadIndexes = new byte[BLOCK_SIZE];
+    final char[] dialpadNumericChars = new char[BLOCK_SIZE];
+
+    Block(SmartDialMap defaultMap, @Nullable SmartDialMap extraMap, char firstChar) {
+      for (int i = 0; i < BLOCK_SIZE; i++) {
+        final char ch = (char) (firstChar + i);
+        normalizedChars[i] = CompositeSmartDialMap.normalizeCharacter(defaultMap, extraMap, ch);
+        dialpadIndexes[i] = CompositeSmartDialMap.getDialpadIndex(defaultMap, extraMap, ch);
+        dialpadNumericChars[i] =
+            CompositeSmartDialMap.getDialpadNumericCharacter(defaultMap, extraMap, ch);
+        if (CompositeSmartDialMap.isValidDialpadAlphabeticChar(defaultMap, extraMap, ch)) {
+          flags[i] |= FLAG_ALPHABETIC;
+        }
+        if (CompositeSmartDialMap.isValidDialpadNumericChar(defaultMap, extraMap, ch)) {
+          flags[i] |= FLAG_NUMERIC;
+        }
+      }
+    }
+  }
+}
@@ -20,6 +20,7 @@ import android.content.Context;
 import android.support.annotation.Nullable;
 import android.text.TextUtils;
 import com.android.dialer2.smartdial.map.CompositeSmartDialMap;
+import com.android.dialer2.smartdial.map.SmartDialLookupTable;
 import com.android.dialer2.smartdial.util.SmartDialPrefix.PhoneNumberTokens;
 import java.util.ArrayList;
 
@@ -66,10 +67,11 @@ public class SmartDialNameMatcher {
    * @return Phone number consisting of digits from 0-9
    */
   public static String normalizeNumber(Context context, String number, int offset) {
+    final SmartDialLookupTable lookupTable = CompositeSmartDialMap.getLookupTable(context);
     final StringBuilder s = new StringBuilder();
     for (int i = offset; i < number.length(); i++) {
       char ch = number.charAt(i);
-      if (CompositeSmartDialMap.isValidDialpadNumericChar(context, ch)) {
+      if (lookupTable.isValidDialpadNumericChar(ch)) {
         s.append(ch);
       }
     }
@@ -166,6 +168,7 @@ public class SmartDialNameMatcher {
     if (TextUtils.isEmpty(phoneNumber) || TextUtils.isEmpty(query)) {
       return shouldMatchEmptyQuery ? new SmartDialMatchPosition(offset, offset) : null;
     }
+    final SmartDialLookupTable lookupTable = CompositeSmartDialMap.getLookupTable(context);
     int queryAt = 0;
     int numberAt = offset;
     for (int i = offset; i < phoneNumber.length(); i++) {
@@ -173,7 +176,7 @@ public class SmartDialNameMatcher {
         break;
       }
       char ch = phoneNumber.charAt(i);
-      if (CompositeSmartDialMap.isValidDialpadNumericChar(context, ch)) {
+      if (lookupTable.isValidDialpadNumericChar(ch)) {
         if (ch != query.charAt(queryAt)) {
           return null;
         }
@@ -244,6 +247,8 @@ public class SmartDialNameMatcher {
       return false;
     }
 
+    final SmartDialLookupTable lookupTable = CompositeSmartDialMap.getLookupTable(context);
+
     // The current character index in displayName
     // E.g. 3 corresponds to 'd' in "Fred Smith"
     int nameStart = 0;
@@ -265,10 +270,10 @@ public class SmartDialNameMatcher {
     while (nameStart < nameLength && queryStart < queryLength) {
       char ch = displayName.charAt(nameStart);
       // Strip diacritics from accented characters if any
-      ch = CompositeSmartDialMap.normalizeCharacter(context, ch);
-      if (CompositeSmartDialMap.isValidDialpadCharacter(context, ch)) {
-        if (CompositeSmartDialMap.isValidDialpadAlphabeticChar(context, ch)) {
-          ch = CompositeSmartDialMap.getDialpadNumericCharacter(context, ch);
+      ch = lookupTable.normalizeCharacter(ch);
+      if (lookupTable.isValidDialpadCharacter(ch)) {
+        if (lookupTable.isValidDialpadAlphabeticChar(ch)) {
+          ch = lookupTable.getDialpadNumericCharacter(ch);
         }
         if (ch != query.charAt(queryStart)) {
           // Failed to match the current character in the query.
@@ -288,16 +293,12 @@ public class SmartDialNameMatcher {
           // then skip to the end of the "Yoghurt" token.
 
           if (queryStart == 0
-              || CompositeSmartDialMap.isValidDialpadCharacter(
-                  context,
-                  CompositeSmartDialMap.normalizeCharacter(
-                      context, displayName.charAt(nameStart - 1)))) {
+              || lookupTable.isValidDialpadCharacter(
+                  lookupTable.normalizeCharacter(displayName.charAt(nameStart - 1)))) {
             // skip to the next token, in the case of 1 or 2.
             while (nameStart < nameLength
-                && CompositeSmartDialMap.isValidDialpadCharacter(
-                    context,
-                    CompositeSmartDialMap.normalizeCharacter(
-                        context, displayName.charAt(nameStart)))) {
+                && lookupTable.isValidDialpadCharacter(
+                    lookupTable.normalizeCharacter(displayName.charAt(nameStart)))) {
               nameStart++;
             }
             nameStart++;
@@ -325,9 +326,8 @@ public class SmartDialNameMatcher {
             // find the next separator in the query string
             int j;
             for (j = nameStart; j < nameLength; j++) {
-              if (!CompositeSmartDialMap.isValidDialpadCharacter(
-                  context,
-                  CompositeSmartDialMap.normalizeCharacter(context, displayName.charAt(j)))) {
+              if (!lookupTable.isValidDialpadCharacter(
+                  lookupTable.normalizeCharacter(displayName.charAt(j)))) {
                 break;
               }
             }
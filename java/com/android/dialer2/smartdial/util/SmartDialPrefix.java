@@ -23,6 +23,7 @@ import android.support.annotation.VisibleForTesting;
 import android.telephony.TelephonyManager;
 import android.text.TextUtils;
 import com.android.dialer2.smartdial.map.CompositeSmartDialMap;
+import com.android.dialer2.smartdial.map.SmartDialLookupTable;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Set;
@@ -59,8 +60,11 @@ public class SmartDialPrefix {
   private static boolean userInNanpRegion = false;
   /** Set of country names that use NANP code. */
   private static Set<String> nanpCountries = null;
-  /** Set of supported country codes in front of the phone number. */
-  private static Set<String> countryCodes = null;
+  /**
+   * Set of supported country codes in front of the phone number. Initialized eagerly since numbers
+   * are parsed concurrently when the smart dial database is rebuilt.
+   */
+  private static final Set<String> countryCodes = initCountryCodes();
 
   private static boolean nanpInitialized = false;
 
@@ -95,6 +99,7 @@ public class SmartDialPrefix {
    * @return A list of name tokens, for example separated first names, last name, etc.
    */
   public static ArrayList<String> parseToIndexTokens(Context context, String contactName) {
+    final SmartDialLookupTable lookupTable = CompositeSmartDialMap.getLookupTable(context);
     final int length = contactName.length();
     final ArrayList<String> result = new ArrayList<>();
     char c;
@@ -105,10 +110,10 @@ public class SmartDialPrefix {
      * " ", mark the current token as complete and add it to the list of tokens.
      */
     for (int i = 0; i < length; i++) {
-      c = CompositeSmartDialMap.normalizeCharacter(context, contactName.charAt(i));
-      if (CompositeSmartDialMap.isValidDialpadCharacter(context, c)) {
+      c = lookupTable.normalizeCharacter(contactName.charAt(i));
+      if (lookupTable.isValidDialpadCharacter(c)) {
         /** Converts a character into the number on dialpad that represents the character. */
-        currentIndexToken.append(CompositeSmartDialMap.getDialpadIndex(context, c));
+        currentIndexToken.append(lookupTable.getDialpadIndex(c));
       } else {
         if (currentIndexToken.length() != 0) {
           result.add(currentIndexToken.toString());
@@ -292,9 +297,6 @@ public class SmartDialPrefix {
 
   /** Checkes whether a country code is valid. */
   private static boolean isValidCountryCode(String countryCode) {
-    if (countryCodes == null) {
-      countryCodes = initCountryCodes();
-    }
     return countryCodes.contains(countryCode);
   }
 
@@ -26,27 +26,38 @@ import android.database.SQLException;
 import android.net.Uri;
 import android.os.Build.VERSION;
 import android.os.Build.VERSION_CODES;
+import android.os.CancellationSignal;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.OperationCanceledException;
+import android.os.SystemClock;
 import android.os.Trace;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.Directory;
 import android.support.annotation.MainThread;
+import android.support.annotation.Nullable;
 import android.support.annotation.RequiresPermission;
 import android.support.annotation.WorkerThread;
 import android.telephony.PhoneNumberUtils;
 import android.text.TextUtils;
+import com.android.dialer2.common.LogUtil;
 import com.android.dialer2.common.cp2.DirectoryCompat;
+import com.android.dialer2.configprovider.ConfigProviderBindings;
 import com.android.dialer2.phonenumbercache.CachedNumberLookupService;
 import com.android.dialer2.phonenumbercache.CachedNumberLookupService.CachedContactInfo;
 import com.android.dialer2.phonenumbercache.ContactInfoHelper;
 import com.android.dialer2.phonenumbercache.PhoneNumberCache;
 import com.android.dialer2.strictmode.StrictModeUtils;
+import com.android.incallui.latencyreport.LatencyHistograms;
+import com.android.incallui.latencyreport.LatencyHistograms.Stage;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Helper class to make it easier to run asynchronous caller-id lookup queries.
@@ -82,6 +93,25 @@ public class CallerInfoAsyncQuery {
   private static final boolean ENABLE_UNKNOWN_NUMBER_GEO_DESCRIPTION = true;
   /* Directory lookup related code - START */
   private static final String[] DIRECTORY_PROJECTION = new String[] {Directory._ID};
+  /** How long each remote directory has to answer when they are queried in parallel. */
+  private static final long DEFAULT_DIRECTORY_QUERY_TIMEOUT_MILLIS = 2000;
+
+  /**
+   * Runs the directory queries while the phone is ringing. The shared thread pools run at
+   * background priority and may be busy with other work, so these queries get their own threads.
+   */
+  private static final ExecutorService DIRECTORY_QUERY_EXECUTOR =
+      Executors.newCachedThreadPool(
+          new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+              LogUtil.i("CallerInfoAsyncQuery.newThread", "creating directory query thread");
+              Thread thread = new Thread(runnable, "CallerInfoAsyncQuery-Directory");
+              // Java thread priority 5 corresponds to Process.THREAD_PRIORITY_DEFAULT (0)
+              thread.setPriority(5);
+              return thread;
+            }
+          });
 
   /** Private constructor for factory methods. */
   private CallerInfoAsyncQuery() {}
@@ -105,7 +135,7 @@ public class CallerInfoAsyncQuery {
             // If there are no other directory queries, make sure that the listener is
             // notified of this result.  see a bug
             if ((ci != null && ci.contactExists)
-                || !startOtherDirectoriesQuery(token, context, info, listener, cookie)) {
+                || !startOtherDirectoriesQuery(token, context, info, ci, listener, cookie)) {
               if (listener != null && ci != null) {
                 listener.onQueryComplete(token, cookie, ci);
               }
@@ -190,6 +220,7 @@ public class CallerInfoAsyncQuery {
       int token,
       Context context,
       CallerInfo info,
+      @Nullable CallerInfo defaultDirectoryCallerInfo,
       OnQueryCompleteListener listener,
       Object cookie) {
     Trace.beginSection("CallerInfoAsyncQuery.startOtherDirectoriesQuery");
@@ -200,6 +231,23 @@ public class CallerInfoAsyncQuery {
       return false;
     }
 
+    if (ConfigProviderBindings.get(context).getBoolean("enable_hedged_directory_lookup", true)) {
+      new HedgedDirectoryQuery(
+              token,
+              context,
+              info,
+              directoryIds,
+              defaultDirectoryCallerInfo != null ? defaultDirectoryCallerInfo : info,
+              listener,
+              cookie)
+          .start(
+              ConfigProviderBindings.get(context)
+                  .getLong(
+                      "directory_query_timeout_millis", DEFAULT_DIRECTORY_QUERY_TIMEOUT_MILLIS));
+      Trace.endSection();
+      return true;
+    }
+
     DirectoryQueryCompleteListenerFactory listenerFactory =
         new DirectoryQueryCompleteListenerFactory(context, size, listener);
 
@@ -252,6 +300,77 @@ public class CallerInfoAsyncQuery {
     }
   }
 
+  /**
+   * Builds the {@link CallerInfo} of a new query from its {@code cursor}, adding the information
+   * which is not in the contacts provider.
+   */
+  @WorkerThread
+  private static CallerInfo buildCallerInfoFromCursor(
+      Context context, Uri contactRef, Cursor cursor, String number, String countryIso) {
+    CallerInfo callerInfo = CallerInfo.getCallerInfo(context, contactRef, cursor);
+    Log.d(LOG_TAG, "==> Got mCallerInfo: " + callerInfo);
+
+    CallerInfo newCallerInfo = CallerInfo.doSecondaryLookupIfNecessary(context, number, callerInfo);
+    if (newCallerInfo != callerInfo) {
+      callerInfo = newCallerInfo;
+      Log.d(LOG_TAG, "#####async contact look up with numeric username" + callerInfo);
+    }
+    callerInfo.countryIso = countryIso;
+
+    // Final step: look up the geocoded description.
+    if (ENABLE_UNKNOWN_NUMBER_GEO_DESCRIPTION) {
+      // Note we do this only if we *don't* have a valid name (i.e. if
+      // no contacts matched the phone number of the incoming call),
+      // since that's the only case where the incoming-call UI cares
+      // about this field.
+      //
+      // (TODO: But if we ever want the UI to show the geoDescription
+      // even when we *do* match a contact, we'll need to either call
+      // updateGeoDescription() unconditionally here, or possibly add a
+      // new parameter to CallerInfoAsyncQuery.startQuery() to force
+      // the geoDescription field to be populated.)
+
+      if (TextUtils.isEmpty(callerInfo.name)) {
+        // Actually when no contacts match the incoming phone number,
+        // the CallerInfo object is totally blank here (i.e. no name
+        // *or* phoneNumber).  So we need to pass in number as
+        // a fallback number.
+        callerInfo.updateGeoDescription(context, number);
+      }
+    }
+
+    // Use the number entered by the user for display.
+    if (!TextUtils.isEmpty(number)) {
+      callerInfo.phoneNumber = number;
+    }
+    return callerInfo;
+  }
+
+  private static void addCallerInfoIntoCache(Context context, CallerInfo ci, long directoryId) {
+    CachedNumberLookupService cachedNumberLookupService =
+        PhoneNumberCache.get(context).getCachedNumberLookupService();
+    if (ci.contactExists && cachedNumberLookupService != null) {
+      // 1. Cache caller info
+      CachedContactInfo cachedContactInfo =
+          CallerInfoUtils.buildCachedContactInfo(cachedNumberLookupService, ci);
+      String directoryLabel = context.getString(R.string.directory_search_label);
+      cachedContactInfo.setDirectorySource(directoryLabel, directoryId);
+      cachedNumberLookupService.addContact(context, cachedContactInfo);
+
+      // 2. Cache photo
+      if (ci.contactDisplayPhotoUri != null && ci.normalizedNumber != null) {
+        try (InputStream in =
+            context.getContentResolver().openInputStream(ci.contactDisplayPhotoUri)) {
+          if (in != null) {
+            cachedNumberLookupService.addPhoto(context, ci.normalizedNumber, in);
+          }
+        } catch (IOException e) {
+          Log.e(LOG_TAG, "failed to fetch directory contact photo", e);
+        }
+      }
+    }
+  }
+
   private static String sanitizeUriToString(Uri uri) {
     if (uri != null) {
       String uriString = uri.toString();
@@ -315,36 +434,11 @@ public class CallerInfoAsyncQuery {
       // Don't call callback in synchronized block because mListener.onQueryComplete may
       // take long time to complete
       if (shouldCallListener && listener != null) {
-        addCallerInfoIntoCache(ci, directoryId);
+        addCallerInfoIntoCache(context, ci, directoryId);
         listener.onQueryComplete(token, cookie, ci);
       }
     }
 
-    private void addCallerInfoIntoCache(CallerInfo ci, long directoryId) {
-      CachedNumberLookupService cachedNumberLookupService =
-          PhoneNumberCache.get(context).getCachedNumberLookupService();
-      if (ci.contactExists && cachedNumberLookupService != null) {
-        // 1. Cache caller info
-        CachedContactInfo cachedContactInfo =
-            CallerInfoUtils.buildCachedContactInfo(cachedNumberLookupService, ci);
-        String directoryLabel = context.getString(R.string.directory_search_label);
-        cachedContactInfo.setDirectorySource(directoryLabel, directoryId);
-        cachedNumberLookupService.addContact(context, cachedContactInfo);
-
-        // 2. Cache photo
-        if (ci.contactDisplayPhotoUri != null && ci.normalizedNumber != null) {
-          try (InputStream in =
-              context.getContentResolver().openInputStream(ci.contactDisplayPhotoUri)) {
-            if (in != null) {
-              cachedNumberLookupService.addPhoto(context, ci.normalizedNumber, in);
-            }
-          } catch (IOException e) {
-            Log.e(LOG_TAG, "failed to fetch directory contact photo", e);
-          }
-        }
-      }
-    }
-
     OnQueryCompleteListener newListener(long directoryId) {
       return new DirectoryQueryCompleteListener(directoryId);
     }
@@ -371,6 +465,192 @@ public class CallerInfoAsyncQuery {
     }
   }
 
+  /**
+   * Queries all remote directories in parallel rather than on the single thread of {@link
+   * AsyncQueryHandler}, so that a slow directory doesn't delay the others.
+   *
+   * <p>Directories have priority in the order of {@link #getDirectoryIds(Context)}. The first
+   * directory which found a contact wins once all directories before it missed or timed out, and
+   * the queries still running are then cancelled. Directories which don't answer before the timeout
+   * count as misses.
+   */
+  @MainThread
+  private static final class HedgedDirectoryQuery {
+
+    private static final int STATE_PENDING = 0;
+    private static final int STATE_MISS = 1;
+    private static final int STATE_HIT = 2;
+    private static final int STATE_TIMED_OUT = 3;
+
+    private final int token;
+    private final Context context;
+    private final CallerInfo info;
+    private final long[] directoryIds;
+    private final CallerInfo fallbackCallerInfo;
+    @Nullable private final OnQueryCompleteListener listener;
+    private final Object cookie;
+
+    private final int[] states;
+    private final CallerInfo[] callerInfos;
+    private final CancellationSignal[] cancellationSignals;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Runnable timeoutRunnable = this::onTimeout;
+
+    private long startTimeMillis;
+    private long timeoutMillis;
+    private boolean isListenerCalled;
+
+    /**
+     * @param fallbackCallerInfo passed to the listener if none of the directories found a contact
+     */
+    HedgedDirectoryQuery(
+        int token,
+        Context context,
+        CallerInfo info,
+        long[] directoryIds,
+        CallerInfo fallbackCallerInfo,
+        @Nullable OnQueryCompleteListener listener,
+        Object cookie) {
+      this.token = token;
+      this.context = context;
+      this.info = info;
+      this.directoryIds = directoryIds;
+      this.fallbackCallerInfo = fallbackCallerInfo;
+      this.listener = listener;
+      this.cookie = cookie;
+      states = new int[directoryIds.length];
+      callerInfos = new CallerInfo[directoryIds.length];
+      cancellationSignals = new CancellationSignal[directoryIds.length];
+    }
+
+    void start(long timeoutMillis) {
+      startTimeMillis = SystemClock.elapsedRealtime();
+      this.timeoutMillis = timeoutMillis;
+      for (int i = 0; i < directoryIds.length; i++) {
+        final int index = i;
+        Uri uri = ContactInfoHelper.getContactInfoLookupUri(info.phoneNumber, directoryIds[i]);
+        if (DBG) {
+          Log.d(LOG_TAG, "directoryId: " + directoryIds[i] + " uri: " + uri);
+        }
+        CancellationSignal cancellationSignal = new CancellationSignal();
+        cancellationSignals[i] = cancellationSignal;
+        DIRECTORY_QUERY_EXECUTOR.execute(
+            () -> {
+              CallerInfo callerInfo = queryDirectory(uri, cancellationSignal);
+              mainHandler.post(() -> onDirectoryQueryComplete(index, callerInfo));
+            });
+      }
+      mainHandler.postDelayed(timeoutRunnable, timeoutMillis);
+    }
+
+    /** Returns the result of the query, or null if it failed or was cancelled. */
+    @WorkerThread
+    @Nullable
+    private CallerInfo queryDirectory(Uri uri, CancellationSignal cancellationSignal) {
+      Cursor cursor = null;
+      try {
+        cursor =
+            context
+                .getContentResolver()
+                .query(
+                    uri,
+                    CallerInfo.getDefaultPhoneLookupProjection(uri),
+                    null,
+                    null,
+                    null,
+                    cancellationSignal);
+        return buildCallerInfoFromCursor(context, uri, cursor, info.phoneNumber, info.countryIso);
+      } catch (OperationCanceledException e) {
+        return null;
+      } catch (RuntimeException e) {
+        // Directories are provided by other apps, which may fail.
+        Log.e(LOG_TAG, "directory query failed", e);
+        return null;
+      } finally {
+        // CallerInfo.getCallerInfo() doesn't close the cursor if there is no row or it throws.
+        if (cursor != null && !cursor.isClosed()) {
+          cursor.close();
+        }
+      }
+    }
+
+    private void onDirectoryQueryComplete(int index, @Nullable CallerInfo callerInfo) {
+      if (states[index] != STATE_PENDING) {
+        // Timed out, or cancelled after the result of another directory won.
+        return;
+      }
+      long latencyMillis = SystemClock.elapsedRealtime() - startTimeMillis;
+      boolean isHit = callerInfo != null && callerInfo.contactExists;
+      LogUtil.i(
+          "HedgedDirectoryQuery.onDirectoryQueryComplete",
+          "directory %d %s in %dms",
+          directoryIds[index],
+          isHit ? "found a contact" : "missed",
+          latencyMillis);
+      LatencyHistograms.getInstance().record(Stage.DIRECTORY_LOOKUP, latencyMillis);
+      states[index] = isHit ? STATE_HIT : STATE_MISS;
+      callerInfos[index] = callerInfo;
+      maybeCallListener();
+    }
+
+    private void onTimeout() {
+      for (int i = 0; i < directoryIds.length; i++) {
+        if (states[i] == STATE_PENDING) {
+          LogUtil.i("HedgedDirectoryQuery.onTimeout", "directory %d timed out", directoryIds[i]);
+          // Recorded at the deadline, so that slow directories aren't left out of the histogram.
+          LatencyHistograms.getInstance().record(Stage.DIRECTORY_LOOKUP, timeoutMillis);
+          states[i] = STATE_TIMED_OUT;
+          cancellationSignals[i].cancel();
+        }
+      }
+      maybeCallListener();
+    }
+
+    private void maybeCallListener() {
+      if (isListenerCalled) {
+        return;
+      }
+      for (int i = 0; i < directoryIds.length; i++) {
+        if (states[i] == STATE_PENDING) {
+          // A directory with a higher priority may still find a contact.
+          return;
+        }
+        if (states[i] == STATE_HIT) {
+          onWinnerFound(i);
+          return;
+        }
+      }
+      isListenerCalled = true;
+      mainHandler.removeCallbacks(timeoutRunnable);
+      if (listener != null) {
+        listener.onQueryComplete(token, cookie, fallbackCallerInfo);
+      }
+    }
+
+    private void onWinnerFound(int index) {
+      isListenerCalled = true;
+      mainHandler.removeCallbacks(timeoutRunnable);
+      for (int i = index + 1; i < directoryIds.length; i++) {
+        if (states[i] == STATE_PENDING) {
+          states[i] = STATE_TIMED_OUT;
+          cancellationSignals[i].cancel();
+        }
+      }
+
+      CallerInfo callerInfo = callerInfos[index];
+      long directoryId = directoryIds[index];
+      DIRECTORY_QUERY_EXECUTOR.execute(
+          () -> {
+            if (listener != null) {
+              listener.onDataLoaded(token, cookie, callerInfo);
+              mainHandler.post(() -> listener.onQueryComplete(token, cookie, callerInfo));
+            }
+            // Caching may download the photo, so it mustn't delay the call screen.
+            addCallerInfoIntoCache(context, callerInfo, directoryId);
+          });
+    }
+  }
+
   /** Our own implementation of the AsyncQueryHandler. */
   private static class CallerInfoAsyncQueryHandler extends AsyncQueryHandler {
 
@@ -490,43 +770,8 @@ public class CallerInfoAsyncQuery {
           } else if (cw.event == EVENT_VOICEMAIL_NUMBER) {
             callerInfo = new CallerInfo().markAsVoiceMail(queryContext);
           } else {
-            callerInfo = CallerInfo.getCallerInfo(queryContext, queryUri, cursor);
-            Log.d(this, "==> Got mCallerInfo: " + callerInfo);
-
-            CallerInfo newCallerInfo =
-                CallerInfo.doSecondaryLookupIfNecessary(queryContext, cw.number, callerInfo);
-            if (newCallerInfo != callerInfo) {
-              callerInfo = newCallerInfo;
-              Log.d(this, "#####async contact look up with numeric username" + callerInfo);
-            }
-            callerInfo.countryIso = cw.countryIso;
-
-            // Final step: look up the geocoded description.
-            if (ENABLE_UNKNOWN_NUMBER_GEO_DESCRIPTION) {
-              // Note we do this only if we *don't* have a valid name (i.e. if
-              // no contacts matched the phone number of the incoming call),
-              // since that's the only case where the incoming-call UI cares
-              // about this field.
-              //
-              // (TODO: But if we ever want the UI to show the geoDescription
-              // even when we *do* match a contact, we'll need to either call
-              // updateGeoDescription() unconditionally here, or possibly add a
-              // new parameter to CallerInfoAsyncQuery.startQuery() to force
-              // the geoDescription field to be populated.)
-
-              if (TextUtils.isEmpty(callerInfo.name)) {
-                // Actually when no contacts match the incoming phone number,
-                // the CallerInfo object is totally blank here (i.e. no name
-                // *or* phoneNumber).  So we need to pass in cw.number as
-                // a fallback number.
-                callerInfo.updateGeoDescription(queryContext, cw.number);
-              }
-            }
-
-            // Use the number entered by the user for display.
-            if (!TextUtils.isEmpty(cw.number)) {
-              callerInfo.phoneNumber = cw.number;
-            }
+            callerInfo =
+                buildCallerInfoFromCursor(queryContext, queryUri, cursor, cw.number, cw.countryIso);
           }
 
           Log.d(this, "constructing CallerInfo object for token: " + token);
@@ -17,6 +17,8 @@
 package com.android.incallui;
 
 import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
@@ -24,8 +26,12 @@ import android.media.RingtoneManager;
 import android.net.Uri;
 import android.os.Build.VERSION;
 import android.os.Build.VERSION_CODES;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.SystemClock;
 import android.os.Trace;
+import android.provider.CallLog.Calls;
+import android.provider.ContactsContract;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.DisplayNameSources;
@@ -41,6 +47,7 @@ import android.telephony.PhoneNumberUtils;
 import android.text.TextUtils;
 import android.util.ArrayMap;
 import android.util.ArraySet;
+import android.util.LruCache;
 import com.android.contacts.common.ContactsUtils;
 import com.android.dialer2.common.Assert;
 import com.android.dialer2.common.concurrent.DialerExecutor;
@@ -53,14 +60,23 @@ import com.android.dialer2.oem.CequintCallerIdManager.CequintCallerIdContact;
 import com.android.dialer2.phonenumbercache.CachedNumberLookupService;
 import com.android.dialer2.phonenumbercache.CachedNumberLookupService.CachedContactInfo;
 import com.android.dialer2.phonenumbercache.ContactInfo;
+import com.android.dialer2.phonenumbercache.ContactInfoHelper;
 import com.android.dialer2.phonenumbercache.PhoneNumberCache;
 import com.android.dialer2.phonenumberutil.PhoneNumberHelper;
+import com.android.dialer2.util.PermissionsUtil;
 import com.android.dialer2.util.MoreStrings;
 import com.android.incallui.CallerInfoAsyncQuery.OnQueryCompleteListener;
 import com.android.incallui.ContactsAsyncHelper.OnImageLoadCompleteListener;
 import com.android.incallui.bindings.PhoneNumberService;
+import com.android.incallui.call.CallList;
 import com.android.incallui.call.DialerCall;
 import com.android.incallui.incall.protocol.ContactPhotoType;
+import com.android.incallui.latencyreport.LatencyReport;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
@@ -73,11 +89,26 @@ import org.json.JSONObject;
  * asynchronous requests to the Contact Provider for information as well as respond synchronously
  * for any data that it currently has cached from previous queries. This class always gets called
  * from the UI thread so it does not need thread protection.
+ *
+ * <p>Besides the entries of the current calls, which are keyed by call id, the local contact
+ * entries of recent calls are kept by number so that the name and photo of a repeat caller are
+ * available as soon as the call is added. These are pre-warmed with the frequent numbers of the
+ * call log once the in-call UI has been shown and is idle, expire after {@link
+ * #NUMBER_CACHE_TTL_MILLIS} and are dropped when contacts change.
  */
 public class ContactInfoCache implements OnImageLoadCompleteListener {
 
   private static final String TAG = ContactInfoCache.class.getSimpleName();
   private static final int TOKEN_UPDATE_PHOTO_FOR_CALL_STATE = 0;
+  /** Bytes of photo bitmaps kept by {@link #numberCache}. */
+  private static final int NUMBER_CACHE_MAX_BYTES = 8 * 1024 * 1024;
+  /** Size counted for entries with a small or no photo, which caps the cache at 64 entries. */
+  private static final int NUMBER_CACHE_MIN_ENTRY_BYTES = NUMBER_CACHE_MAX_BYTES / 64;
+  private static final long NUMBER_CACHE_TTL_MILLIS = 60 * 60 * 1000;
+  /** How many of the most recent call log entries are considered for pre-warming. */
+  private static final int PREWARM_CALL_LOG_LIMIT = 100;
+  /** How many of the most frequent numbers in these entries are pre-warmed. */
+  private static final int PREWARM_NUMBER_COUNT = 16;
   private static ContactInfoCache cache = null;
   private final Context context;
   private final PhoneNumberService phoneNumberService;
@@ -85,8 +116,26 @@ public class ContactInfoCache implements OnImageLoadCompleteListener {
   // worker thread.
   private final ConcurrentHashMap<String, ContactCacheEntry> infoMap = new ConcurrentHashMap<>();
   private final Map<String, Set<ContactInfoCacheCallback>> callBacks = new ArrayMap<>();
+  // Entries of local contacts keyed by normalized number, kept across calls. Sized by the bytes of
+  // their photos, which can be full resolution display photos.
+  private final LruCache<String, NumberCacheEntry> numberCache =
+      new LruCache<String, NumberCacheEntry>(NUMBER_CACHE_MAX_BYTES) {
+        @Override
+        protected int sizeOf(String key, NumberCacheEntry value) {
+          int photoBytes = 0;
+          if (value.entry.photo instanceof BitmapDrawable) {
+            Bitmap bitmap = ((BitmapDrawable) value.entry.photo).getBitmap();
+            if (bitmap != null) {
+              photoBytes = bitmap.getAllocationByteCount();
+            }
+          }
+          return Math.max(photoBytes, NUMBER_CACHE_MIN_ENTRY_BYTES);
+        }
+      };
   private int queryId;
   private final DialerExecutor<CnapInformationWrapper> cachedNumberLookupExecutor;
+  private final DialerExecutor<Context> prewarmExecutor;
+  private boolean prewarmScheduled;
 
   private static class CachedNumberLookupWorker implements Worker<CnapInformationWrapper, Void> {
     @Nullable
@@ -121,6 +170,99 @@ public class ContactInfoCache implements OnImageLoadCompleteListener {
     }
   }
 
+  /** Looks up the local contacts of the most frequent numbers in the recent call log. */
+  private static class PrewarmWorker implements Worker<Context, Map<String, ContactCacheEntry>> {
+    @Nullable
+    @Override
+    public Map<String, ContactCacheEntry> doInBackground(@Nullable Context context) {
+      if (context == null
+          || !PermissionsUtil.hasCallLogReadPermissions(context)
+          || !PermissionsUtil.hasContactsReadPermissions(context)) {
+        return Collections.emptyMap();
+      }
+
+      // Ordered by most recent call, which breaks ties between numbers called as often.
+      Map<String, Integer> callCountByNumber = new LinkedHashMap<>();
+      Map<String, String> numberByKey = new ArrayMap<>();
+      try (Cursor cursor =
+          context
+              .getContentResolver()
+              .query(
+                  Calls.CONTENT_URI
+                      .buildUpon()
+                      .appendQueryParameter(
+                          Calls.LIMIT_PARAM_KEY, Integer.toString(PREWARM_CALL_LOG_LIMIT))
+                      .build(),
+                  new String[] {Calls.NUMBER},
+                  Calls.CACHED_LOOKUP_URI + " IS NOT NULL",
+                  null,
+                  Calls.DATE + " DESC")) {
+        if (cursor == null) {
+          return Collections.emptyMap();
+        }
+        while (cursor.moveToNext()) {
+          String number = cursor.getString(0 /* columnIndex */);
+          String key = getNumberCacheKey(number);
+          if (key == null) {
+            continue;
+          }
+          Integer callCount = callCountByNumber.get(key);
+          callCountByNumber.put(key, callCount == null ? 1 : callCount + 1);
+          if (!numberByKey.containsKey(key)) {
+            numberByKey.put(key, number);
+          }
+        }
+      }
+
+      List<String> keys = new ArrayList<>(callCountByNumber.keySet());
+      Collections.sort(keys, (a, b) -> callCountByNumber.get(b) - callCountByNumber.get(a));
+      Map<String, ContactCacheEntry> entries = new ArrayMap<>();
+      for (String key : keys.subList(0, Math.min(keys.size(), PREWARM_NUMBER_COUNT))) {
+        ContactCacheEntry entry = lookUpLocalContact(context, numberByKey.get(key));
+        if (entry != null) {
+          entries.put(key, entry);
+        }
+      }
+      return entries;
+    }
+
+    @Nullable
+    private static ContactCacheEntry lookUpLocalContact(Context context, String number) {
+      Uri uri = ContactInfoHelper.getContactInfoLookupUri(number);
+      Cursor cursor =
+          context
+              .getContentResolver()
+              .query(uri, CallerInfo.getDefaultPhoneLookupProjection(uri), null, null, null);
+      CallerInfo callerInfo;
+      try {
+        callerInfo = CallerInfo.getCallerInfo(context, uri, cursor);
+      } finally {
+        // getCallerInfo() only closes the cursor when it finds a contact.
+        if (cursor != null && !cursor.isClosed()) {
+          cursor.close();
+        }
+      }
+      if (!callerInfo.contactExists) {
+        return null;
+      }
+      callerInfo.countryIso = PhoneNumberHelper.getCurrentCountryIso(context, null);
+      ContactCacheEntry entry =
+          buildEntry(context, callerInfo, TelecomManager.PRESENTATION_ALLOWED);
+      if (entry.displayPhotoUri != null) {
+        try (InputStream inputStream =
+            context.getContentResolver().openInputStream(entry.displayPhotoUri)) {
+          if (inputStream != null) {
+            entry.photo = Drawable.createFromStream(inputStream, entry.displayPhotoUri.toString());
+            entry.photoType = ContactPhotoType.CONTACT;
+          }
+        } catch (Exception e) {
+          Log.e(TAG, "Failed to load photo for pre-warmed entry", e);
+        }
+      }
+      return entry;
+    }
+  }
+
   private ContactInfoCache(Context context) {
     Trace.beginSection("ContactInfoCache constructor");
     this.context = context;
@@ -130,6 +272,24 @@ public class ContactInfoCache implements OnImageLoadCompleteListener {
             .dialerExecutorFactory()
             .createNonUiTaskBuilder(new CachedNumberLookupWorker())
             .build();
+    prewarmExecutor =
+        DialerExecutorComponent.get(this.context)
+            .dialerExecutorFactory()
+            .createNonUiTaskBuilder(new PrewarmWorker())
+            .onSuccess(this::onPrewarmComplete)
+            .build();
+    context
+        .getContentResolver()
+        .registerContentObserver(
+            ContactsContract.AUTHORITY_URI,
+            true /* notifyForDescendants */,
+            new ContentObserver(new Handler(Looper.getMainLooper())) {
+              @Override
+              public void onChange(boolean selfChange) {
+                Log.d(TAG, "Contacts changed, clearing number cache");
+                numberCache.evictAll();
+              }
+            });
     Trace.endSection();
   }
 
@@ -303,6 +463,105 @@ public class ContactInfoCache implements OnImageLoadCompleteListener {
     return infoMap.get(callId);
   }
 
+  /**
+   * Pre-warms the number cache once the main thread is idle, the first time this is called.
+   *
+   * <p>Called once the in-call UI is shown rather than when the cache is created, which happens
+   * while the first call is ringing, so that the call log and contacts queries don't compete with
+   * the lookup of that call.
+   */
+  @MainThread
+  public void prewarmNumberCacheWhenIdle() {
+    Assert.isMainThread();
+    if (prewarmScheduled) {
+      return;
+    }
+    prewarmScheduled = true;
+    Looper.myQueue()
+        .addIdleHandler(
+            () -> {
+              prewarmExecutor.executeParallel(context);
+              return false;
+            });
+  }
+
+  @MainThread
+  private void onPrewarmComplete(Map<String, ContactCacheEntry> entries) {
+    long nowMillis = SystemClock.elapsedRealtime();
+    for (Map.Entry<String, ContactCacheEntry> entry : entries.entrySet()) {
+      // Entries of calls made since the pre-warming started are more recent.
+      if (numberCache.get(entry.getKey()) == null) {
+        numberCache.put(entry.getKey(), new NumberCacheEntry(entry.getValue(), nowMillis));
+      }
+    }
+    Log.d(TAG, "Pre-warmed number cache with " + entries.size() + " entries");
+  }
+
+  /** Returns the key of {@code number} in {@link #numberCache}, or null if it can't be cached. */
+  @Nullable
+  private static String getNumberCacheKey(@Nullable String number) {
+    if (TextUtils.isEmpty(number) || PhoneNumberHelper.isUriNumber(number)) {
+      return null;
+    }
+    String normalizedNumber = PhoneNumberUtils.normalizeNumber(number);
+    return TextUtils.isEmpty(normalizedNumber) ? null : normalizedNumber;
+  }
+
+  /** Returns a copy of the cached entry of a local contact with the number of {@code call}. */
+  @Nullable
+  private ContactCacheEntry getEntryFromNumberCache(DialerCall call) {
+    String key = getNumberCacheKey(call.getNumber());
+    if (key == null) {
+      return null;
+    }
+    NumberCacheEntry numberCacheEntry = numberCache.get(key);
+    if (numberCacheEntry == null) {
+      return null;
+    }
+    if (SystemClock.elapsedRealtime() - numberCacheEntry.timestampMillis
+        > NUMBER_CACHE_TTL_MILLIS) {
+      numberCache.remove(key);
+      return null;
+    }
+    return copyEntry(numberCacheEntry.entry);
+  }
+
+  /** Keeps the complete entry of {@code callId} for later calls with the same number. */
+  private void maybeAddToNumberCache(String callId, @Nullable ContactCacheEntry entry) {
+    if (entry == null || !entry.isLocalContact()) {
+      return;
+    }
+    DialerCall call = CallList.getInstance().getCallById(callId);
+    String key = call == null ? null : getNumberCacheKey(call.getNumber());
+    if (key != null) {
+      numberCache.put(key, new NumberCacheEntry(copyEntry(entry), SystemClock.elapsedRealtime()));
+    }
+  }
+
+  private static ContactCacheEntry copyEntry(ContactCacheEntry entry) {
+    ContactCacheEntry copy = new ContactCacheEntry();
+    copy.namePrimary = entry.namePrimary;
+    copy.nameAlternative = entry.nameAlternative;
+    copy.number = entry.number;
+    copy.location = entry.location;
+    copy.label = entry.label;
+    copy.photo = entry.photo;
+    copy.photoType = entry.photoType;
+    copy.isSipCall = entry.isSipCall;
+    copy.displayPhotoUri = entry.displayPhotoUri;
+    copy.lookupUri = entry.lookupUri;
+    copy.lookupKey = entry.lookupKey;
+    copy.contactLookupResult = entry.contactLookupResult;
+    copy.userType = entry.userType;
+    copy.contactRingtoneUri = entry.contactRingtoneUri;
+    copy.originalPhoneNumber = entry.originalPhoneNumber;
+    copy.shouldShowLocation = entry.shouldShowLocation;
+    copy.isBusiness = entry.isBusiness;
+    copy.isEmergencyNumber = entry.isEmergencyNumber;
+    copy.isVoicemailNumber = entry.isVoicemailNumber;
+    return copy;
+  }
+
   private static final class CnapInformationWrapper {
     final String number;
     final String cnapName;
@@ -409,7 +668,7 @@ public class ContactInfoCache implements OnImageLoadCompleteListener {
             context,
             call,
             new DialerCallCookieWrapper(callId, call.getNumberPresentation(), call.getCnapName()),
-            new FindInfoCallback(isIncoming, queryToken));
+            new FindInfoCallback(isIncoming, queryToken, call.getLatencyReport()));
     Trace.endSection();
 
     if (cacheEntry != null) {
@@ -420,10 +679,20 @@ public class ContactInfoCache implements OnImageLoadCompleteListener {
       cacheEntry.queryId = queryToken.queryId;
       Log.d(TAG, "There is an existing cache. Do not override until new query is back");
     } else {
-      ContactCacheEntry initialCacheEntry =
-          updateCallerInfoInCacheOnAnyThread(
-              callId, call.getNumberPresentation(), callerInfo, false, queryToken);
-      sendInfoNotifications(callId, initialCacheEntry);
+      ContactCacheEntry numberCacheEntry = getEntryFromNumberCache(call);
+      if (numberCacheEntry != null) {
+        // Shown until the query is back, which then reuses the photo if it's the same.
+        Log.d(TAG, "Contact lookup. Number cache hit");
+        numberCacheEntry.queryId = queryToken.queryId;
+        infoMap.put(callId, numberCacheEntry);
+        sendInfoNotifications(callId, numberCacheEntry);
+        sendImageNotifications(callId, numberCacheEntry);
+      } else {
+        ContactCacheEntry initialCacheEntry =
+            updateCallerInfoInCacheOnAnyThread(
+                callId, call.getNumberPresentation(), callerInfo, false, queryToken);
+        sendInfoNotifications(callId, initialCacheEntry);
+      }
     }
     Trace.endSection();
   }
@@ -609,19 +878,21 @@ public class ContactInfoCache implements OnImageLoadCompleteListener {
     if (!isWaitingForThisQuery(callId, queryId)) {
       return;
     }
-    sendImageNotifications(callId, infoMap.get(callId));
+    ContactCacheEntry entry = infoMap.get(callId);
+    sendImageNotifications(callId, entry);
+    maybeAddToNumberCache(callId, entry);
 
     clearCallbacks(callId);
   }
 
-  /** Blows away the stored cache values. */
+  /** Blows away the stored cache values of the current calls. */
   public void clearCache() {
     infoMap.clear();
     callBacks.clear();
     queryId = 0;
   }
 
-  private ContactCacheEntry buildEntry(Context context, CallerInfo info, int presentation) {
+  private static ContactCacheEntry buildEntry(Context context, CallerInfo info, int presentation) {
     final ContactCacheEntry cce = new ContactCacheEntry();
     populateCacheEntry(context, info, cce, presentation);
 
@@ -779,6 +1050,16 @@ public class ContactInfoCache implements OnImageLoadCompleteListener {
     }
   }
 
+  private static final class NumberCacheEntry {
+    final ContactCacheEntry entry;
+    final long timestampMillis;
+
+    NumberCacheEntry(ContactCacheEntry entry, long timestampMillis) {
+      this.entry = entry;
+      this.timestampMillis = timestampMillis;
+    }
+  }
+
   private static final class DialerCallCookieWrapper {
     final String callId;
     final int numberPresentation;
@@ -795,10 +1076,15 @@ public class ContactInfoCache implements OnImageLoadCompleteListener {
 
     private final boolean isIncoming;
     private final CallerInfoQueryToken queryToken;
+    @Nullable private final LatencyReport latencyReport;
 
-    FindInfoCallback(boolean isIncoming, CallerInfoQueryToken queryToken) {
+    FindInfoCallback(
+        boolean isIncoming,
+        CallerInfoQueryToken queryToken,
+        @Nullable LatencyReport latencyReport) {
       this.isIncoming = isIncoming;
       this.queryToken = queryToken;
+      this.latencyReport = latencyReport;
     }
 
     @Override
@@ -825,6 +1111,9 @@ public class ContactInfoCache implements OnImageLoadCompleteListener {
         Trace.endSection();
         return;
       }
+      if (latencyReport != null) {
+        latencyReport.onContactInfoLoaded();
+      }
       ContactCacheEntry cacheEntry = infoMap.get(callId);
       // This may happen only when InCallPresenter attempt to cleanup.
       if (cacheEntry == null) {
@@ -847,6 +1136,7 @@ public class ContactInfoCache implements OnImageLoadCompleteListener {
       if (!cacheEntry.hasPendingQuery) {
         if (callerInfo.contactExists) {
           Log.d(TAG, "Contact lookup done. Local contact found, no image.");
+          maybeAddToNumberCache(callId, cacheEntry);
         } else {
           Log.d(
               TAG,
@@ -37,6 +37,7 @@ import android.telecom.VideoProfile;
 import android.telephony.PhoneStateListener;
 import android.telephony.TelephonyManager;
 import android.util.ArraySet;
+import android.util.Pair;
 import android.view.Window;
 import android.view.WindowManager;
 import com.android.contacts.common.compat.CallCompat;
@@ -172,9 +173,16 @@ public class InCallPresenter implements CallList.Listener, AudioModeProvider.Aud
             return;
           }
 
-          for (InCallDetailsListener listener : detailsListeners) {
-            listener.onDetailsChanged(call, details);
-          }
+          // Only the latest details of each call are dispatched per frame.
+          callList
+              .getUpdateCoalescer()
+              .post(
+                  Pair.create(InCallDetailsListener.class, call),
+                  () -> {
+                    for (InCallDetailsListener listener : detailsListeners) {
+                      listener.onDetailsChanged(call, details);
+                    }
+                  });
         }
 
         @Override
@@ -694,6 +702,10 @@ public class InCallPresenter implements CallList.Listener, AudioModeProvider.Aud
   }
 
   public void onCanAddCallChanged(boolean canAddCall) {
+    if (callList != null) {
+      // Keeps the order with the call updates pending for the next frame.
+      callList.getUpdateCoalescer().flush();
+    }
     for (CanAddCallListener listener : canAddCallListeners) {
       listener.onCanAddCallChanged(canAddCall);
     }
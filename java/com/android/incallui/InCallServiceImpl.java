@@ -30,8 +30,11 @@ import com.android.incallui.call.CallList;
 import com.android.incallui.call.CallRecorder;
 import com.android.incallui.call.ExternalCallList;
 import com.android.incallui.call.TelecomAdapter;
+import com.android.incallui.latencyreport.LatencyHistograms;
 import com.android.incallui.speakeasy.SpeakEasyCallManager;
 import com.android.incallui.speakeasy.SpeakEasyComponent;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 
 /**
  * Used to receive updates about calls from the Telecom component. This service is bound to Telecom
@@ -137,6 +140,12 @@ public class InCallServiceImpl extends InCallService {
     return false;
   }
 
+  @Override
+  protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+    LatencyHistograms.getInstance().dump(writer);
+    CallList.getInstance().getUpdateCoalescer().dump(writer);
+  }
+
   private void tearDown() {
     Trace.beginSection("InCallServiceImpl.tearDown");
     Log.v(this, "tearDown");
@@ -16,11 +16,24 @@
 
 package com.android.incallui.async;
 
-import java.util.concurrent.Executors;
+import com.android.dialer2.common.LogUtil;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
-/** {@link PausableExecutor} intended for use in production environments. */
+/**
+ * {@link PausableExecutor} intended for use in production environments.
+ *
+ * <p>Commands are run one at a time, in order, on a single worker thread shared by all instances,
+ * rather than on a new thread for each command. At most {@link #MAX_QUEUED_COMMANDS} commands wait
+ * for the worker, beyond which the oldest waiting command is dropped.
+ */
 public class PausableExecutorImpl implements PausableExecutor {
 
+  private static final int MAX_QUEUED_COMMANDS = 16;
+
+  private static final ThreadPoolExecutor serialExecutor = createSerialExecutor();
+
   @Override
   public void milestone() {}
 
@@ -35,6 +48,26 @@ public class PausableExecutorImpl implements PausableExecutor {
 
   @Override
   public void execute(Runnable command) {
-    Executors.newSingleThreadExecutor().execute(command);
+    serialExecutor.execute(command);
+  }
+
+  private static ThreadPoolExecutor createSerialExecutor() {
+    return new ThreadPoolExecutor(
+        1 /* corePoolSize */,
+        1 /* maximumPoolSize */,
+        0L /* keepAliveTime */,
+        TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(MAX_QUEUED_COMMANDS),
+        runnable -> {
+          LogUtil.i("PausableExecutorImpl.newThread", "creating serial thread");
+          return new Thread(runnable, "PausableExecutorImpl-Serial");
+        },
+        new ThreadPoolExecutor.DiscardOldestPolicy() {
+          @Override
+          public void rejectedExecution(Runnable command, ThreadPoolExecutor executor) {
+            LogUtil.w("PausableExecutorImpl.rejectedExecution", "queue full, dropping oldest");
+            super.rejectedExecution(command, executor);
+          }
+        });
   }
 }
@@ -82,6 +82,9 @@ public class CallList implements DialerCallDelegate {
   private final Set<DialerCall> pendingDisconnectCalls =
       Collections.newSetFromMap(new ConcurrentHashMap<DialerCall, Boolean>(8, 0.9f, 1));
 
+  /** Coalesces the notifications of generic listeners triggered by {@link DialerCall} updates. */
+  private final CallUpdateCoalescer updateCoalescer = new CallUpdateCoalescer();
+
   private UiListener uiListeners;
   /** Handles the timeout for destroying disconnected calls. */
   private final Handler handler =
@@ -155,6 +158,7 @@ public class CallList implements DialerCallDelegate {
               new Spam.Listener() {
                 @Override
                 public void onComplete(boolean isSpam) {
+                  call.getLatencyReport().onSpamCheckDone();
                   boolean isIncomingCall =
                       call.getState() == DialerCall.State.INCOMING
                           || call.getState() == DialerCall.State.CALL_WAITING;
@@ -383,6 +387,7 @@ public class CallList implements DialerCallDelegate {
       LogUtil.i("CallList.onIncoming", String.valueOf(call));
     }
 
+    updateCoalescer.flush();
     for (Listener listener : listeners) {
       listener.onIncomingCall(call);
     }
@@ -651,14 +656,36 @@ public class CallList implements DialerCallDelegate {
    * listeners to call back to determine what changed.
    */
   private void notifyGenericListeners() {
-    Trace.beginSection("CallList.notifyGenericListeners");
-    for (Listener listener : listeners) {
-      listener.onCallListChange(this);
-    }
-    Trace.endSection();
+    postGenericListenerNotification();
+    updateCoalescer.flush();
+  }
+
+  /**
+   * Sends a generic notification to all listeners on the next frame, together with the other
+   * changes until then.
+   */
+  private void postGenericListenerNotification() {
+    updateCoalescer.post(
+        Listener.class,
+        () -> {
+          Trace.beginSection("CallList.notifyGenericListeners");
+          for (Listener listener : listeners) {
+            listener.onCallListChange(this);
+          }
+          Trace.endSection();
+        });
+  }
+
+  /**
+   * Returns the {@link CallUpdateCoalescer} ordering the coalesced notifications of the call list
+   * with the other call updates.
+   */
+  public CallUpdateCoalescer getUpdateCoalescer() {
+    return updateCoalescer;
   }
 
   private void notifyListenersOfDisconnect(DialerCall call) {
+    updateCoalescer.flush();
     for (Listener listener : listeners) {
       listener.onDisconnect(call);
     }
@@ -759,6 +786,12 @@ public class CallList implements DialerCallDelegate {
     }
   }
 
+  public void onInCallActivityCreated() {
+    for (DialerCall call : callById.values()) {
+      call.getLatencyReport().onInCallActivityCreated();
+    }
+  }
+
   public void onInCallUiShown(boolean forFullScreenIntent) {
     for (DialerCall call : callById.values()) {
       call.getLatencyReport().onInCallUiShown(forFullScreenIntent);
@@ -845,7 +878,8 @@ public class CallList implements DialerCallDelegate {
     public void onDialerCallUpdate() {
       Trace.beginSection("CallList.onDialerCallUpdate");
       onUpdateCall(call);
-      notifyGenericListeners();
+      // Telecom can update calls several times per frame, e.g. conference calls.
+      postGenericListenerNotification();
       Trace.endSection();
     }
 
@@ -857,6 +891,7 @@ public class CallList implements DialerCallDelegate {
 
     @Override
     public void onDialerCallUpgradeToVideo() {
+      updateCoalescer.flush();
       for (Listener listener : listeners) {
         listener.onUpgradeToVideo(call);
       }
@@ -864,6 +899,7 @@ public class CallList implements DialerCallDelegate {
 
     @Override
     public void onWiFiToLteHandover() {
+      updateCoalescer.flush();
       for (Listener listener : listeners) {
         listener.onWiFiToLteHandover(call);
       }
@@ -871,6 +907,7 @@ public class CallList implements DialerCallDelegate {
 
     @Override
     public void onHandoverToWifiFailure() {
+      updateCoalescer.flush();
       for (Listener listener : listeners) {
         listener.onHandoverToWifiFailed(call);
       }
@@ -879,6 +916,7 @@ public class CallList implements DialerCallDelegate {
     @Override
     public void onInternationalCallOnWifi() {
       LogUtil.enterBlock("DialerCallListenerImpl.onInternationalCallOnWifi");
+      updateCoalescer.flush();
       for (Listener listener : listeners) {
         listener.onInternationalCallOnWifi(call);
       }
@@ -889,6 +927,7 @@ public class CallList implements DialerCallDelegate {
 
     @Override
     public void onDialerCallSessionModificationStateChange() {
+      updateCoalescer.flush();
       for (Listener listener : listeners) {
         listener.onSessionModificationStateChange(call);
       }
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.incallui.call;
+
+import android.support.annotation.MainThread;
+import android.view.Choreographer;
+import android.view.Choreographer.FrameCallback;
+import com.android.dialer2.common.Assert;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collapses bursts of call updates into one listener dispatch per frame.
+ *
+ * <p>Each update is posted with a key identifying what it notifies, such as the generic {@link
+ * CallList.Listener}s or the details listeners of a call. Posting an update with the key of one
+ * that is still pending replaces it, and it keeps the position of the pending update. Pending
+ * updates are dispatched in the order they were first posted, on the next frame or when {@link
+ * #flush()} is called. Code dispatching events which are not coalesced should call {@link #flush()}
+ * first, so that listeners receive all events in order.
+ */
+public final class CallUpdateCoalescer {
+
+  private final Map<Object, Runnable> pendingUpdates = new LinkedHashMap<>();
+  private final FrameCallback frameCallback = frameTimeNanos -> onFrame();
+
+  private boolean frameCallbackPosted;
+  private long dispatchedUpdateCount;
+  private long mergedUpdateCount;
+
+  /** Dispatches {@code update} on the next frame, replacing any pending update with {@code key}. */
+  @MainThread
+  public void post(Object key, Runnable update) {
+    Assert.isMainThread();
+    if (pendingUpdates.containsKey(key)) {
+      mergedUpdateCount++;
+    }
+    pendingUpdates.put(key, update);
+    if (!frameCallbackPosted) {
+      Choreographer.getInstance().postFrameCallback(frameCallback);
+      frameCallbackPosted = true;
+    }
+  }
+
+  /** Dispatches the pending updates now. */
+  @MainThread
+  public void flush() {
+    Assert.isMainThread();
+    if (pendingUpdates.isEmpty()) {
+      return;
+    }
+    // Updates posted while dispatching are kept for the next frame or flush.
+    List<Runnable> updates = new ArrayList<>(pendingUpdates.values());
+    pendingUpdates.clear();
+    for (Runnable update : updates) {
+      dispatchedUpdateCount++;
+      update.run();
+    }
+  }
+
+  public void dump(PrintWriter printWriter) {
+    printWriter.println(
+        "Call updates: dispatched="
+            + dispatchedUpdateCount
+            + " merged="
+            + mergedUpdateCount
+            + " pending="
+            + pendingUpdates.size());
+  }
+
+  private void onFrame() {
+    frameCallbackPosted = false;
+    flush();
+  }
+}
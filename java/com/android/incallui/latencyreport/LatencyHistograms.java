@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.incallui.latencyreport;
+
+import java.io.PrintWriter;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * On-device histograms of the duration of each stage of setting up the UI for an incoming call,
+ * mostly recorded by {@link LatencyReport}.
+ *
+ * <p>The histograms are kept for the lifetime of the process and can be dumped with {@code adb
+ * shell dumpsys activity service com.android.incallui.InCallServiceImpl}.
+ */
+public final class LatencyHistograms {
+
+  /** A stage of the incoming call path. */
+  public enum Stage {
+    /** From telecom starting to process the call to telecom finishing processing it. */
+    TELECOM_ROUTING("telecom routing"),
+    /** From telecom finishing processing the call to the call being added to the InCallUi. */
+    TELECOM_TO_INCALLUI("telecom to InCallUi"),
+    /** From the call being added to the call blocking evaluation being done. */
+    CALL_BLOCKING("call blocking"),
+    /** From the call being added to the spam check being done. */
+    SPAM_CHECK("spam check"),
+    /** From the call being added to the local contact lookup being done. */
+    CONTACT_INFO("contact info"),
+    /** From a remote directory being queried for the caller to it answering. */
+    DIRECTORY_LOOKUP("directory lookup"),
+    /** From the call being added to the call notification being shown. */
+    NOTIFICATION("notification"),
+    /** From the call being added to the InCallActivity being created. */
+    ACTIVITY_CREATED("activity created"),
+    /** From the call being added to the InCallUi being shown. */
+    UI_SHOWN("ui shown"),
+    /** From the call being created by the connection service to the InCallUi being shown. */
+    RING_TO_UI("ring to ui");
+
+    private final String label;
+
+    Stage(String label) {
+      this.label = label;
+    }
+  }
+
+  /** Upper bounds of the buckets, in milliseconds. The last bucket has no upper bound. */
+  private static final long[] BUCKET_UPPER_BOUNDS_MILLIS = {
+    10, 25, 50, 100, 250, 500, 1000, 2500, 5000
+  };
+
+  private static final LatencyHistograms instance = new LatencyHistograms();
+
+  private final Map<Stage, Histogram> histograms = new EnumMap<>(Stage.class);
+
+  private LatencyHistograms() {}
+
+  public static LatencyHistograms getInstance() {
+    return instance;
+  }
+
+  /** Records that a call went through {@code stage} in {@code durationMillis}. */
+  public synchronized void record(Stage stage, long durationMillis) {
+    if (durationMillis < 0) {
+      return;
+    }
+    Histogram histogram = histograms.get(stage);
+    if (histogram == null) {
+      histogram = new Histogram();
+      histograms.put(stage, histogram);
+    }
+    histogram.add(durationMillis);
+  }
+
+  public synchronized void dump(PrintWriter printWriter) {
+    printWriter.println("Incoming call latency (ms):");
+    if (histograms.isEmpty()) {
+      printWriter.println("  no incoming calls");
+      return;
+    }
+    for (Map.Entry<Stage, Histogram> entry : histograms.entrySet()) {
+      Histogram histogram = entry.getValue();
+      StringBuilder line =
+          new StringBuilder()
+              .append("  ")
+              .append(entry.getKey().label)
+              .append(": count=")
+              .append(histogram.count)
+              .append(" mean=")
+              .append(histogram.sumMillis / histogram.count)
+              .append(" max=")
+              .append(histogram.maxMillis)
+              .append(" buckets=[");
+      for (int i = 0; i < histogram.bucketCounts.length; i++) {
+        if (i > 0) {
+          line.append(", ");
+        }
+        line.append(
+                i < BUCKET_UPPER_BOUNDS_MILLIS.length
+                    ? "<=" + BUCKET_UPPER_BOUNDS_MILLIS[i]
+                    : ">" + BUCKET_UPPER_BOUNDS_MILLIS[i - 1])
+            .append(':')
+            .append(histogram.bucketCounts[i]);
+      }
+      printWriter.println(line.append(']'));
+    }
+  }
+
+  private static final class Histogram {
+    final int[] bucketCounts = new int[BUCKET_UPPER_BOUNDS_MILLIS.length + 1];
+    int count;
+    long sumMillis;
+    long maxMillis;
+
+    void add(long durationMillis) {
+      int bucket = 0;
+      while (bucket < BUCKET_UPPER_BOUNDS_MILLIS.length
+          && durationMillis > BUCKET_UPPER_BOUNDS_MILLIS[bucket]) {
+        bucket++;
+      }
+      bucketCounts[bucket]++;
+      count++;
+      sumMillis += durationMillis;
+      maxMillis = Math.max(maxMillis, durationMillis);
+    }
+  }
+}
@@ -18,8 +18,14 @@ package com.android.incallui.latencyreport;
 
 import android.os.Bundle;
 import android.os.SystemClock;
+import com.android.dialer2.common.LogUtil;
+import com.android.incallui.latencyreport.LatencyHistograms.Stage;
 
-/** Tracks latency information for a call. */
+/**
+ * Tracks latency information for a call.
+ *
+ * <p>For incoming calls, the duration of each stage is also recorded in {@link LatencyHistograms}.
+ */
 public class LatencyReport {
 
   public static final long INVALID_TIME = -1;
@@ -48,9 +54,18 @@ public class LatencyReport {
   // Time elapsed since boot when the call was added and call blocking evaluation was completed.
   private long callBlockingTimeMillis = INVALID_TIME;
 
+  // Time elapsed since boot when the spam check of the call was completed.
+  private long spamCheckTimeMillis = INVALID_TIME;
+
+  // Time elapsed since boot when the local contact lookup for the call was completed.
+  private long contactInfoTimeMillis = INVALID_TIME;
+
   // Time elapsed since boot when the call notification was shown.
   private long callNotificationTimeMillis = INVALID_TIME;
 
+  // Time elapsed since boot when the InCallActivity was created.
+  private long inCallActivityCreatedTimeMillis = INVALID_TIME;
+
   // Time elapsed since boot when the InCallUI was shown.
   private long inCallUiShownTimeMillis = INVALID_TIME;
 
@@ -81,6 +96,8 @@ public class LatencyReport {
           extras.getLong(EXTRA_CALL_TELECOM_ROUTING_END_TIME_MILLIS, INVALID_TIME);
     }
     callAddedTimeMillis = SystemClock.elapsedRealtime();
+    recordStage(Stage.TELECOM_ROUTING, telecomRoutingStartTimeMillis, telecomRoutingEndTimeMillis);
+    recordStage(Stage.TELECOM_TO_INCALLUI, telecomRoutingEndTimeMillis, callAddedTimeMillis);
   }
 
   public boolean getWasIncoming() {
@@ -110,6 +127,29 @@ public class LatencyReport {
   public void onCallBlockingDone() {
     if (callBlockingTimeMillis == INVALID_TIME) {
       callBlockingTimeMillis = SystemClock.elapsedRealtime();
+      recordStage(Stage.CALL_BLOCKING, callAddedTimeMillis, callBlockingTimeMillis);
+    }
+  }
+
+  public long getSpamCheckTimeMillis() {
+    return spamCheckTimeMillis;
+  }
+
+  public void onSpamCheckDone() {
+    if (spamCheckTimeMillis == INVALID_TIME) {
+      spamCheckTimeMillis = SystemClock.elapsedRealtime();
+      recordStage(Stage.SPAM_CHECK, callAddedTimeMillis, spamCheckTimeMillis);
+    }
+  }
+
+  public long getContactInfoTimeMillis() {
+    return contactInfoTimeMillis;
+  }
+
+  public void onContactInfoLoaded() {
+    if (contactInfoTimeMillis == INVALID_TIME) {
+      contactInfoTimeMillis = SystemClock.elapsedRealtime();
+      recordStage(Stage.CONTACT_INFO, callAddedTimeMillis, contactInfoTimeMillis);
     }
   }
 
@@ -120,6 +160,18 @@ public class LatencyReport {
   public void onNotificationShown() {
     if (callNotificationTimeMillis == INVALID_TIME) {
       callNotificationTimeMillis = SystemClock.elapsedRealtime();
+      recordStage(Stage.NOTIFICATION, callAddedTimeMillis, callNotificationTimeMillis);
+    }
+  }
+
+  public long getInCallActivityCreatedTimeMillis() {
+    return inCallActivityCreatedTimeMillis;
+  }
+
+  public void onInCallActivityCreated() {
+    if (inCallActivityCreatedTimeMillis == INVALID_TIME) {
+      inCallActivityCreatedTimeMillis = SystemClock.elapsedRealtime();
+      recordStage(Stage.ACTIVITY_CREATED, callAddedTimeMillis, inCallActivityCreatedTimeMillis);
     }
   }
 
@@ -131,10 +183,20 @@ public class LatencyReport {
     if (inCallUiShownTimeMillis == INVALID_TIME) {
       inCallUiShownTimeMillis = SystemClock.elapsedRealtime();
       didDisplayHeadsUpNotification = wasIncoming && !forFullScreenIntent;
+      recordStage(Stage.UI_SHOWN, callAddedTimeMillis, inCallUiShownTimeMillis);
+      recordStage(Stage.RING_TO_UI, createdTimeMillis, inCallUiShownTimeMillis);
     }
   }
 
   public boolean getDidDisplayHeadsUpNotification() {
     return didDisplayHeadsUpNotification;
   }
+
+  private void recordStage(Stage stage, long startTimeMillis, long endTimeMillis) {
+    if (!wasIncoming || startTimeMillis == INVALID_TIME || endTimeMillis == INVALID_TIME) {
+      return;
+    }
+    LogUtil.v("LatencyReport.recordStage", "%s took %dms", stage, endTimeMillis - startTimeMillis);
+    LatencyHistograms.getInstance().record(stage, endTimeMillis - startTimeMillis);
+  }
 }